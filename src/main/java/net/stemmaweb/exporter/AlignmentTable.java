@@ -0,0 +1,353 @@
+package net.stemmaweb.exporter;
+
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.model.VariantLocationModel;
+import net.stemmaweb.model.VariantModel;
+import net.stemmaweb.model.WitnessTokensModel;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.RelationService;
+import net.stemmaweb.services.WitnessBitset;
+import net.stemmaweb.services.WitnessPath;
+import net.stemmaweb.services.WitnessRegistry;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.traversal.Evaluator;
+import org.neo4j.graphdb.traversal.Evaluators;
+import org.neo4j.graphdb.traversal.Uniqueness;
+
+import java.util.*;
+
+/**
+ * A columnar alignment table, from which the tabular exports are rendered. Each witness
+ * (or witness layer) column is an int array with one cell per rank, holding the ordinal
+ * of the reading at that rank, or GAP if the witness has no reading there. The distinct
+ * readings are kept once each in a dictionary of node ID, normalized text and flags, so
+ * that building the table allocates nothing per cell.
+ */
+
+public class AlignmentTable {
+    public static final int GAP = -1;
+    // Reading flags
+    public static final int LACUNA = 1;
+    public static final int LEMMA = 2;
+
+    private final List<String> sigla;
+    private final int[][] cells;
+    private final int length;
+    private final Dictionary dictionary;
+
+    private AlignmentTable(List<String> sigla, int[][] cells, int length, Dictionary dictionary) {
+        this.sigla = sigla;
+        this.cells = cells;
+        this.length = length;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Builds the table for the given sections, in order. There is a column for every witness
+     * layer found in any of the sections; where a section lacks that layer, the column is
+     * filled from the base witness, or else left empty.
+     *
+     * @param sections - the section nodes
+     * @param collapseRelated - the relation type up to which related readings are conflated
+     * @return the alignment table
+     * @throws Exception if a section can't be read
+     */
+    public static AlignmentTable forSections(List<Node> sections, String collapseRelated) throws Exception {
+        Dictionary dictionary = new Dictionary();
+        List<SectionColumns> tables = new ArrayList<>();
+        TreeSet<String> allWitnesses = new TreeSet<>();
+        int length = 0;
+        for (Node sectionNode : sections) {
+            SectionColumns sc = new SectionColumns(sectionNode, collapseRelated, dictionary);
+            tables.add(sc);
+            length += sc.length;
+            allWitnesses.addAll(sc.columns.keySet());
+        }
+
+        List<String> sigla = new ArrayList<>(allWitnesses);
+        int[][] cells = new int[sigla.size()][length];
+        for (int w = 0; w < sigla.size(); w++) {
+            String sigil = sigla.get(w);
+            String base = WitnessTokensModel.parseSigil(sigil)[0];
+            int offset = 0;
+            for (SectionColumns sc : tables) {
+                int[] column = sc.columns.get(sigil);
+                if (column == null) column = sc.columns.get(base);
+                if (column != null)
+                    System.arraycopy(column, 0, cells[w], offset, sc.length);
+                else
+                    Arrays.fill(cells[w], offset, offset + sc.length, GAP);
+                offset += sc.length;
+            }
+        }
+        return new AlignmentTable(sigla, cells, length, dictionary);
+    }
+
+    /**
+     * @return the column sigla, i.e. witness sigla with any layer in parentheses, sorted
+     */
+    public List<String> getSigla() {
+        return Collections.unmodifiableList(sigla);
+    }
+
+    /**
+     * @return the number of ranks in the table
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @param witness - the column index
+     * @param rank - the rank index, counting from zero
+     * @return the reading ordinal at that cell, or GAP
+     */
+    public int get(int witness, int rank) {
+        return cells[witness][rank];
+    }
+
+    /**
+     * @return the number of distinct readings in the table
+     */
+    public int readingCount() {
+        return dictionary.nodeIds.size();
+    }
+
+    /**
+     * @param ordinal - the reading ordinal
+     * @return the normalized text of the reading, i.e. its normal form if it has one
+     */
+    public String text(int ordinal) {
+        return dictionary.texts.get(ordinal);
+    }
+
+    /**
+     * @param ordinal - the reading ordinal
+     * @return the node ID of the reading
+     */
+    public long nodeId(int ordinal) {
+        return dictionary.nodeIds.get(ordinal);
+    }
+
+    /**
+     * @param ordinal - the reading ordinal
+     * @param flag - the flag to test, e.g. LACUNA
+     * @return true if the reading has the flag
+     */
+    public boolean is(int ordinal, int flag) {
+        return (dictionary.flags.get(ordinal) & flag) != 0;
+    }
+
+    /**
+     * Renders the table as an AlignmentModel, for JSON output. A single ReadingModel is
+     * made for each distinct reading, and shared by all the cells that hold it.
+     *
+     * @param db - the database the readings are in
+     * @return the alignment model
+     */
+    public AlignmentModel toModel(GraphDatabaseService db) {
+        ReadingModel[] readings = new ReadingModel[readingCount()];
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < readings.length; i++)
+                readings[i] = new ReadingModel(db.getNodeById(nodeId(i)));
+            tx.success();
+        }
+        AlignmentModel result = new AlignmentModel();
+        for (int w = 0; w < sigla.size(); w++) {
+            String[] parsed = WitnessTokensModel.parseSigil(sigla.get(w));
+            WitnessTokensModel witness = new WitnessTokensModel();
+            witness.setWitness(parsed[0]);
+            if (parsed[1] != null) witness.setLayer(parsed[1]);
+            ArrayList<ReadingModel> tokens = new ArrayList<>(length);
+            for (int cell : cells[w])
+                tokens.add(cell == GAP ? null : readings[cell]);
+            witness.setTokens(tokens);
+            result.addWitness(witness);
+        }
+        result.setLength(length);
+        return result;
+    }
+
+    /**
+     * Groups the table into variant locations, for a critical apparatus. A variant location
+     * is a run of ranks where the witnesses don't all have the same reading, ignoring
+     * lacunae; within it, the witnesses are grouped by the sequence of readings they have
+     * over the whole run. Readings conflated when the table was built count as the same.
+     *
+     * @return the variant locations, in rank order
+     */
+    public List<VariantLocationModel> variantLocations() {
+        List<VariantLocationModel> result = new ArrayList<>();
+        int i = 0;
+        while (i < length) {
+            if (!divergent(i)) {
+                i++;
+                continue;
+            }
+            int from = i;
+            while (i < length && divergent(i)) i++;
+            result.add(variantLocation(from, i));
+        }
+        return result;
+    }
+
+    // True if the witnesses with a reading at this rank index don't all agree
+    private boolean divergent(int rank) {
+        boolean seen = false;
+        int first = GAP;
+        for (int[] column : cells) {
+            int cell = column[rank];
+            if (cell != GAP && is(cell, LACUNA)) continue;
+            if (!seen) {
+                first = cell;
+                seen = true;
+            } else if (cell != first)
+                return true;
+        }
+        return false;
+    }
+
+    // The variants over the rank indices [from, to)
+    private VariantLocationModel variantLocation(int from, int to) {
+        LinkedHashMap<List<Integer>, VariantModel> variants = new LinkedHashMap<>();
+        for (int w = 0; w < sigla.size(); w++) {
+            List<Integer> sequence = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                int cell = cells[w][i];
+                // A lacuna fills the cells before it; list it only once
+                if (cell != GAP && (sequence.isEmpty() || sequence.get(sequence.size() - 1) != cell))
+                    sequence.add(cell);
+            }
+            VariantModel vm = variants.get(sequence);
+            if (vm == null) {
+                vm = new VariantModel();
+                ArrayList<String> texts = new ArrayList<>();
+                boolean lemma = !sequence.isEmpty();
+                boolean lacuna = false;
+                for (int ordinal : sequence) {
+                    vm.getReadings().add(String.valueOf(nodeId(ordinal)));
+                    texts.add(text(ordinal));
+                    lemma &= is(ordinal, LEMMA);
+                    lacuna |= is(ordinal, LACUNA);
+                }
+                vm.setText(String.join(" ", texts));
+                if (lemma) vm.setIs_lemma(true);
+                if (lacuna) vm.setIs_lacuna(true);
+                variants.put(sequence, vm);
+            }
+            vm.getWitnesses().add(sigla.get(w));
+        }
+        VariantLocationModel location = new VariantLocationModel();
+        // Ranks count from one
+        location.setStart(from + 1);
+        location.setEnd(to);
+        location.setVariants(new ArrayList<>(variants.values()));
+        return location;
+    }
+
+    // The distinct readings of the table, numbered in the order they are met
+    private static class Dictionary {
+        private final HashMap<Long, Integer> ordinals = new HashMap<>();
+        private final ArrayList<Long> nodeIds = new ArrayList<>();
+        private final ArrayList<String> texts = new ArrayList<>();
+        private final ArrayList<Integer> flags = new ArrayList<>();
+
+        // NOTE: for use in a transaction!
+        int ordinalFor(Node reading) {
+            Integer o = ordinals.get(reading.getId());
+            if (o == null) {
+                o = nodeIds.size();
+                ordinals.put(reading.getId(), o);
+                nodeIds.add(reading.getId());
+                texts.add(reading.hasProperty("normal_form")
+                        ? reading.getProperty("normal_form").toString()
+                        : reading.getProperty("text", "").toString());
+                int f = 0;
+                if (reading.getProperty("is_lacuna", false).equals(true)) f |= LACUNA;
+                if (reading.getProperty("is_lemma", false).equals(true)) f |= LEMMA;
+                flags.add(f);
+            }
+            return o;
+        }
+    }
+
+    // The columns for a single section, keyed by sigil
+    private static class SectionColumns {
+        private final HashMap<String, int[]> columns = new HashMap<>();
+        private final int length;
+
+        SectionColumns(Node sectionNode, String collapseRelated, Dictionary dictionary) throws Exception {
+            GraphDatabaseService db = sectionNode.getGraphDatabase();
+            try (Transaction tx = db.beginTx()) {
+                String sectId = String.valueOf(sectionNode.getId());
+                Node traditionNode = DatabaseService.getTraditionNode(sectionNode, db);
+                String tradId = traditionNode.getProperty("id").toString();
+                Node startNode = DatabaseService.getStartNode(sectId, db);
+                Node endNode = DatabaseService.getEndNode(sectId, db);
+                length = (int) ((long) endNode.getProperty("rank") - 1);
+
+                // Conflate any readings that are linked with relations of, at most, the
+                // bindlevel of the given relation type.
+                HashMap<Node, Node> equivalences = new HashMap<>();
+                for (Set<Node> cluster : RelationService.getCloselyRelatedClusters(tradId, sectId, db, collapseRelated)) {
+                    Node representative = RelationService.findRepresentative(cluster);
+                    for (Node n : cluster)
+                        equivalences.put(n, representative);
+                }
+
+                // Decode the witness lists on the sequences once, for all the witness walks
+                WitnessPath.EdgeCache edgeCache = new WitnessPath.EdgeCache(WitnessBitset.forTradition(traditionNode));
+                ArrayList<Relationship> sectionSequences = new ArrayList<>();
+                db.traversalDescription().depthFirst()
+                        .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
+                        .evaluator(Evaluators.all())
+                        .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(startNode)
+                        .relationships().forEach(sectionSequences::add);
+
+                for (Node w : WitnessRegistry.witnesses(traditionNode)) {
+                    String sigil = w.getProperty("sigil").toString();
+                    // Find out which witness layers we need to deal with
+                    HashSet<String> layers = new HashSet<>();
+                    layers.add("base");
+                    for (Relationship seq : sectionSequences)
+                        for (String layer : edgeCache.witnessClasses(seq).keySet())
+                            if (!layer.equals("witnesses") && edgeCache.hasWitness(seq, layer, sigil))
+                                layers.add(layer);
+
+                    for (String layer : layers) {
+                        ArrayList<String> alternatives = new ArrayList<>();
+                        if (!layer.equals("base")) alternatives.add(layer);
+                        Evaluator e = new WitnessPath(sigil, alternatives, edgeCache).getEvalForWitness();
+                        int[] column = new int[length];
+                        Arrays.fill(column, GAP);
+                        int filled = 0;
+                        for (Node r : db.traversalDescription().depthFirst()
+                                .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
+                                .evaluator(e)
+                                .uniqueness(Uniqueness.NODE_PATH)
+                                .traverse(startNode)
+                                .nodes()) {
+                            if (r.hasProperty("is_end"))
+                                continue;
+                            if (equivalences.containsKey(r))
+                                r = equivalences.get(r);
+                            int ordinal = dictionary.ordinalFor(r);
+                            // Put it at its proper rank; a lacuna also fills the gap before it
+                            int rankIndex = (int) ((long) r.getProperty("rank") - 1);
+                            if (r.getProperty("is_lacuna", false).equals(true) && rankIndex > filled)
+                                Arrays.fill(column, filled, rankIndex, ordinal);
+                            column[rankIndex] = ordinal;
+                            filled = Math.max(filled, rankIndex + 1);
+                        }
+                        // Skip this witness if it is empty
+                        if (filled == 0) continue;
+                        columns.put(layer.equals("base") ? sigil : String.format("%s (%s)", sigil, layer), column);
+                    }
+                }
+                tx.success();
+            }
+        }
+    }
+}
@@ -14,18 +14,17 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import net.stemmaweb.model.DisplayOptionModel;
-import net.stemmaweb.printer.GraphViz;
 import net.stemmaweb.rest.ERelations;
 
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.Section;
 import net.stemmaweb.services.DatabaseService;
 
-import static net.stemmaweb.parser.Util.getExpander;
 import static org.apache.commons.lang3.StringEscapeUtils.escapeHtml4;
 
 import net.stemmaweb.services.ReadingService;
 import net.stemmaweb.services.RelationService;
+import net.stemmaweb.services.StemmaGraph;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.Uniqueness;
 
@@ -466,81 +465,10 @@ public class DotExporter
 
     public Response writeNeo4JStemma(String tradId, String stemmaTitle, Boolean singleLine)
     {
-        ArrayList<String> outputLines = new ArrayList<>();
-
-        try (Transaction tx = db.beginTx()) {
-            Node traditionNode = db.findNode(Nodes.TRADITION, "id", tradId);
-            Node startNodeStemma = null;
-            for (Node stemma : DatabaseService.getRelated(traditionNode, ERelations.HAS_STEMMA)) {
-                if (stemma.getProperty("name").equals(stemmaTitle)) {
-                    startNodeStemma = stemma;
-                    break;
-                }
-            }
-            if(startNodeStemma == null) {
-                return Response.status(Status.NOT_FOUND).build();
-            }
-
-            String stemmaType = (Boolean) startNodeStemma.getProperty("directed") ? "digraph" : "graph";
-            String edgeGlyph = (Boolean) startNodeStemma.getProperty("directed") ? "->" : "--";
-            outputLines.add(String.format("%s \"%s\" {", stemmaType, stemmaTitle));
-
-            // Output all the nodes associated with this stemma.
-            for (Node witness : DatabaseService.getRelated(startNodeStemma, ERelations.HAS_WITNESS)) {
-                String witnessSigil = sigilDotString(witness);
-                Boolean hypothetical = (Boolean) witness.getProperty("hypothetical");
-
-                // Get the witness class and, if it exists, label.
-                String witnessAttr = hypothetical ? "[class=hypothetical" : "[class=extant";
-                if (witness.hasProperty("label")) {
-                    witnessAttr += " label=\"" + witness.getProperty("label") + '"';
-                }
-                witnessAttr += "]";
-                outputLines.add(String.format("\t%s %s;", witnessSigil, witnessAttr));
-            }
-
-            // Now output all the edges associated with this stemma, starting with the
-            // archetype if we have one.
-            ArrayList<Node> foundRoots = DatabaseService.getRelated(startNodeStemma, ERelations.HAS_ARCHETYPE);
-            if (foundRoots.isEmpty()) {
-                // No archetype; just output the list of edges in any order.
-                Result txEdges = db.execute("MATCH (a:WITNESS)-[:TRANSMITTED {hypothesis:'" +
-                        stemmaTitle + "'}]->(b:WITNESS) RETURN a, b");
-                while (txEdges.hasNext()) {
-                    Map<String, Object> vector = txEdges.next();
-                    String source = sigilDotString((Node) vector.get("a"));
-                    String target = sigilDotString((Node) vector.get("b"));
-                    outputLines.add(String.format("\t%s %s %s;", source, edgeGlyph, target));
-                }
-            } else {
-                // We have an archetype; start there and traverse the graph.
-                Node stemmaRoot = foundRoots.get(0);  // There should be only one.
-                for (String edge : traverseStemma(startNodeStemma, stemmaRoot)) {
-                    String[] v = edge.split(" : ");
-                    outputLines.add(String.format("\t%s %s %s;", v[0], edgeGlyph, v[1]));
-                }
-            }
-            outputLines.add("}");
-            tx.success();
-        }
-
-        String joinString = singleLine ? "  " : "\n";
-        String output = String.join(joinString, outputLines);
-        writeFromDot(output);
-
-        return Response.ok(output).build();
-    }
-
-    /*
-     * Helper functions for stemma graph production
-     */
-
-    // Helper function to get the correctly-quote sigil for a Witness node.
-    private static String sigilDotString(Node witness) {
-        String witnessSigil = witness.getProperty("sigil").toString();
-        if (witness.getProperty("quotesigil", false).equals(true))
-            witnessSigil = String.format("\"%s\"", witnessSigil);
-        return witnessSigil;
+        StemmaGraph stemma = StemmaGraph.of(tradId, stemmaTitle, db);
+        if (stemma == null)
+            return Response.status(Status.NOT_FOUND).build();
+        return Response.ok(stemma.toDot(singleLine)).build();
     }
 
     /**
@@ -554,17 +482,12 @@ public class DotExporter
         ArrayList<String> stemmaList = new ArrayList<>();
 
         try(Transaction tx = db.beginTx()) {
-            //ExecutionEngine engine = new ExecutionEngine(db);
             // find all Stemmata associated with this tradition
-            Result result = db.execute("match (t:TRADITION {id:'"+ tradId +
-                    "'})-[:HAS_STEMMA]->(s:STEMMA) return s");
-
-            Iterator<Node> stemmata = result.columnAs("s");
-            while(stemmata.hasNext()) {
-                String stemma = stemmata.next().getProperty("name").toString();
-                Response resp = writeNeo4JStemma(tradId, stemma, true);
-
-                stemmaList.add(resp.getEntity().toString());
+            Node traditionNode = db.findNode(Nodes.TRADITION, "id", tradId);
+            for (Node s : DatabaseService.getRelated(traditionNode, ERelations.HAS_STEMMA)) {
+                StemmaGraph stemma = StemmaGraph.of(tradId, s.getProperty("name").toString(), db);
+                if (stemma != null)
+                    stemmaList.add(stemma.toDot(true));
             }
             tx.success();
         }
@@ -572,52 +495,9 @@ public class DotExporter
         return String.join("\n", stemmaList);
     }
 
-    private Set<String> traverseStemma(Node stemma, Node archetype) {
-        String stemmaName = (String) stemma.getProperty("name");
-        Set<String> allPaths = new HashSet<>();
-
-        // If the stemma is contaminated then we must pay attention to direction of link;
-        // it isn't deterministic from archetype identification.
-        Direction useDir = stemma.hasProperty("is_contaminated") ? Direction.OUTGOING : Direction.BOTH;
-
-        // We need to traverse only those paths that belong to this stemma.
-        PathExpander e = getExpander(useDir, stemmaName);
-        for (Path nodePath: db.traversalDescription().breadthFirst()
-                .expand(e)
-                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                .traverse(archetype)) {
-            Iterator<Node> orderedNodes = nodePath.nodes().iterator();
-            Node sourceNode = orderedNodes.next();
-            while (orderedNodes.hasNext()) {
-                Node targetNode = orderedNodes.next();
-                String source = sigilDotString(sourceNode);
-                String target = sigilDotString(targetNode);
-                allPaths.add(String.format("%s : %s", source, target));
-                sourceNode = targetNode;
-            }
-        }
-        return allPaths;
-    }
-
-
     private void write(String str) throws IOException
     {
         out.write(str.getBytes());
     }
 
-
-    private void writeFromDot(String dot)
-    {
-        GraphViz gv = new GraphViz();
-        gv.add(dot);
-        File result;
-        try {
-            result = File.createTempFile("graph_", ".svg");
-        } catch (Exception e) {
-            System.out.println("Could not write " + "svg" + " to temporary file");
-            return;
-        }
-        gv.writeGraphToFile(gv.getGraph(gv.getDotSource(), "svg"), result);
-    }
-
 }
\ No newline at end of file
@@ -1,27 +1,31 @@
 package net.stemmaweb.exporter;
 
 import com.opencsv.CSVWriter;
-import net.stemmaweb.model.AlignmentModel;
-import net.stemmaweb.model.WitnessTokensModel;
-import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.services.DatabaseService;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Transaction;
 
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.ss.util.WorkbookUtil;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 
 /**
  * A class for writing a graph out to various forms of table: JSON, CSV, Excel, etc.
  */
 public class TabularExporter {
+    public static final String XLSX_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+    // The number of spreadsheet rows kept in memory before they are flushed to disk
+    private static final int XLSX_ROW_WINDOW = 100;
 
     private GraphDatabaseService db;
     public TabularExporter(GraphDatabaseService db){
@@ -29,15 +33,14 @@ public class TabularExporter {
     }
 
     public Response exportAsJSON(String tradId, String conflate, List<String> sectionList) {
-        ArrayList<Node> traditionSections;
+        AlignmentTable wholeTradition;
         try {
-            traditionSections = getSections(tradId, sectionList);
-            if(traditionSections==null) {
+            wholeTradition = returnFullAlignment(tradId, conflate, sectionList);
+            if (wholeTradition == null) {
                 return Response.status(Response.Status.NOT_FOUND).build();
             }
 
-            return Response.ok(getTraditionAlignment(traditionSections, conflate),
-                    MediaType.APPLICATION_JSON_TYPE).build();
+            return Response.ok(wholeTradition.toModel(db), MediaType.APPLICATION_JSON_TYPE).build();
         } catch (TabularExporterException e) {
             return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
         } catch (Exception e) {
@@ -46,8 +49,24 @@ public class TabularExporter {
     }
 
 
+    public Response exportWitnessDistances(String tradId, String conflate, List<String> sectionList) {
+        try {
+            ArrayList<Node> sections = getSections(tradId, sectionList);
+            if (sections == null) {
+                return Response.status(Response.Status.NOT_FOUND).build();
+            }
+
+            return Response.ok(WitnessDistances.forSections(tradId, sections, conflate),
+                    MediaType.APPLICATION_JSON_TYPE).build();
+        } catch (TabularExporterException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+        } catch (Exception e) {
+            return Response.serverError().entity(e.getMessage()).build();
+        }
+    }
+
     public Response exportAsCSV(String tradId, char separator, String conflate, List<String> sectionList) {
-        AlignmentModel wholeTradition;
+        AlignmentTable wholeTradition;
         try {
             wholeTradition = returnFullAlignment(tradId, conflate, sectionList);
         } catch (TabularExporterException e) {
@@ -63,17 +82,17 @@ public class TabularExporter {
         CSVWriter writer = new CSVWriter(sw, separator);
 
         // First write out the witness list
-        writer.writeNext(wholeTradition.getAlignment().stream()
-                .map(WitnessTokensModel::constructSigil).toArray(String[]::new));
+        List<String> sigla = wholeTradition.getSigla();
+        writer.writeNext(sigla.toArray(new String[0]));
 
         // Now write out the normal_form or text for the reading in each "row"
+        String[] row = new String[sigla.size()];
         for (int i = 0; i < wholeTradition.getLength(); i++) {
-            AtomicInteger ai = new AtomicInteger(i);
-            writer.writeNext(wholeTradition.getAlignment().stream()
-                    .map(x -> {
-                        ReadingModel rm = x.getTokens().get(ai.get());
-                        return rm == null ? null : rm.normalized();
-                    }).toArray(String[]::new));
+            for (int w = 0; w < row.length; w++) {
+                int cell = wholeTradition.get(w, i);
+                row[w] = cell == AlignmentTable.GAP ? null : wholeTradition.text(cell);
+            }
+            writer.writeNext(row);
         }
 
         // Close off the CSV writer and return
@@ -88,7 +107,7 @@ public class TabularExporter {
 
 
     public Response exportAsCharMatrix(String tradId, int maxVars, String conflate, List<String> sectionList) {
-        AlignmentModel wholeTradition;
+        AlignmentTable wholeTradition;
         try {
             wholeTradition = returnFullAlignment(tradId, conflate, sectionList);
             if (wholeTradition==null) return Response.status(Response.Status.NOT_FOUND).build();
@@ -99,74 +118,162 @@ public class TabularExporter {
         }
 
         // We will count on the order of the witness columns remaining constant.
-        List<String> witnessSigla = wholeTradition.getAlignment().stream()
-                .map(WitnessTokensModel::constructSigil).collect(Collectors.toList());
+        List<String> witnessSigla = wholeTradition.getSigla();
+        int numWits = witnessSigla.size();
         // Collect the character rows as they are built for each witness.
-        HashMap<String, StringBuilder> witnessRows = new HashMap<>();
-        for (String sigil : witnessSigla) witnessRows.put(sigil, new StringBuilder());
-        // Go rank by rank through all the lists of tokens, converting them into chars
+        StringBuilder[] witnessRows = new StringBuilder[numWits];
+        for (int w = 0; w < numWits; w++) witnessRows[w] = new StringBuilder();
+        // Go rank by rank through the table, converting the readings into chars. The
+        // reading-to-character lookup is a list of the reading ordinals seen in the row.
+        int[] charMap = new int[numWits];
         int totalLength = 0;
         for (int i = 0; i < wholeTradition.getLength(); i++) {
-            AtomicInteger ai = new AtomicInteger(i);
-            List<ReadingModel> row = wholeTradition.getAlignment().stream()
-                    .map(x -> x.getTokens().get(ai.get())).collect(Collectors.toList());
-            // Make reading-to-character lookup
-            HashMap<String, Character> charMap = new HashMap<>();
-            char curr = 'A';
+            int seen = 0;
             boolean row_has_null = false;
             boolean row_has_lacuna = false;
-            for (ReadingModel rm : row) {
-                if (rm == null) {
+            for (int w = 0; w < numWits; w++) {
+                int cell = wholeTradition.get(w, i);
+                if (cell == AlignmentTable.GAP) {
                     row_has_null = true;
                     continue;
-                } else if (rm.getIs_lacuna()) {
+                } else if (wholeTradition.is(cell, AlignmentTable.LACUNA)) {
                     row_has_lacuna = true;
                     continue;
                 }
-                if (!charMap.containsKey(rm.getId())) {
-                    charMap.put(rm.getId(), curr);
-                    curr++;
-                }
+                if (charIndex(charMap, seen, cell) < 0)
+                    charMap[seen++] = cell;
             }
             // Skip rows that don't diverge
-            if (curr == 'B' && !row_has_null && !row_has_lacuna)
+            if (seen == 1 && !row_has_null && !row_has_lacuna)
                 continue;
             // Check that we aren't over the max-character limit
-            if (curr > 'A' + maxVars || row_has_null && curr > 'A' + (maxVars - 1))
+            if (seen > maxVars || row_has_null && seen > maxVars - 1)
                 continue;
 
             // Employ it
             totalLength++;
-            for (int w = 0; w < witnessSigla.size(); w++) {
-                StringBuilder ourRow = witnessRows.get(witnessSigla.get(w));
-                ReadingModel ourReading = row.get(w);
-                if (ourReading == null) {
-                    ourRow.append('X');
-                    curr++; // Count this in our maximum of eight characters
-                }
-                else if (ourReading.getIs_lacuna())
-                    ourRow.append('?');
+            for (int w = 0; w < numWits; w++) {
+                int cell = wholeTradition.get(w, i);
+                if (cell == AlignmentTable.GAP)
+                    witnessRows[w].append('X');
+                else if (wholeTradition.is(cell, AlignmentTable.LACUNA))
+                    witnessRows[w].append('?');
                 else
-                    ourRow.append(charMap.get(row.get(w).getId()));
+                    witnessRows[w].append((char) ('A' + charIndex(charMap, seen, cell)));
             }
         }
         // Now let's build the whole matrix.
         StringBuilder charMatrix = new StringBuilder();
-        charMatrix.append(String.format("\t%d\t%d\n", wholeTradition.getAlignment().size(), totalLength));
-        for (String sigil : witnessSigla) {
-            charMatrix.append(String.format("%-10s", shortenSigil(sigil)));
-            charMatrix.append(witnessRows.get(sigil));
+        charMatrix.append(String.format("\t%d\t%d\n", numWits, totalLength));
+        for (int w = 0; w < numWits; w++) {
+            charMatrix.append(String.format("%-10s", shortenSigil(witnessSigla.get(w))));
+            charMatrix.append(witnessRows[w]);
             charMatrix.append("\n");
         }
 
         return Response.ok(charMatrix.toString()).build();
     }
 
-    private AlignmentModel returnFullAlignment(String tradId, String conflate, List<String> sectionList)
+    /**
+     * Writes the alignment out as an Excel workbook, with one sheet per section. The
+     * workbook is streamed: the alignment is built one section at a time, and only a
+     * window of rows is held in memory while each sheet is written; the rest are flushed
+     * to temporary files until the workbook is sent.
+     *
+     * @param tradId - the tradition ID
+     * @param conflate - the relation type up to which related readings are conflated
+     * @param sectionList - the section IDs to export, or an empty list for all of them
+     * @param markLemma - if true, cells holding lemma readings are highlighted
+     * @return a response that streams the workbook
+     */
+    public Response exportAsXlsx(String tradId, String conflate, List<String> sectionList, boolean markLemma) {
+        ArrayList<Node> sections;
+        try {
+            sections = getSections(tradId, sectionList);
+        } catch (TabularExporterException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+        }
+        if (sections == null) return Response.status(Response.Status.NOT_FOUND).build();
+
+        StreamingOutput stream = out -> {
+            SXSSFWorkbook workbook = new SXSSFWorkbook(XLSX_ROW_WINDOW);
+            workbook.setCompressTempFiles(true);
+            try {
+                CellStyle lemmaStyle = null;
+                if (markLemma) {
+                    Font bold = workbook.createFont();
+                    bold.setBoldweight(Font.BOLDWEIGHT_BOLD);
+                    lemmaStyle = workbook.createCellStyle();
+                    lemmaStyle.setFont(bold);
+                    lemmaStyle.setFillForegroundColor(IndexedColors.LIGHT_YELLOW.getIndex());
+                    lemmaStyle.setFillPattern(CellStyle.SOLID_FOREGROUND);
+                }
+                HashSet<String> sheetNames = new HashSet<>();
+                for (Node section : sections) {
+                    AlignmentTable table = AlignmentTable.forSections(Collections.singletonList(section), conflate);
+                    Sheet sheet = workbook.createSheet(sheetName(section, sheetNames));
+                    writeSheet(sheet, table, lemmaStyle);
+                }
+                workbook.write(out);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new WebApplicationException(e);
+            } finally {
+                workbook.dispose();
+            }
+        };
+        return Response.ok(stream, XLSX_TYPE).build();
+    }
+
+    // Writes the sigla as a header row, followed by one row per rank
+    private static void writeSheet(Sheet sheet, AlignmentTable table, CellStyle lemmaStyle) {
+        List<String> sigla = table.getSigla();
+        Row header = sheet.createRow(0);
+        for (int w = 0; w < sigla.size(); w++)
+            header.createCell(w).setCellValue(sigla.get(w));
+        for (int i = 0; i < table.getLength(); i++) {
+            Row row = sheet.createRow(i + 1);
+            for (int w = 0; w < sigla.size(); w++) {
+                int ordinal = table.get(w, i);
+                if (ordinal == AlignmentTable.GAP) continue;
+                Cell cell = row.createCell(w);
+                cell.setCellValue(table.text(ordinal));
+                if (lemmaStyle != null && table.is(ordinal, AlignmentTable.LEMMA))
+                    cell.setCellStyle(lemmaStyle);
+            }
+        }
+    }
+
+    // Makes a valid and unique sheet name from the section name
+    private String sheetName(Node section, Set<String> used) {
+        String name;
+        try (Transaction tx = db.beginTx()) {
+            name = section.getProperty("name", "Section " + section.getId()).toString();
+            tx.success();
+        }
+        name = WorkbookUtil.createSafeSheetName(name);
+        String candidate = name;
+        for (int i = 2; used.contains(candidate.toLowerCase()); i++) {
+            String suffix = " (" + i + ")";
+            candidate = (name.length() + suffix.length() > 31 ? name.substring(0, 31 - suffix.length()) : name) + suffix;
+        }
+        used.add(candidate.toLowerCase());
+        return candidate;
+    }
+
+    // Find the character index of a reading in the row's lookup, or -1 if it isn't there yet
+    private static int charIndex(int[] charMap, int seen, int ordinal) {
+        for (int c = 0; c < seen; c++)
+            if (charMap[c] == ordinal) return c;
+        return -1;
+    }
+
+    private AlignmentTable returnFullAlignment(String tradId, String conflate, List<String> sectionList)
             throws Exception {
         ArrayList<Node> traditionSections = getSections(tradId, sectionList);
         if(traditionSections==null) return null;
-        return getTraditionAlignment(traditionSections, conflate);
+        return AlignmentTable.forSections(traditionSections, conflate);
     }
 
     private static String shortenSigil (String sigil) {
@@ -199,67 +306,6 @@ public class TabularExporter {
         return collectedSections;
     }
 
-    private AlignmentModel getTraditionAlignment(ArrayList<Node> traditionSections, String collapseRelated)
-            throws Exception {
-        // Make a new alignment model that has a column for every witness layer across the requested sections.
-
-        // For each section, get the model. Keep track of which layers in which witnesses we have
-        // seen with a set.
-        HashSet<String> allWitnesses = new HashSet<>();
-        ArrayList<AlignmentModel> tables = new ArrayList<>();
-        int length = 0;
-        for (Node sectionNode : traditionSections) {
-            AlignmentModel asJson = new AlignmentModel(sectionNode, collapseRelated);
-            // Save the alignment to our tables list
-            tables.add(asJson);
-            length += asJson.getLength();
-            // Save the witness -> column mapping to our map
-            for (WitnessTokensModel witRecord : asJson.getAlignment()) {
-                allWitnesses.add(witRecord.constructSigil());
-            }
-        }
-
-        // Now make an alignment model containing all witness layers present in allWitnesses, filling in
-        // if necessary either nulls or the base witness per witness layer, per section.
-        AlignmentModel wholeTradition = new AlignmentModel();
-        List<String> sortedWits = new ArrayList<>(allWitnesses);
-        Collections.sort(sortedWits);
-        for (String sigil : sortedWits) {
-            String[] parsed = WitnessTokensModel.parseSigil(sigil);
-
-            // Set up the tradition-spanning witness token model for this witness
-            WitnessTokensModel wholeWitness = new WitnessTokensModel();
-            wholeWitness.setWitness(parsed[0]);
-            if (parsed[1] != null) wholeWitness.setLayer(parsed[1]);
-            wholeWitness.setTokens(new ArrayList<>());
-            // Now fill in tokens from each section in turn.
-            for (AlignmentModel aSection : tables) {
-                // Find the WitnessTokensModel corresponding to wit, if it exists
-                Optional<WitnessTokensModel> thisWitness = aSection.getAlignment().stream()
-                        .filter(x -> x.constructSigil().equals(sigil)).findFirst();
-                if (!thisWitness.isPresent()) {
-                    // Try again for the base witness
-                    thisWitness = aSection.getAlignment().stream()
-                            .filter(x -> x.getWitness().equals(parsed[0]) && !x.hasLayer()).findFirst();
-                }
-
-                if (thisWitness.isPresent()) {
-                    WitnessTokensModel witcolumn = thisWitness.get();
-                    wholeWitness.getTokens().addAll(witcolumn.getTokens());
-                    assert(witcolumn.getTokens().size() == aSection.getLength());
-                } else {
-                    // Add a bunch of nulls
-                    wholeWitness.getTokens().addAll(new ArrayList<>(Collections.nCopies((int) aSection.getLength(), null)));
-                }
-            }
-            // Add the WitnessTokensModel to the new AlignmentModel.
-            wholeTradition.addWitness(wholeWitness);
-        }
-        // Record the length of the whole alignment
-        wholeTradition.setLength(length);
-        return wholeTradition;
-    }
-
     private static class TabularExporterException extends Exception {
         TabularExporterException (String message) {
             super(message);
@@ -0,0 +1,203 @@
+package net.stemmaweb.exporter;
+
+import net.stemmaweb.model.WitnessDistancesModel;
+import net.stemmaweb.services.TraditionVersion;
+import net.stemmaweb.services.WitnessBitset;
+import org.neo4j.graphdb.Node;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Pairwise agreement counts between the witnesses of one or more sections. Each section's
+ * alignment table is read once; at every variant location, each distinct reading (or
+ * omission) gets a slot number, and each witness gets a bitset of the slots it reads and
+ * a bitset of the locations where its reading is known. The agreement of two witnesses is
+ * then the popcount of the intersection of their slot bitsets, and the number of locations
+ * they share the popcount of the intersection of their location bitsets.
+ *
+ * Sections are counted in parallel on a pool of our own, each in its own transaction, and
+ * the counts added up. The result for a tradition is
+ * cached against the tradition's version, so it is only computed again after the
+ * tradition has changed.
+ */
+
+public class WitnessDistances {
+    // Marks a cell whose reading is unknown, i.e. a lacuna
+    private static final int UNKNOWN = -1;
+    private static final int CACHE_SIZE = 64;
+
+    // Counts the sections of a request; a fixed number of threads, so that one large
+    // tradition can't take over the server or hold open a transaction for every section
+    private static final ExecutorService sectionPool = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread t = new Thread(r, "distance-sections");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private static final LinkedHashMap<String, Cached> cache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final List<String> sigla;
+    private final int locations;
+    private final int[][] agreements;
+    private final int[][] shared;
+
+    private WitnessDistances(List<String> sigla, int locations, int[][] agreements, int[][] shared) {
+        this.sigla = sigla;
+        this.locations = locations;
+        this.agreements = agreements;
+        this.shared = shared;
+    }
+
+    /**
+     * Returns the agreement matrix for the given sections of a tradition, from the cache
+     * if the tradition hasn't changed since it was last computed.
+     *
+     * @param tradId - the tradition ID
+     * @param sections - the section nodes to count over
+     * @param collapseRelated - the relation type up to which related readings are treated as the same
+     * @return the matrix
+     * @throws Exception if a section can't be read
+     */
+    public static WitnessDistancesModel forSections(String tradId, List<Node> sections, String collapseRelated)
+            throws Exception {
+        String key = String.format("%s/%s/%s", tradId, collapseRelated,
+                sections.stream().map(x -> String.valueOf(x.getId())).collect(Collectors.joining(",")));
+        long version = TraditionVersion.of(tradId);
+        synchronized (cache) {
+            Cached c = cache.get(key);
+            if (c != null && c.version == version)
+                return c.result;
+        }
+
+        List<WitnessDistances> counts = new ArrayList<>();
+        if (sections.size() == 1)
+            counts.add(countSection(sections.get(0), collapseRelated));
+        else {
+            List<Future<WitnessDistances>> pending = new ArrayList<>();
+            for (Node section : sections)
+                pending.add(sectionPool.submit(() -> countSection(section, collapseRelated)));
+            try {
+                for (Future<WitnessDistances> f : pending)
+                    counts.add(f.get());
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } finally {
+                pending.forEach(f -> f.cancel(true));
+            }
+        }
+        WitnessDistancesModel result = combine(counts).toModel();
+        synchronized (cache) {
+            cache.put(key, new Cached(version, result));
+        }
+        return result;
+    }
+
+    // Counts the agreements within a single section
+    private static WitnessDistances countSection(Node sectionNode, String collapseRelated) throws Exception {
+        AlignmentTable table = AlignmentTable.forSections(Collections.singletonList(sectionNode), collapseRelated);
+        int n = table.getSigla().size();
+
+        // Find the variant locations, and number the readings at each of them
+        ArrayList<int[]> rows = new ArrayList<>();
+        int slots = 0;
+        int[] seen = new int[n];
+        for (int i = 0; i < table.getLength(); i++) {
+            int[] row = new int[n];
+            int distinct = 0;
+            for (int w = 0; w < n; w++) {
+                int cell = table.get(w, i);
+                if (cell != AlignmentTable.GAP && table.is(cell, AlignmentTable.LACUNA)) {
+                    row[w] = UNKNOWN;
+                    continue;
+                }
+                int state = 0;
+                while (state < distinct && seen[state] != cell) state++;
+                if (state == distinct) seen[distinct++] = cell;
+                row[w] = state;
+            }
+            if (distinct < 2)
+                continue;
+            for (int w = 0; w < n; w++)
+                if (row[w] != UNKNOWN) row[w] += slots;
+            slots += distinct;
+            rows.add(row);
+        }
+
+        // Set up the bitsets for each witness
+        long[][] reads = new long[n][(slots + 63) >>> 6];
+        long[][] known = new long[n][(rows.size() + 63) >>> 6];
+        for (int loc = 0; loc < rows.size(); loc++) {
+            int[] row = rows.get(loc);
+            for (int w = 0; w < n; w++) {
+                if (row[w] == UNKNOWN) continue;
+                reads[w][row[w] >>> 6] |= 1L << row[w];
+                known[w][loc >>> 6] |= 1L << loc;
+            }
+        }
+
+        // ...and count
+        int[][] agreements = new int[n][n];
+        int[][] shared = new int[n][n];
+        for (int a = 0; a < n; a++)
+            for (int b = a; b < n; b++) {
+                agreements[a][b] = agreements[b][a] = WitnessBitset.intersectionCount(reads[a], reads[b]);
+                shared[a][b] = shared[b][a] = WitnessBitset.intersectionCount(known[a], known[b]);
+            }
+        return new WitnessDistances(table.getSigla(), rows.size(), agreements, shared);
+    }
+
+    // Adds up the counts of several sections, over all the witnesses found in any of them
+    private static WitnessDistances combine(List<WitnessDistances> parts) {
+        TreeSet<String> allSigla = new TreeSet<>();
+        parts.forEach(p -> allSigla.addAll(p.sigla));
+        List<String> sigla = new ArrayList<>(allSigla);
+        HashMap<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < sigla.size(); i++)
+            index.put(sigla.get(i), i);
+
+        int n = sigla.size();
+        int locations = 0;
+        int[][] agreements = new int[n][n];
+        int[][] shared = new int[n][n];
+        for (WitnessDistances p : parts) {
+            locations += p.locations;
+            int[] map = p.sigla.stream().mapToInt(index::get).toArray();
+            for (int a = 0; a < map.length; a++)
+                for (int b = 0; b < map.length; b++) {
+                    agreements[map[a]][map[b]] += p.agreements[a][b];
+                    shared[map[a]][map[b]] += p.shared[a][b];
+                }
+        }
+        return new WitnessDistances(sigla, locations, agreements, shared);
+    }
+
+    private WitnessDistancesModel toModel() {
+        int n = sigla.size();
+        int[][] disagreements = new int[n][n];
+        for (int a = 0; a < n; a++)
+            for (int b = 0; b < n; b++)
+                disagreements[a][b] = shared[a][b] - agreements[a][b];
+        return new WitnessDistancesModel(sigla, locations, agreements, disagreements);
+    }
+
+    private static class Cached {
+        private final long version;
+        private final WitnessDistancesModel result;
+
+        Cached(long version, WitnessDistancesModel result) {
+            this.version = version;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package net.stemmaweb.model;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * Reports the outcome of a single item in a batch request.
+ */
+
+@XmlRootElement
+@JsonInclude(Include.NON_NULL)
+public class BatchItemResultModel {
+    /**
+     * The HTTP status that the equivalent single request would have returned.
+     */
+    private Integer status;
+    /**
+     * The ID of the entity that was created or changed, if any.
+     */
+    private String id;
+    /**
+     * The error message, if the item failed.
+     */
+    private String error;
+
+    public BatchItemResultModel() {}
+
+    public BatchItemResultModel(Integer status, String id, String error) {
+        this.status = status;
+        this.id = id;
+        this.error = error;
+    }
+
+    public Integer getStatus() { return status; }
+    public void setStatus(Integer status) { this.status = status; }
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+    public String getError() { return error; }
+    public void setError(String error) { this.error = error; }
+}
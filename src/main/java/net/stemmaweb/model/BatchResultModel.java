@@ -0,0 +1,38 @@
+package net.stemmaweb.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * Summarises a batch request: one result per submitted item, in the order submitted,
+ * plus the graph elements that the batch as a whole created or changed.
+ */
+
+@XmlRootElement
+@JsonInclude(Include.NON_NULL)
+public class BatchResultModel {
+    /**
+     * The per-item results, in request order.
+     */
+    private List<BatchItemResultModel> results;
+    /**
+     * The readings, relations and sequences that were created or changed.
+     */
+    private GraphModel changes;
+
+    public BatchResultModel() {
+        this.results = new ArrayList<>();
+        this.changes = new GraphModel();
+    }
+
+    public List<BatchItemResultModel> getResults() { return results; }
+    public void setResults(List<BatchItemResultModel> results) { this.results = results; }
+    public void addResult(BatchItemResultModel result) { this.results.add(result); }
+    public GraphModel getChanges() { return changes; }
+    public void setChanges(GraphModel changes) { this.changes = changes; }
+}
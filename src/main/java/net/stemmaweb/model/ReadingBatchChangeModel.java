@@ -0,0 +1,26 @@
+package net.stemmaweb.model;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * One entry in a bulk reading change request: the ID of the reading to change, plus
+ * the list of key / value property changes to make to it.
+ */
+
+@XmlRootElement
+public class ReadingBatchChangeModel extends ReadingChangePropertyModel {
+    /**
+     * The ID of the reading to change
+     */
+    private String id;
+
+    public ReadingBatchChangeModel() { super(); }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+}
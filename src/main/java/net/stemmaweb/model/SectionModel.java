@@ -6,6 +6,7 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.SectionStatistics;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
@@ -35,6 +36,10 @@ public class SectionModel {
      * The graph rank of the section's end node. This is a rough indication of the length of the section.
      */
     private Long endRank;
+    /**
+     * The running statistics of the section, if they are up to date
+     */
+    private StatisticsModel statistics;
 
     @SuppressWarnings("unused")
     public SectionModel() {}
@@ -58,6 +63,7 @@ public class SectionModel {
             }
             Relationship sectionEnd = node.getSingleRelationship(ERelations.HAS_END, Direction.OUTGOING);
             setEndRank(Long.valueOf(sectionEnd.getEndNode().getProperty("rank").toString()));
+            setStatistics(SectionStatistics.of(node));
 
             tx.success();
         }
@@ -87,4 +93,10 @@ public class SectionModel {
     private void setEndRank(Long rank) {
         this.endRank = rank;
     }
+    public StatisticsModel getStatistics() {
+        return statistics;
+    }
+    public void setStatistics(StatisticsModel statistics) {
+        this.statistics = statistics;
+    }
 }
@@ -0,0 +1,85 @@
+package net.stemmaweb.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * JSON-aware data model for the statistics of a section, or of a whole tradition. The
+ * end rank is only given for a single section.
+ *
+ * The result will look like this:
+ *  { readings: 345, endRank: 120, witnesses: 8,
+ *    relations: { grammatical: 12, spelling: 30, transposition: 1 },
+ *    annotations: 4 }
+ */
+
+@XmlRootElement
+@JsonInclude(Include.NON_NULL)
+public class StatisticsModel {
+    /**
+     * The number of readings, not counting the start and end nodes
+     */
+    private long readings;
+    /**
+     * The rank of the end node
+     */
+    private Long endRank;
+    /**
+     * The number of witnesses that have some text
+     */
+    private int witnesses;
+    /**
+     * The number of relations of each type
+     */
+    private Map<String, Long> relations = new TreeMap<>();
+    /**
+     * The number of annotations that refer to the section or its readings
+     */
+    private long annotations;
+
+    public StatisticsModel() {}
+
+    public long getReadings() {
+        return readings;
+    }
+
+    public void setReadings(long readings) {
+        this.readings = readings;
+    }
+
+    public Long getEndRank() {
+        return endRank;
+    }
+
+    public void setEndRank(Long endRank) {
+        this.endRank = endRank;
+    }
+
+    public int getWitnesses() {
+        return witnesses;
+    }
+
+    public void setWitnesses(int witnesses) {
+        this.witnesses = witnesses;
+    }
+
+    public Map<String, Long> getRelations() {
+        return relations;
+    }
+
+    public void setRelations(Map<String, Long> relations) {
+        this.relations = relations;
+    }
+
+    public long getAnnotations() {
+        return annotations;
+    }
+
+    public void setAnnotations(long annotations) {
+        this.annotations = annotations;
+    }
+}
@@ -2,14 +2,13 @@ package net.stemmaweb.model;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.qmino.miredot.annotations.MireDotIgnore;
-import net.stemmaweb.exporter.DotExporter;
 import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.services.StemmaGraph;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
 
-import javax.ws.rs.core.Response;
 import javax.xml.bind.annotation.XmlRootElement;
 
 /**
@@ -43,20 +42,26 @@ public class StemmaModel {
 
     public StemmaModel(Node stemmaNode) {
         GraphDatabaseService db = stemmaNode.getGraphDatabase();
+        StemmaGraph stemma;
         try (Transaction tx = db.beginTx()) {
-            identifier = stemmaNode.getProperty("name").toString();
-            is_undirected = !stemmaNode.hasRelationship(ERelations.HAS_ARCHETYPE);
-            is_contaminated = stemmaNode.hasProperty("is_contaminated");
-            if (stemmaNode.hasProperty("from_jobid"))
-                from_jobid = (Long) stemmaNode.getProperty("from_jobid");
-
-            // Generate the dot as well.
             Node traditionNode = stemmaNode.getSingleRelationship(ERelations.HAS_STEMMA, Direction.INCOMING).getStartNode();
-            DotExporter writer = new DotExporter(db);
-            Response export = writer.writeNeo4JStemma(traditionNode.getProperty("id").toString(), identifier, false);
-            dot = export.getEntity().toString();
+            stemma = StemmaGraph.of(traditionNode.getProperty("id").toString(),
+                    stemmaNode.getProperty("name").toString(), db);
             tx.success();
         }
+        setFromGraph(stemma);
+    }
+
+    public StemmaModel(StemmaGraph stemma) {
+        setFromGraph(stemma);
+    }
+
+    private void setFromGraph(StemmaGraph stemma) {
+        identifier = stemma.getName();
+        is_undirected = stemma.getArchetype() == null;
+        is_contaminated = stemma.isContaminated();
+        from_jobid = stemma.getFromJobid();
+        dot = stemma.toDot(false);
     }
 
     // This should be read-only; we shouldn't need to construct a stemma model for a query. So far.
@@ -7,6 +7,8 @@ import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.qmino.miredot.annotations.MireDotIgnore;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.SectionStatistics;
+import net.stemmaweb.services.WitnessRegistry;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
@@ -67,6 +69,12 @@ public class TraditionModel {
     @MireDotIgnore
     private ArrayList<String> reltypes;
 
+    /**
+     * The statistics of the tradition, added up over its sections, if they are up to date
+     * for all of them
+     */
+    private StatisticsModel statistics;
+
     public TraditionModel() {}
 
     public TraditionModel(Node node) {
@@ -89,9 +97,8 @@ public class TraditionModel {
                 setOwner(ownerRel.getStartNode().getProperty("id").toString());
             }
 
-            witnesses = new ArrayList<>();
-            DatabaseService.getRelated(node, ERelations.HAS_WITNESS).forEach(
-                    x -> witnesses.add(x.getProperty("sigil").toString()));
+            witnesses = new ArrayList<>(WitnessRegistry.sigla(node));
+            statistics = SectionStatistics.forSections(DatabaseService.getRelated(node, ERelations.PART), false);
             // For now this is hard-coded
             reltypes = new ArrayList<>(Arrays.asList("grammatical", "spelling", "other", "punctuation",
                     "lexical", "orthographic", "uncertain"));
@@ -139,5 +146,7 @@ public class TraditionModel {
     public ArrayList<String> getReltypes() { return reltypes; }
     @SuppressWarnings("unused")
     public void setReltypes(ArrayList<String> reltypes) { this.reltypes = reltypes; }
+    public StatisticsModel getStatistics() { return statistics; }
+    public void setStatistics(StatisticsModel statistics) { this.statistics = statistics; }
 
 }
@@ -0,0 +1,49 @@
+package net.stemmaweb.model;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JSON-aware data model for a variant location, i.e. a run of ranks over which the
+ * witnesses of a section diverge, bounded on either side by ranks where they all agree.
+ * The witnesses are grouped by the sequence of readings they have over the run.
+ *
+ * The result will look like this:
+ *  { start: 3, end: 4,
+ *    variants: [ { readings: [ "123", "124" ], text: "with his", witnesses: [ "A", "C" ] },
+ *                { readings: [ "130" ], text: "in", witnesses: [ "B" ] } ] }
+ */
+
+@XmlRootElement
+public class VariantLocationModel {
+    private long start;
+    private long end;
+    private List<VariantModel> variants = new ArrayList<>();
+
+    public VariantLocationModel() {}
+
+    public long getStart() {
+        return start;
+    }
+
+    public void setStart(long start) {
+        this.start = start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public void setEnd(long end) {
+        this.end = end;
+    }
+
+    public List<VariantModel> getVariants() {
+        return variants;
+    }
+
+    public void setVariants(List<VariantModel> variants) {
+        this.variants = variants;
+    }
+}
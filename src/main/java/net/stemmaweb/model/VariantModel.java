@@ -0,0 +1,65 @@
+package net.stemmaweb.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JSON-aware data model for one variant at a variant location: the sequence of readings
+ * that a group of witnesses share there, and the witnesses in the group. An empty reading
+ * list means that the witnesses omit the passage.
+ */
+
+@XmlRootElement
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class VariantModel {
+    private List<String> readings = new ArrayList<>();
+    private String text;
+    private List<String> witnesses = new ArrayList<>();
+    private Boolean is_lemma;
+    private Boolean is_lacuna;
+
+    public VariantModel() {}
+
+    public List<String> getReadings() {
+        return readings;
+    }
+
+    public void setReadings(List<String> readings) {
+        this.readings = readings;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public void setText(String text) {
+        this.text = text;
+    }
+
+    public List<String> getWitnesses() {
+        return witnesses;
+    }
+
+    public void setWitnesses(List<String> witnesses) {
+        this.witnesses = witnesses;
+    }
+
+    public Boolean getIs_lemma() {
+        return is_lemma;
+    }
+
+    public void setIs_lemma(Boolean is_lemma) {
+        this.is_lemma = is_lemma;
+    }
+
+    public Boolean getIs_lacuna() {
+        return is_lacuna;
+    }
+
+    public void setIs_lacuna(Boolean is_lacuna) {
+        this.is_lacuna = is_lacuna;
+    }
+}
@@ -0,0 +1,86 @@
+package net.stemmaweb.model;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.List;
+
+/**
+ * JSON-aware data model for the pairwise agreement of witnesses over the variant
+ * locations of a tradition. The rows and columns of each matrix follow the order of
+ * the witness list. A variant location counts towards a pair of witnesses if both of
+ * them have a known reading there, where an omission counts as a reading and a lacuna
+ * does not; the distance of a pair is the proportion of those locations where they
+ * disagree, or null if there are none.
+ *
+ * The result will look like this:
+ *  { witnesses: [ "A", "B", ... ],
+ *    locations: 123,
+ *    agreements: [ [ 120, 98, ... ], ... ],
+ *    disagreements: [ [ 0, 22, ... ], ... ],
+ *    distances: [ [ 0.0, 0.183, ... ], ... ] }
+ */
+
+@XmlRootElement
+public class WitnessDistancesModel {
+    private List<String> witnesses;
+    private int locations;
+    private int[][] agreements;
+    private int[][] disagreements;
+
+    public WitnessDistancesModel() {}
+
+    public WitnessDistancesModel(List<String> witnesses, int locations, int[][] agreements, int[][] disagreements) {
+        this.witnesses = witnesses;
+        this.locations = locations;
+        this.agreements = agreements;
+        this.disagreements = disagreements;
+    }
+
+    public List<String> getWitnesses() {
+        return witnesses;
+    }
+
+    public void setWitnesses(List<String> witnesses) {
+        this.witnesses = witnesses;
+    }
+
+    public int getLocations() {
+        return locations;
+    }
+
+    public void setLocations(int locations) {
+        this.locations = locations;
+    }
+
+    public int[][] getAgreements() {
+        return agreements;
+    }
+
+    public void setAgreements(int[][] agreements) {
+        this.agreements = agreements;
+    }
+
+    public int[][] getDisagreements() {
+        return disagreements;
+    }
+
+    public void setDisagreements(int[][] disagreements) {
+        this.disagreements = disagreements;
+    }
+
+    public Double[][] getDistances() {
+        if (agreements == null || disagreements == null)
+            return null;
+        Double[][] distances = new Double[agreements.length][];
+        for (int a = 0; a < agreements.length; a++) {
+            distances[a] = new Double[agreements[a].length];
+            for (int b = 0; b < agreements[a].length; b++) {
+                int shared = agreements[a][b] + disagreements[a][b];
+                distances[a][b] = shared == 0 ? null : (double) disagreements[a][b] / shared;
+            }
+        }
+        return distances;
+    }
+
+    // The distances are derived from the counts, so there is nothing to set
+    public void setDistances(Double[][] distances) {}
+}
@@ -1,12 +1,17 @@
 package net.stemmaweb.parser;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.TreeNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.ReadingService;
-import org.apache.cxf.helpers.IOUtils;
-import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.neo4j.graphdb.GraphDatabaseService;
@@ -23,88 +28,152 @@ public class CollateXJsonParser {
     private GraphDatabaseServiceProvider dbServiceProvider = new GraphDatabaseServiceProvider();
     private GraphDatabaseService db = dbServiceProvider.getDatabase();
 
+    /**
+     * Parse a CollateX JSON alignment into the given section. The input is read with a
+     * streaming parser, one table row at a time, and the readings for each row are created
+     * as soon as the row has been read; only the tokens of the current row are held in
+     * memory. The witness list should come before the table, as CollateX writes it; if it
+     * doesn't, the table has to be read in whole before it can be used.
+     *
+     * @param filestream - the CollateX JSON data
+     * @param parentNode - the section node to which the collation belongs
+     * @return Response
+     */
     public Response parseCollateXJson(InputStream filestream, Node parentNode) {
-        // parse the JSON
-        ArrayList<String> collationWitnesses = new ArrayList<>();
-        ArrayList<ArrayList<ReadingModel>> collationTable = new ArrayList<>();
-
-        // JSON parsing block; it needs its own try/catch for JSON exceptions
-        try {
-            JSONObject table = new JSONObject(IOUtils.toString(filestream, "utf-8"));
-            // get the witness list from the clunky JSON interface
-            JSONArray jWit = table.getJSONArray("witnesses");
-            for (int i = 0; i < jWit.length(); i++) collationWitnesses.add(jWit.getString(i));
-
-            // get the table data from the clunky JSON interface
-            JSONArray jAlign = table.getJSONArray("table");
-            for (int i = 0; i < jAlign.length(); i++) {
-                ArrayList<ReadingModel> row = new ArrayList<>();
-                JSONArray jrow = jAlign.getJSONArray(i);
-                for (int j = 0; j < jrow.length(); j++) {
-                    String rtext = "";
-                    String rnormal = "";
-                    String rdisplay = "";
-                    boolean joinPrior = false;
-                    Boolean joinNext = false;
-                    JSONArray jcell = jrow.getJSONArray(j);
-                    JSONArray rownames = new JSONArray();
-                    JSONArray rowsource = new JSONArray();
-                    for (int k = 0; k < jcell.length(); k++) {
-                        JSONObject jtoken = jcell.getJSONObject(k);
-                        if (k == 0) {
-                            joinPrior = jtoken.has("join_prior") && jtoken.getBoolean("join_prior");
-                            jtoken.remove("join_prior");
-                        }
-                        // Patch together reading attributes from the CollateX token object:
-                        // Reading text
-                        String thisToken = jtoken.getString("t");
-                        rtext = readingAppend(rtext, jtoken, "t", joinNext);
-                        // Normal form
-                        if (jtoken.has("normal_form"))
-                            rnormal = readingAppend(rnormal, jtoken, "normal_form", joinNext);
-                        else
-                            rnormal = readingAppend(rnormal, jtoken, "t", joinNext);
-                        if (jtoken.has("display"))
-                            rdisplay = readingAppend(rdisplay, jtoken, "display", joinNext);
-                        else
-                            rdisplay = readingAppend(rdisplay, jtoken, "t", joinNext);
-                        jtoken.remove("t");
-                        jtoken.remove("normal_form");
-                        jtoken.remove("display");
-                        // Join_next attribute; the last value will prevail
-                        joinNext = jtoken.has("join_next") && jtoken.getBoolean("join_next");
-                        jtoken.remove("join_next");
-                        // Save the remaining token contents as a string in the annotation field, for future reference
-                        if (jtoken.length() > 0) {
-                            rownames.put(thisToken);
-                            rowsource.put(jtoken);
-                        }
+        Node traditionNode = DatabaseService.getTraditionNode(parentNode, db);
+        try (JsonParser jp = new ObjectMapper().getFactory().createParser(filestream);
+             Transaction tx = db.beginTx()) {
+            if (jp.nextToken() != JsonToken.START_OBJECT)
+                throw new JsonParseException(jp, "Expected a JSON object");
+            CollationWriter writer = null;
+            TreeNode unreadTable = null;
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String field = jp.getCurrentName();
+                jp.nextToken();
+                if (field.equals("witnesses")) {
+                    ArrayList<String> collationWitnesses = new ArrayList<>();
+                    if (jp.currentToken() != JsonToken.START_ARRAY)
+                        throw new JsonParseException(jp, "Expected a list of witnesses");
+                    while (jp.nextToken() != JsonToken.END_ARRAY)
+                        collationWitnesses.add(jp.getValueAsString());
+                    writer = new CollationWriter(traditionNode, parentNode, collationWitnesses);
+                    if (unreadTable != null) {
+                        JsonParser tp = unreadTable.traverse(jp.getCodec());
+                        tp.nextToken();
+                        readTable(tp, writer);
                     }
-                    ReadingModel rdg = new ReadingModel();
-                    // These might all be blank
-                    rdg.setText(rtext);
-                    rdg.setNormal_form(rnormal);
-                    // Only set the display value if it differs from the token itself
-                    if (!rdisplay.equals(rtext))
-                        rdg.setDisplay(rdisplay);
-                    rdg.setJoin_next(joinNext);
-                    rdg.setJoin_prior(joinPrior);
-                    if (rowsource.length() > 1)
-                        rdg.setExtra(rowsource.toJSONObject(rownames).toString());
-                    else if (rowsource.length() == 1)
-                        rdg.setExtra(rowsource.getJSONObject(0).toString());
-                    row.add(rdg);
-                }
-                collationTable.add(row);
+                } else if (field.equals("table")) {
+                    if (writer == null)
+                        unreadTable = jp.readValueAsTree();
+                    else
+                        readTable(jp, writer);
+                } else
+                    jp.skipChildren();
             }
-        } catch (JSONException|IOException e) {
+            if (writer == null)
+                throw new JsonParseException(jp, "No witness list found");
+
+            writer.finish();
+            tx.success();
+            String response = String.format("{\"parentId\":\"%d\"}", parentNode.getId());
+            return Response.status(Response.Status.CREATED).entity(response).build();
+        } catch (IOException e) {
             e.printStackTrace();
             return Response.serverError().entity(e.getMessage()).build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            String error = String.format("{\"error\": \"%s\"}", e.getMessage());
+            return Response.serverError().entity(error).build();
         }
+    }
 
-        // Now we have the data in good old Java classes; proceed.
-        Node traditionNode = DatabaseService.getTraditionNode(parentNode, db);
-        try (Transaction tx = db.beginTx()) {
+    // Reads the table rows, each of which is a list of cells, one per witness, each of
+    // which is a list of tokens. The parser must be at the start of the table.
+    private static void readTable(JsonParser jp, CollationWriter writer) throws Exception {
+        if (jp.currentToken() != JsonToken.START_ARRAY)
+            throw new JsonParseException(jp, "Expected an alignment table");
+        while (jp.nextToken() == JsonToken.START_ARRAY) {
+            ArrayList<ReadingModel> row = new ArrayList<>();
+            while (jp.nextToken() == JsonToken.START_ARRAY)
+                row.add(readCell(jp));
+            writer.addRow(row);
+        }
+    }
+
+    // Patches together a reading from the CollateX tokens in a cell.
+    private static ReadingModel readCell(JsonParser jp) throws IOException {
+        String rtext = "";
+        String rnormal = "";
+        String rdisplay = "";
+        boolean joinPrior = false;
+        Boolean joinNext = false;
+        ArrayList<String> rownames = new ArrayList<>();
+        ArrayList<ObjectNode> rowsource = new ArrayList<>();
+        for (int k = 0; jp.nextToken() == JsonToken.START_OBJECT; k++) {
+            ObjectNode jtoken = jp.readValueAsTree();
+            if (k == 0) {
+                joinPrior = jtoken.has("join_prior") && jtoken.get("join_prior").asBoolean();
+                jtoken.remove("join_prior");
+            }
+            // Patch together reading attributes from the CollateX token object:
+            // Reading text
+            if (!jtoken.has("t"))
+                throw new JsonParseException(jp, "Token has no text");
+            String thisToken = jtoken.get("t").asText();
+            rtext = readingAppend(rtext, jtoken, "t", joinNext);
+            // Normal form
+            if (jtoken.has("normal_form"))
+                rnormal = readingAppend(rnormal, jtoken, "normal_form", joinNext);
+            else
+                rnormal = readingAppend(rnormal, jtoken, "t", joinNext);
+            if (jtoken.has("display"))
+                rdisplay = readingAppend(rdisplay, jtoken, "display", joinNext);
+            else
+                rdisplay = readingAppend(rdisplay, jtoken, "t", joinNext);
+            jtoken.remove("t");
+            jtoken.remove("normal_form");
+            jtoken.remove("display");
+            // Join_next attribute; the last value will prevail
+            joinNext = jtoken.has("join_next") && jtoken.get("join_next").asBoolean();
+            jtoken.remove("join_next");
+            // Save the remaining token contents as a string in the annotation field, for future reference
+            if (jtoken.size() > 0) {
+                rownames.add(thisToken);
+                rowsource.add(jtoken);
+            }
+        }
+        ReadingModel rdg = new ReadingModel();
+        // These might all be blank
+        rdg.setText(rtext);
+        rdg.setNormal_form(rnormal);
+        // Only set the display value if it differs from the token itself
+        if (!rdisplay.equals(rtext))
+            rdg.setDisplay(rdisplay);
+        rdg.setJoin_next(joinNext);
+        rdg.setJoin_prior(joinPrior);
+        if (rowsource.size() > 1) {
+            ObjectNode extra = JsonNodeFactory.instance.objectNode();
+            for (int i = 0; i < rowsource.size(); i++)
+                extra.set(rownames.get(i), rowsource.get(i));
+            rdg.setExtra(extra.toString());
+        } else if (rowsource.size() == 1)
+            rdg.setExtra(rowsource.get(0).toString());
+        return rdg;
+    }
+
+    // Creates the readings of the collation, row by row. Must be used within a transaction.
+    private class CollationWriter {
+        private final Node parentNode;
+        private final List<String> collationWitnesses;
+        private final Node startNode;
+        private final HashMap<String, Node> lastWitnessReading = new HashMap<>();
+        private long rank = 1L;
+
+        CollationWriter(Node traditionNode, Node parentNode, List<String> collationWitnesses) {
+            this.parentNode = parentNode;
+            this.collationWitnesses = collationWitnesses;
             // Check that we have all the witnesses
             for (String witString : collationWitnesses) {
                 List<String> wit = parseWitnessSigil(witString);
@@ -113,55 +182,56 @@ public class CollateXJsonParser {
             }
 
             // Create the start node for the section
-            Node startNode = Util.createStartNode(parentNode);
-            HashMap<String, Node> lastWitnessReading = new HashMap<>();
+            startNode = Util.createStartNode(parentNode);
             collationWitnesses.forEach(x -> lastWitnessReading.put(x, startNode));
+        }
 
-            // Now create all the readings from our models
-            long rank = 1L;
-            for (ArrayList<ReadingModel> row : collationTable) {
-                HashMap<String, Node> createdReadings = new HashMap<>();
-                for (int w = 0; w < row.size(); w++) {
-                    ReadingModel rm = row.get(w);
-                    String thisWitness = collationWitnesses.get(w);
-                    List<String> witParts = parseWitnessSigil(thisWitness);
-                    String lookupKey = String.join(rm.getText(), rm.getNormal_form(), rm.getDisplay(),
-                            rm.getJoin_next().toString(), rm.getJoin_prior().toString());
-                    if (lookupKey.equals("nullfalsefalse")) continue;  // Don't add blank readings
-                    Node thisReading;
-                    if (createdReadings.containsKey(lookupKey)) {
-                        thisReading = createdReadings.get(lookupKey);
-                        thisReading.setProperty("extra",
-                                expandExtraField(thisReading.getProperty("extra").toString(),
-                                        witParts, rm.getExtra()));
-                    } else {
-                        thisReading = db.createNode(Nodes.READING);
-                        thisReading.setProperty("text", rm.getText());
-                        thisReading.setProperty("normal_form", rm.getNormal_form());
-                        if (rm.getDisplay() != null)
-                            thisReading.setProperty("display", rm.getDisplay());
-                        thisReading.setProperty("join_prior", rm.getJoin_prior());
-                        thisReading.setProperty("join_next", rm.getJoin_next());
-                        if (rm.getAnnotation() != null)
-                            thisReading.setProperty("annotation", rm.getAnnotation());
-                        if (rm.getExtra() != null) {
-                            // Wrap the reading's "extra" value in a hash value keyed on the witness.
-                            JSONObject thisExtra = new JSONObject();
-                            thisExtra.put(thisWitness, new JSONObject(rm.getExtra()));
-                            thisReading.setProperty("extra", thisExtra.toString());
-                        }
-                        thisReading.setProperty("rank", rank);
-                        thisReading.setProperty("section_id", parentNode.getId());
-                        createdReadings.put(lookupKey, thisReading);
+        void addRow(List<ReadingModel> row) throws JSONException {
+            HashMap<String, Node> createdReadings = new HashMap<>();
+            for (int w = 0; w < row.size(); w++) {
+                ReadingModel rm = row.get(w);
+                if (w >= collationWitnesses.size())
+                    throw new IllegalArgumentException("Alignment table has more columns than witnesses");
+                String thisWitness = collationWitnesses.get(w);
+                List<String> witParts = parseWitnessSigil(thisWitness);
+                String lookupKey = String.join(rm.getText(), rm.getNormal_form(), rm.getDisplay(),
+                        rm.getJoin_next().toString(), rm.getJoin_prior().toString());
+                if (lookupKey.equals("nullfalsefalse")) continue;  // Don't add blank readings
+                Node thisReading;
+                if (createdReadings.containsKey(lookupKey)) {
+                    thisReading = createdReadings.get(lookupKey);
+                    thisReading.setProperty("extra",
+                            expandExtraField(thisReading.getProperty("extra").toString(),
+                                    witParts, rm.getExtra()));
+                } else {
+                    thisReading = db.createNode(Nodes.READING);
+                    thisReading.setProperty("text", rm.getText());
+                    thisReading.setProperty("normal_form", rm.getNormal_form());
+                    if (rm.getDisplay() != null)
+                        thisReading.setProperty("display", rm.getDisplay());
+                    thisReading.setProperty("join_prior", rm.getJoin_prior());
+                    thisReading.setProperty("join_next", rm.getJoin_next());
+                    if (rm.getAnnotation() != null)
+                        thisReading.setProperty("annotation", rm.getAnnotation());
+                    if (rm.getExtra() != null) {
+                        // Wrap the reading's "extra" value in a hash value keyed on the witness.
+                        JSONObject thisExtra = new JSONObject();
+                        thisExtra.put(thisWitness, new JSONObject(rm.getExtra()));
+                        thisReading.setProperty("extra", thisExtra.toString());
                     }
-                    Node lastReading = lastWitnessReading.get(thisWitness);
-                    ReadingService.addWitnessLink(lastReading, thisReading, witParts.get(0), witParts.get(1));
-                    lastWitnessReading.put(thisWitness, thisReading);
+                    thisReading.setProperty("rank", rank);
+                    thisReading.setProperty("section_id", parentNode.getId());
+                    createdReadings.put(lookupKey, thisReading);
                 }
-                if (createdReadings.size() > 0)
-                    rank++;
+                Node lastReading = lastWitnessReading.get(thisWitness);
+                ReadingService.addWitnessLink(lastReading, thisReading, witParts.get(0), witParts.get(1));
+                lastWitnessReading.put(thisWitness, thisReading);
             }
+            if (createdReadings.size() > 0)
+                rank++;
+        }
 
+        void finish() {
             Node endNode = Util.createEndNode(parentNode);
             endNode.setProperty("rank", rank);
             for (String witString : collationWitnesses) {
@@ -169,17 +239,7 @@ public class CollateXJsonParser {
                 Node lastReading = lastWitnessReading.get(witString);
                 ReadingService.addWitnessLink(lastReading, endNode, witParts.get(0), witParts.get(1));
             }
-            tx.success();
-            String response = String.format("{\"parentId\":\"%d\"}", parentNode.getId());
-            return Response.status(Response.Status.CREATED).entity(response).build();
-        } catch (IllegalArgumentException e) {
-            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
-        } catch (Exception e) {
-            e.printStackTrace();
-            String error = String.format("{\"error\": \"%s\"}", e.getMessage());
-            return Response.serverError().entity(error).build();
         }
-
     }
 
     private static String expandExtraField (String origJson, List<String> witness, String newJSON) throws JSONException {
@@ -217,15 +277,14 @@ public class CollateXJsonParser {
         return parts;
     }
 
-    private static String readingAppend (String current, JSONObject token, String key, Boolean joinNext)
-            throws JSONException {
+    private static String readingAppend (String current, ObjectNode token, String key, Boolean joinNext) {
         StringBuilder prior = new StringBuilder(current);
         boolean noSpace = prior.length() == 0 || joinNext;
-        if (token.has("join_prior") && token.getBoolean("join_prior"))
+        if (token.has("join_prior") && token.get("join_prior").asBoolean())
             noSpace = true;
         if (!noSpace)
             prior.append(" ");
-        prior.append(token.get(key));
+        prior.append(token.get(key).asText());
         return prior.toString();
     }
 
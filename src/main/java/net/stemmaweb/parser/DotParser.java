@@ -13,6 +13,7 @@ import net.stemmaweb.rest.Nodes;
 import com.alexmerz.graphviz.Parser;
 
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.WitnessRegistry;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.traversal.Evaluators;
@@ -89,7 +90,7 @@ public class DotParser {
             }
             // Get a list of the existing (extant) tradition witnesses
             HashMap<String, Node> traditionWitnesses = new HashMap<>();
-            DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS)
+            WitnessRegistry.witnesses(traditionNode)
                     .forEach(x -> traditionWitnesses.put(x.getProperty("sigil").toString(), x));
 
             // Create the new stemma node
@@ -5,6 +5,7 @@ import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.RelationType;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.SectionOrderCache;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.Node;
 import org.w3c.dom.*;
@@ -175,6 +176,7 @@ public class GraphMLParser {
                     lastExisting.createRelationshipTo(newSection, ERelations.NEXT);
                 }
                 traditionNode.createRelationshipTo(newSection, ERelations.PART);
+                SectionOrderCache.invalidate(tradId);
                 parentId = String.valueOf(newSection.getId());
             }
 
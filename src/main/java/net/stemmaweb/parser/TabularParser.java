@@ -5,16 +5,29 @@ import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.hssf.eventusermodel.FormatTrackingHSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.record.*;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
 import org.neo4j.graphdb.*;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
 
 import javax.ws.rs.core.Response;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 /**
@@ -25,7 +38,8 @@ public class TabularParser {
     private GraphDatabaseService db = new GraphDatabaseServiceProvider().getDatabase();
 
     /**
-     * Parse a comma- or tab-separated file stream into a graph.
+     * Parse a comma- or tab-separated file stream into a graph. The file is read a line
+     * at a time, and each row is added to the collation as soon as it has been read.
      *
      * @param fileData - an InputStream containing the CSV/TSV data
      * @param sectionNode - the section of the tradition to which this collation belongs
@@ -34,22 +48,19 @@ public class TabularParser {
      * @return Response
      */
     public Response parseCSV(InputStream fileData, Node sectionNode, char sepChar) {
-        // Parse the CSV file
-        ArrayList<String[]> csvRows = new ArrayList<>();
-        try {
-            CSVReader reader = new CSVReader(new InputStreamReader(fileData), sepChar);
-            String[] nextLine;
-            while ((nextLine = reader.readNext()) != null)
-                csvRows.add(nextLine);
-        } catch (Exception e) {
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                .entity(String.format("{\"error\":\"%s\"", e.getMessage())).build();
-        }
-        return parseTableToCollation(csvRows, sectionNode);
+        return parseTableToCollation(builder -> {
+            try (CSVReader reader = new CSVReader(new InputStreamReader(fileData), sepChar)) {
+                String[] nextLine;
+                while ((nextLine = reader.readNext()) != null)
+                    builder.addRow(nextLine);
+            }
+        }, sectionNode);
     }
 
     /**
-     * Parse an Excel file stream into a graph.
+     * Parse an Excel file stream into a graph. The first sheet of the workbook is read
+     * through POI's event API, one cell at a time, and each row is added to the collation
+     * as soon as it is complete, so that the spreadsheet is never held in memory as a whole.
      *
      * @param fileData - an InputStream containing the CSV/TSV data
      * @param sectionNode - the section of the tradition to which this collation belongs
@@ -58,62 +69,237 @@ public class TabularParser {
      * @return Response
      */
     public Response parseExcel(InputStream fileData, Node sectionNode, String excelType) {
-        ArrayList<String[]> excelRows;
+        // Both event readers need random access to the file, so spool the upload to disk
+        File spooled;
         try {
-            Workbook workbook;
-            if (excelType.equals("xls")) {
-                workbook = new HSSFWorkbook(fileData);
-            } else { // it must be xlsx
-                workbook = new XSSFWorkbook(fileData);
-            }
-            excelRows = getTableFromWorkbook(workbook);
-        } catch (Exception e) {
+            spooled = File.createTempFile("stemmarest", "." + excelType);
+            Files.copy(fileData, spooled.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                    .entity(String.format("{\"error\":\"%s\"", e.getMessage())).build();
+                    .entity(String.format("{\"error\":\"%s\"}", e.getMessage())).build();
+        }
+        try {
+            if (excelType.equals("xls"))
+                return parseTableToCollation(builder -> readXlsEvents(spooled, new RowAssembler(builder)), sectionNode);
+            else // it must be xlsx
+                return parseTableToCollation(builder -> readXlsxEvents(spooled, new RowAssembler(builder)), sectionNode);
+        } finally {
+            if (!spooled.delete())
+                spooled.deleteOnExit();
+        }
+    }
+
+    // Read the first sheet of an XLSX file with the SAX sheet handler.
+    private static void readXlsxEvents(File file, RowAssembler rows) throws Exception {
+        OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+        try {
+            XSSFReader reader = new XSSFReader(pkg);
+            ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+            XSSFSheetXMLHandler.SheetContentsHandler contents = new XSSFSheetXMLHandler.SheetContentsHandler() {
+                private int rowNum;
+                private int nextCol;
+
+                @Override
+                public void startRow(int rowNum) {
+                    this.rowNum = rowNum;
+                    this.nextCol = 0;
+                }
+
+                @Override
+                public void endRow(int rowNum) {
+                    rows.endRow();
+                }
+
+                @Override
+                public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+                    int col = cellReference == null ? nextCol : new CellReference(cellReference).getCol();
+                    rows.cell(rowNum, col, formattedValue);
+                    nextCol = col + 1;
+                }
+
+                @Override
+                public void headerFooter(String text, boolean isHeader, String tagName) {}
+            };
+            XMLReader parser = SAXParserFactory.newInstance().newSAXParser().getXMLReader();
+            parser.setContentHandler(new XSSFSheetXMLHandler(
+                    reader.getStylesTable(), strings, contents, new DataFormatter(), false));
+            Iterator<InputStream> sheets = reader.getSheetsData();
+            if (sheets.hasNext()) {
+                try (InputStream sheet = sheets.next()) {
+                    parser.parse(new InputSource(sheet));
+                }
+            }
+            rows.endRow();
+        } finally {
+            pkg.revert();
+        }
+    }
+
+    // Read the first sheet of an XLS file with the HSSF record listener.
+    private static void readXlsEvents(File file, RowAssembler rows) throws Exception {
+        try (NPOIFSFileSystem fs = new NPOIFSFileSystem(file, true)) {
+            HSSFRequest request = new HSSFRequest();
+            request.addListenerForAllRecords(new XlsSheetListener(rows).formats);
+            new HSSFEventFactory().processWorkbookEvents(request, fs.getRoot());
+            rows.endRow();
+        }
+    }
+
+    // Passes the cell values of the first worksheet to a row assembler. The cell records of a
+    // sheet come in row order, so the assembler can tell when each row is complete.
+    private static class XlsSheetListener implements HSSFListener {
+        // Wraps this listener, and keeps track of the number formats for us
+        private final FormatTrackingHSSFListener formats = new FormatTrackingHSSFListener(this);
+        private final RowAssembler rows;
+        private SSTRecord strings;
+        private int sheetIndex = -1;
+        private int formulaRow = -1;
+        private int formulaCol;
+
+        XlsSheetListener(RowAssembler rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public void processRecord(Record record) {
+            if (record instanceof BOFRecord) {
+                if (((BOFRecord) record).getType() == BOFRecord.TYPE_WORKSHEET) sheetIndex++;
+                return;
+            }
+            if (record instanceof SSTRecord) {
+                strings = (SSTRecord) record;
+                return;
+            }
+            if (sheetIndex != 0) return;
+            if (record instanceof LabelSSTRecord) {
+                LabelSSTRecord r = (LabelSSTRecord) record;
+                rows.cell(r.getRow(), r.getColumn(), strings.getString(r.getSSTIndex()).getString());
+            } else if (record instanceof LabelRecord) {
+                LabelRecord r = (LabelRecord) record;
+                rows.cell(r.getRow(), r.getColumn(), r.getValue());
+            } else if (record instanceof NumberRecord) {
+                NumberRecord r = (NumberRecord) record;
+                rows.cell(r.getRow(), r.getColumn(), formats.formatNumberDateCell(r));
+            } else if (record instanceof BoolErrRecord) {
+                BoolErrRecord r = (BoolErrRecord) record;
+                if (r.isBoolean())
+                    rows.cell(r.getRow(), r.getColumn(), r.getBooleanValue() ? "TRUE" : "FALSE");
+            } else if (record instanceof FormulaRecord) {
+                FormulaRecord r = (FormulaRecord) record;
+                if (r.hasCachedResultString()) {
+                    // The value is in the StringRecord that follows
+                    formulaRow = r.getRow();
+                    formulaCol = r.getColumn();
+                } else
+                    rows.cell(r.getRow(), r.getColumn(), formats.formatNumberDateCell(r));
+            } else if (record instanceof StringRecord && formulaRow >= 0) {
+                rows.cell(formulaRow, formulaCol, ((StringRecord) record).getString());
+                formulaRow = -1;
+            }
+        }
+    }
+
+    // Collects spreadsheet cells, which arrive one at a time, into rows for the collation
+    // builder. The first row gives the sigla, and sets the width of the rows that follow.
+    private static class RowAssembler {
+        private final CollationBuilder builder;
+        private final ArrayList<String> cells = new ArrayList<>();
+        private String[] header;
+        private int currentRow = -1;
+
+        RowAssembler(CollationBuilder builder) {
+            this.builder = builder;
+        }
+
+        void cell(int rowNum, int col, String value) {
+            if (rowNum != currentRow) {
+                endRow();
+                currentRow = rowNum;
+            }
+            while (cells.size() <= col) cells.add(null);
+            cells.set(col, value);
+        }
+
+        void endRow() {
+            if (currentRow < 0) return;
+            String[] row = cells.toArray(new String[header == null ? cells.size() : header.length]);
+            if (header == null) header = row;
+            builder.addRow(row);
+            cells.clear();
+            currentRow = -1;
         }
-        return parseTableToCollation(excelRows, sectionNode);
     }
 
-    // Extract a table from the first sheet of an Excel workbook.
-    private ArrayList<String[]> getTableFromWorkbook (Workbook workbook) throws Exception {
-        ArrayList<String[]> excelRows = new ArrayList<>();
-        Sheet worksheet = workbook.getSheetAt(0);
-        Iterator<Row> rowIterator = worksheet.rowIterator();
-        int expectedSize = 0;
-        while (rowIterator.hasNext()) {
-            ArrayList<String> rowArray = new ArrayList<>();
-            Row row = rowIterator.next();
-
-            // Note the size that we expect our rows to be
-            if (expectedSize == 0 )
-                expectedSize = row.getPhysicalNumberOfCells();
-            else if (row.getPhysicalNumberOfCells() > expectedSize)
-                throw new Exception(String.format("Spreadsheet row %d has too many columns!", row.getRowNum()));
-
-            row.forEach(x -> rowArray.add(x.getStringCellValue()));
-            excelRows.add(rowArray.toArray(new String[expectedSize]));
-        }
-        return excelRows;
+    // A source of table rows, which adds each of its rows to the collation builder in turn
+    @FunctionalInterface
+    private interface TableReader {
+        void readInto(CollationBuilder builder) throws Exception;
     }
 
-    private Response parseTableToCollation(ArrayList<String[]> tableData, Node parentNode) {
+    private Response parseTableToCollation(TableReader table, Node parentNode) {
         String response;
-        Response.Status result = Response.Status.OK;
-        Node traditionNode = DatabaseService.getRelated(parentNode, ERelations.PART).get(0);
+        Response.Status result;
+        try (CollationBuilder builder = new CollationBuilder(parentNode)) {
+            table.readInto(builder);
+            builder.finish();
+            // We are done!
+            result = Response.Status.CREATED;
+            response = String.format("{\"parentId\":\"%d\"}", parentNode.getId());
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            result = Response.Status.INTERNAL_SERVER_ERROR;
+            response = String.format("{\"error\":\"%s\"}", e.getMessage());
+        }
+
+        return Response.status(result).entity(response).build();
+    }
+
+    /**
+     * Builds the collation graph from table rows, which are added one at a time. The first
+     * row gives the witness sigla, and each later row the readings at the next rank; a later
+     * row may not have a value in a column that has no sigil. Only the last reading of each
+     * witness is kept between rows. The graph is built in a single
+     * transaction, which is committed by finish(); if the builder is closed before that, the
+     * transaction is rolled back.
+     */
+    private class CollationBuilder implements AutoCloseable {
+        private final Node parentNode;
+        private final Node traditionNode;
+        private final Transaction tx;
+        private Node startNode;
+        private Node endNode;
+        private String[] witnessList;
+        // Keep a table of the last-spotted reading for each witness
+        private final HashMap<String, Node> lastReading = new HashMap<>();
+        private final HashMap<String, String[]> layerWitnesses = new HashMap<>();
+        private long rank = 0;
+
+        CollationBuilder(Node parentNode) {
+            this.parentNode = parentNode;
+            this.traditionNode = DatabaseService.getRelated(parentNode, ERelations.PART).get(0);
+            this.tx = db.beginTx();
+        }
+
+        void addRow(String[] row) {
+            if (witnessList == null)
+                addWitnesses(row);
+            else
+                addReadings(row, ++rank);
+        }
 
-        try (Transaction tx = db.beginTx()) {
+        // Get the witnesses from the first row of the table
+        private void addWitnesses(String[] sigla) {
             // Make the start node
-            Node startNode = Util.createStartNode(parentNode);
-            Node endNode = Util.createEndNode(parentNode);
-            endNode.setProperty("rank", (long) tableData.size());
-
-            // Get the witnesses from the first row of the table
-            String[] witnessList = tableData.get(0);
-            // Keep a table of the last-spotted reading for each witness
-            HashMap<String, Node> lastReading = new HashMap<>();
+            startNode = Util.createStartNode(parentNode);
+            endNode = Util.createEndNode(parentNode);
+            witnessList = sigla;
             // Add the non-layer witnesses to the graph
-            HashMap<String, String[]> layerWitnesses = new HashMap<>();
-            for (String sigil: witnessList) {
+            for (String sigil : witnessList) {
+                // Skip any column without a sigil
+                if (sigil == null || sigil.equals(""))
+                    continue;
                 // See if it is a layered witness, of the form XX (YY)
                 String[] sigilParts = sigil.split("\\s+\\(");  // now we have ["XX", "YY)"]
                 if (sigilParts.length == 1) // it is not a layered witness
@@ -121,81 +307,86 @@ public class TabularParser {
                 else if (sigilParts.length == 2) // it is a layered witness; store a ref to its base
                     layerWitnesses.put(sigil, sigilParts);
                 else   // what is this i don't even
-                    return Response.status(Response.Status.BAD_REQUEST)
-                        .entity("Malformed sigil " + sigil).build();
+                    throw new IllegalArgumentException("Malformed sigil " + sigil);
 
                 lastReading.put(sigil, startNode);
             }
+        }
 
-            // Go through the remaining rows and create the readings
-            for (int idx = 1; idx < tableData.size(); idx++) { // for each row
-                String[] collationRow = tableData.get(idx);
-                HashMap<String, Node> createdReadings = new HashMap<>();
-                HashMap<Relationship, ArrayList<String>> linkWitnesses = new HashMap<>();
-                for (int j = 0; j < collationRow.length; j++) {
-                    String reading = collationRow[j];
-                    String sigil = witnessList[j];
-                    Node lastNode = lastReading.get(sigil);
-                    // Is it an empty reading?
-                    if (reading == null || reading.equals(""))
+        // Create the readings for a row
+        private void addReadings(String[] collationRow, long idx) {
+            HashMap<String, Node> createdReadings = new HashMap<>();
+            HashMap<Relationship, ArrayList<String>> linkWitnesses = new HashMap<>();
+            for (int j = 0; j < collationRow.length; j++) {
+                String reading = collationRow[j];
+                // Is it an empty reading?
+                if (reading == null || reading.equals(""))
+                    continue;
+                String sigil = j < witnessList.length ? witnessList[j] : null;
+                if (sigil == null || !lastReading.containsKey(sigil))
+                    throw new IllegalStateException(String.format("Table row %d has too many columns!", idx));
+                Node lastNode = lastReading.get(sigil);
+                // Is it a continuation of a lacuna?
+                if (reading.equals("#LACUNA#"))
+                    if (lastNode.hasProperty("is_lacuna"))
                         continue;
-                    // Is it a continuation of a lacuna?
-                    if (reading.equals("#LACUNA#"))
-                        if (lastNode.hasProperty("is_lacuna"))
-                            continue;
 
-                    // Does the reading exist?
-                    Node readingNode = createdReadings.getOrDefault(reading, null);
-                    if (readingNode == null) {
-                        readingNode = db.createNode(Nodes.READING);
-                        readingNode.setProperty("section_id", parentNode.getId());
-                        readingNode.setProperty("rank", (long) idx);
-                        readingNode.setProperty("text", reading);
-                        if (reading.equals("#LACUNA#"))
-                            readingNode.setProperty("is_lacuna", true);
-                        createdReadings.put(reading, readingNode);
-                    }
-                    // Does the reading have a relationship with lastNode? If not, create it.
-                    Relationship existingSeq = Util.getSequenceIfExists(lastNode, readingNode);
-                    if (existingSeq == null)
-                        existingSeq = lastNode.createRelationshipTo(readingNode, ERelations.SEQUENCE);
-
-                    // Get that relationship's witnesses list, or create it if it doesn't exist.
-                    ArrayList<String> seqWitnesses = linkWitnesses.getOrDefault(existingSeq, null);
-                    if (seqWitnesses == null) {
-                        seqWitnesses = new ArrayList<>();
-                        linkWitnesses.put(existingSeq, seqWitnesses);
-                    }
-                    // Add this sigil to the list and store the reading as its last
-                    seqWitnesses.add(sigil);
-                    lastReading.put(sigil, readingNode);
+                // Does the reading exist?
+                Node readingNode = createdReadings.getOrDefault(reading, null);
+                if (readingNode == null) {
+                    readingNode = db.createNode(Nodes.READING);
+                    readingNode.setProperty("section_id", parentNode.getId());
+                    readingNode.setProperty("rank", idx);
+                    readingNode.setProperty("text", reading);
+                    if (reading.equals("#LACUNA#"))
+                        readingNode.setProperty("is_lacuna", true);
+                    createdReadings.put(reading, readingNode);
                 }
-                // Now that we have been through the row, create the witness / layer attributes
-                // for the created relationships.
-                for (Relationship r : linkWitnesses.keySet()) {
-                    ArrayList<String> witList = linkWitnesses.get(r);
-                    HashMap<String, ArrayList<String>> layerMap = new HashMap<>();
-                    layerMap.put("witnesses", new ArrayList<>());
-                    for (String w : witList)
-                        if (layerWitnesses.containsKey(w)) {
-                            // It's a layer witness. Get the layer label and the base witness
-                            String baseWit = layerWitnesses.get(w)[0];
-                            String ll = layerWitnesses.get(w)[1];
-                            String layerLabel = ll.substring(0, ll.indexOf(')'));
-                            // See if the base witness is already in the list
-                            if (witList.contains(baseWit))
-                                continue;
-                            // Add the layer label key and the witness.
-                            if (!layerMap.containsKey(layerLabel))
-                                layerMap.put(layerLabel, new ArrayList<>());
-                            layerMap.get(layerLabel).add(baseWit);
-                        } else layerMap.get("witnesses").add(w);
-                    // Finally, set the properties for each layer label
-                    layerMap.forEach((x, y) -> r.setProperty(x, y.toArray(new String[0])));
+                // Does the reading have a relationship with lastNode? If not, create it.
+                Relationship existingSeq = Util.getSequenceIfExists(lastNode, readingNode);
+                if (existingSeq == null)
+                    existingSeq = lastNode.createRelationshipTo(readingNode, ERelations.SEQUENCE);
+
+                // Get that relationship's witnesses list, or create it if it doesn't exist.
+                ArrayList<String> seqWitnesses = linkWitnesses.getOrDefault(existingSeq, null);
+                if (seqWitnesses == null) {
+                    seqWitnesses = new ArrayList<>();
+                    linkWitnesses.put(existingSeq, seqWitnesses);
                 }
+                // Add this sigil to the list and store the reading as its last
+                seqWitnesses.add(sigil);
+                lastReading.put(sigil, readingNode);
             }
+            // Now that we have been through the row, create the witness / layer attributes
+            // for the created relationships.
+            for (Relationship r : linkWitnesses.keySet()) {
+                ArrayList<String> witList = linkWitnesses.get(r);
+                HashMap<String, ArrayList<String>> layerMap = new HashMap<>();
+                layerMap.put("witnesses", new ArrayList<>());
+                for (String w : witList)
+                    if (layerWitnesses.containsKey(w)) {
+                        // It's a layer witness. Get the layer label and the base witness
+                        String baseWit = layerWitnesses.get(w)[0];
+                        String ll = layerWitnesses.get(w)[1];
+                        String layerLabel = ll.substring(0, ll.indexOf(')'));
+                        // See if the base witness is already in the list
+                        if (witList.contains(baseWit))
+                            continue;
+                        // Add the layer label key and the witness.
+                        if (!layerMap.containsKey(layerLabel))
+                            layerMap.put(layerLabel, new ArrayList<>());
+                        layerMap.get(layerLabel).add(baseWit);
+                    } else layerMap.get("witnesses").add(w);
+                // Finally, set the properties for each layer label
+                layerMap.forEach((x, y) -> r.setProperty(x, y.toArray(new String[0])));
+            }
+        }
 
-            // Tie all the last readings to the end node.
+        // Tie all the last readings to the end node, and commit the graph.
+        void finish() {
+            if (witnessList == null)
+                throw new IllegalArgumentException("No data found in table");
+            endNode.setProperty("rank", rank + 1);
             for (Node readingNode : lastReading.values()) {
                 Relationship endRelation = Util.getSequenceIfExists(readingNode, endNode);
                 if (endRelation == null) {
@@ -208,21 +399,12 @@ public class TabularParser {
                     endRelation.setProperty("witnesses", readingWits.toArray(new String[0]));
                 } // else we've already connected this reading.
             }
-
-            // We are done!
-            result = Response.Status.CREATED;
-            response = String.format("{\"parentId\":\"%d\"}", parentNode.getId());
             tx.success();
-        } catch (IllegalArgumentException e) {
-            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
-        } catch (Exception e) {
-            e.printStackTrace();
-            if (result.equals(Response.Status.OK))
-                result = Response.Status.INTERNAL_SERVER_ERROR;
-            response = String.format("{\"error\":\"%s\"}", e.getMessage());
         }
 
-        return Response.status(result).entity(response).build();
-
+        @Override
+        public void close() {
+            tx.close();
+        }
     }
 }
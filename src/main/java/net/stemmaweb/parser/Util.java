@@ -4,6 +4,7 @@ import net.stemmaweb.model.RelationTypeModel;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.WitnessRegistry;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.BranchState;
 import org.w3c.dom.Document;
@@ -12,7 +13,6 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.stream.Collectors;
 
 /**
  * Utility functions for the parsers
@@ -58,13 +58,8 @@ public class Util {
     }
 
     static void findOrCreateExtant(Node traditionNode, String sigil) {
-        // This list should contain either zero or one items.
-        ArrayList<Node> existingWit = DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS)
-                .stream().filter(x -> x.hasProperty("hypothetical")
-                        && x.getProperty("hypothetical").equals(false)
-                        && x.getProperty("sigil").equals(sigil))
-                .collect(Collectors.toCollection(ArrayList::new));
-        if (existingWit.size() == 0) {
+        Node existingWit = WitnessRegistry.lookup(traditionNode, sigil);
+        if (existingWit == null || !existingWit.getProperty("hypothetical", true).equals(false)) {
             Node witnessNode = createWitness(traditionNode, sigil, false);
             traditionNode.createRelationshipTo(witnessNode, ERelations.HAS_WITNESS);
         //     return witnessNode;
@@ -26,6 +26,8 @@ public class ApplicationConfig extends Application {
     public Set<Class<?>> getClasses() {
         Set<Class<?>> s = new HashSet<>();
         s.add(Root.class);
+        s.add(DeadlockRetry.class);
+        s.add(RequestTransactionFilter.class);
 
         return s;
     }
@@ -0,0 +1,165 @@
+package net.stemmaweb.rest;
+
+import com.sun.jersey.api.core.HttpContext;
+import com.sun.jersey.api.model.AbstractResourceMethod;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ResourceMethodDispatchAdapter;
+import com.sun.jersey.spi.container.ResourceMethodDispatchProvider;
+import com.sun.jersey.spi.dispatch.RequestDispatcher;
+import org.neo4j.graphdb.TransientFailureException;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.stemmaweb.rest.Util.jsonerror;
+
+/**
+ * Re-runs a request whose transaction failed for a transient reason, such as a deadlock
+ * between concurrent edits, instead of letting it fail with a server error. Only methods
+ * marked @Retryable are retried; these must do all their work in a single transaction, so
+ * that a failed attempt leaves nothing behind, and must let TransientFailureException
+ * propagate rather than turning it into an error response.
+ *
+ * Each retry waits for a random time up to an exponentially growing limit, so that the
+ * competing requests don't collide again straight away. After MAX_ATTEMPTS attempts the
+ * request fails with 503.
+ *
+ * Registered as a provider class in ApplicationConfig.
+ */
+
+@Provider
+public class DeadlockRetry implements ResourceMethodDispatchAdapter {
+
+    /**
+     * Marks a mutating method that can safely be run again after a transient failure.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.METHOD)
+    public @interface Retryable {}
+
+    public static final int MAX_ATTEMPTS = 5;
+    private static final long BASE_DELAY_MS = 20;
+    private static final long MAX_DELAY_MS = 1000;
+
+    // Retry metrics
+    private static final AtomicLong retries = new AtomicLong();
+    private static final AtomicLong recovered = new AtomicLong();
+    private static final AtomicLong exhausted = new AtomicLong();
+
+    /**
+     * @return the number of times a request has been re-run
+     */
+    public static long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return the number of requests that succeeded after one or more retries
+     */
+    public static long getRecovered() {
+        return recovered.get();
+    }
+
+    /**
+     * @return the number of requests that failed on every attempt
+     */
+    public static long getExhausted() {
+        return exhausted.get();
+    }
+
+    @Override
+    public ResourceMethodDispatchProvider adapt(ResourceMethodDispatchProvider provider) {
+        return new ResourceMethodDispatchProvider() {
+            @Override
+            public RequestDispatcher create(AbstractResourceMethod method) {
+                RequestDispatcher dispatcher = provider.create(method);
+                if (dispatcher == null || !method.isAnnotationPresent(Retryable.class))
+                    return dispatcher;
+                return new RetryingDispatcher(dispatcher);
+            }
+        };
+    }
+
+    private static class RetryingDispatcher implements RequestDispatcher {
+        private final RequestDispatcher dispatcher;
+
+        RetryingDispatcher(RequestDispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        @Override
+        public void dispatch(Object resource, HttpContext context) {
+            // Keep the request body, so that it can be read again on each attempt
+            ContainerRequest request = (ContainerRequest) context.getRequest();
+            byte[] body = readBody(request.getEntityInputStream());
+            for (int attempt = 1; ; attempt++) {
+                request.setEntityInputStream(new ByteArrayInputStream(body));
+                try {
+                    dispatcher.dispatch(resource, context);
+                    if (attempt > 1)
+                        recovered.incrementAndGet();
+                    return;
+                } catch (RuntimeException e) {
+                    TransientFailureException cause = transientCause(e);
+                    if (cause == null)
+                        throw e;
+                    if (attempt == MAX_ATTEMPTS) {
+                        exhausted.incrementAndGet();
+                        context.getResponse().setResponse(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                                .type(MediaType.APPLICATION_JSON_TYPE)
+                                .entity(jsonerror(String.format("Gave up after %d attempts: %s",
+                                        attempt, cause.getMessage()))).build());
+                        return;
+                    }
+                    retries.incrementAndGet();
+                    try {
+                        Thread.sleep(backoff(attempt));
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    // A random delay of up to BASE_DELAY_MS * 2^(attempt-1), capped at MAX_DELAY_MS
+    private static long backoff(int attempt) {
+        long limit = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << (attempt - 1));
+        return ThreadLocalRandom.current().nextLong(limit + 1);
+    }
+
+    // Jersey wraps the exceptions that come out of a resource method, so look down the chain
+    private static TransientFailureException transientCause(Throwable t) {
+        for (; t != null; t = t.getCause())
+            if (t instanceof TransientFailureException)
+                return (TransientFailureException) t;
+        return null;
+    }
+
+    private static byte[] readBody(InputStream in) {
+        if (in == null)
+            return new byte[0];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buf = new byte[8192];
+            for (int n; (n = in.read(buf)) != -1; )
+                out.write(buf, 0, n);
+        } catch (IOException e) {
+            throw new WebApplicationException(e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -30,6 +30,7 @@ public enum ERelations implements RelationshipType {
     HAS_ANNOTATION_TYPE,    // links a user to his/her defined annotation types
     HAS_PROPERTIES, // links an annotation type to its allowed properties
     HAS_LINKS,      // links an annotation type to its allowed outbound relationships
+    STATS_FOR,      // links a section statistics node to its section
 
     // Undirected types
     RELATED,        // this type is used to show relations between readings (undirected)
@@ -14,6 +14,7 @@ public enum Nodes implements Label {
     WITNESS,         // is a witness in a stemma tree
     TRADITION,       // is a tradition root node
     SECTION,         // is a part of a tradition
+    SECTION_STATS,   // holds the running statistics of a section
     STEMMA,          // is a stemma root node
     RELATION_TYPE,   // is a defined relation type
     ANNOTATIONLABEL, // is a definition of an annotation label
@@ -0,0 +1,130 @@
+package net.stemmaweb.rest;
+
+import javax.ws.rs.core.Response;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+import static net.stemmaweb.rest.Util.jsonerror;
+
+/**
+ * Cursor-based paging for list responses. A list endpoint that takes a 'limit' query
+ * parameter returns at most that many items, in a fixed order; if there are more, the
+ * response carries an opaque cursor in the X-Next-Cursor header, which can be passed
+ * back as the 'cursor' parameter to get the next page. The cursor records the sort key
+ * of the last item returned, e.g. a section, rank and node ID, so the next page is found
+ * by seeking past that key rather than by counting off items. Items added or removed
+ * elsewhere in the list between requests therefore don't shift the pages.
+ *
+ * Without 'limit' or 'cursor' the endpoints return their whole list, as before.
+ */
+
+final class Paging {
+    static final String NEXT_CURSOR = "X-Next-Cursor";
+
+    private final int limit;
+    private final long[] after;
+
+    private Paging(int limit, long[] after) {
+        this.limit = limit;
+        this.after = after;
+    }
+
+    /**
+     * Reads the paging parameters of a request.
+     *
+     * @param cursor - the cursor from the previous page, or null for the first page
+     * @param limit - the maximum page size, or 0 for no limit
+     * @param keyLength - the number of values in this list's sort key
+     * @return the paging request, or null if the request is not paged
+     * @throws IllegalArgumentException if the parameters are invalid
+     */
+    static Paging of(String cursor, Integer limit, int keyLength) {
+        if (cursor == null && (limit == null || limit == 0))
+            return null;
+        if (limit != null && limit < 0)
+            throw new IllegalArgumentException("Page limit must not be negative");
+        // Leave room to fetch one item more than the limit
+        return new Paging(limit == null || limit == 0 ? Integer.MAX_VALUE - 1 : Math.min(limit, Integer.MAX_VALUE - 1),
+                cursor == null ? null : decode(cursor, keyLength));
+    }
+
+    /**
+     * @return the number of items to fetch: one more than the limit, to tell whether
+     * there is a further page
+     */
+    int fetchSize() {
+        return limit + 1;
+    }
+
+    /**
+     * @return true if this is a request for the first page
+     */
+    boolean atStart() {
+        return after == null;
+    }
+
+    /**
+     * @param i - the position in the sort key
+     * @return that value of the sort key of the last item already returned
+     */
+    long after(int i) {
+        return after[i];
+    }
+
+    /**
+     * Cuts a list of fetchSize() items down to the page size.
+     *
+     * @param items - the items fetched, in sort order; this list is modified
+     * @param key - gives the sort key of an item
+     * @return the sort key of the last item kept if there is a further page, otherwise null
+     */
+    <T> long[] trim(List<T> items, Function<T, long[]> key) {
+        if (items.size() <= limit)
+            return null;
+        items.subList(limit, items.size()).clear();
+        return key.apply(items.get(limit - 1));
+    }
+
+    /**
+     * Builds the response for a page.
+     *
+     * @param items - the items on this page
+     * @param nextKey - the sort key of the last item, or null if there are no more
+     * @return the response
+     */
+    static Response page(List<?> items, long[] nextKey) {
+        Response.ResponseBuilder rb = Response.ok(items);
+        if (nextKey != null)
+            rb.header(NEXT_CURSOR, encode(nextKey));
+        return rb.build();
+    }
+
+    static Response badCursor(IllegalArgumentException e) {
+        return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror(e.getMessage())).build();
+    }
+
+    static String encode(long... key) {
+        StringBuilder sb = new StringBuilder();
+        for (long k : key) {
+            if (sb.length() > 0) sb.append('.');
+            sb.append(k);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long[] decode(String cursor, int keyLength) {
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\.");
+            if (parts.length != keyLength)
+                throw new IllegalArgumentException();
+            long[] key = new long[keyLength];
+            for (int i = 0; i < keyLength; i++)
+                key[i] = Long.parseLong(parts[i]);
+            return key;
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid paging cursor " + cursor);
+        }
+    }
+}
@@ -22,6 +22,7 @@ import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.traversal.Uniqueness;
 
 import static net.stemmaweb.rest.Util.jsonerror;
+import static net.stemmaweb.rest.Util.lockTimeout;
 
 /**
  * Comprises all Rest API calls related to a reading. Can be called via
@@ -87,47 +88,40 @@ public class Reading {
      * @statuscode 200 - on success
      * @statuscode 400 - on an invalid property key, or an invalid property value type
      * @statuscode 500 - on error, with an error message
+     * @statuscode 503 - if the section is locked by another edit for too long
      */
     @PUT
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType(clazz = ReadingModel.class)
+    @DeadlockRetry.Retryable
     public Response changeReadingProperties(ReadingChangePropertyModel changeModels) {
-        ReadingModel modelToReturn = new ReadingModel();
-        Node reading;
-        String currentKey = "";
+        try (LockManager.Held ignored = lockSectionsOf(readId)) {
+            return doChangeReadingProperties(changeModels);
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doChangeReadingProperties(ReadingChangePropertyModel changeModels) {
+        ReadingModel modelToReturn;
         try (Transaction tx = db.beginTx()) {
-            reading = db.getNodeById(readId);
-            for (KeyPropertyModel keyPropertyModel : changeModels.getProperties()) {
-                currentKey = keyPropertyModel.getKey();
-                if (currentKey.equals("id")) {
-                    errorMessage = "Reading ID cannot be changed!";
-                    return errorResponse(Status.BAD_REQUEST);
-                } else if (currentKey.equals("is_lemma")
-                        && !keyPropertyModel.getProperty().equals(reading.getProperty(currentKey))) {
-                    errorMessage = "Use /setlemma to change the reading's lemmatisation";
-                    return errorResponse(Status.BAD_REQUEST);
-                }
-                // Check that this field actually exists in our model
-                Field ourField = modelToReturn.getClass().getDeclaredField(currentKey);
-                // Then set the property.
-                // Convert types not native to JSON
-                if (ourField.getType().equals(Long.class))
-                    reading.setProperty(currentKey, Long.valueOf(keyPropertyModel.getProperty().toString()));
-                else
-                    reading.setProperty(currentKey, keyPropertyModel.getProperty());
-            }
+            Node reading = db.getNodeById(readId);
+            checkPropertyChanges(reading, changeModels.getProperties()).forEach(reading::setProperty);
             modelToReturn = new ReadingModel(reading);
             tx.success();
         } catch (NoSuchFieldException f) {
             errorMessage = "Reading has no such property '" + f.getMessage() + "'";
             return errorResponse(Status.BAD_REQUEST);
-        } catch (ClassCastException e) {
-            errorMessage = "Property " + currentKey + " of the wrong type: " + e.getMessage();
+        } catch (IllegalArgumentException e) {
+            errorMessage = e.getMessage();
             return errorResponse(Status.BAD_REQUEST);
         } catch (NotFoundException e) {
             errorMessage = e.getMessage();
             return errorResponse(Status.NOT_FOUND);
+        } catch (TransientFailureException e) {
+            // Let the request be retried
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             errorMessage = e.getMessage();
@@ -136,6 +130,47 @@ public class Reading {
         return Response.status(Response.Status.OK).entity(modelToReturn).build();
     }
 
+    /**
+     * Checks a list of property changes against the given reading, and converts the
+     * values to the types that the reading stores. Nothing is written, so that a list
+     * with a bad change in it can be refused as a whole.
+     * NOTE: for use in a transaction!
+     *
+     * @param reading - the reading to be changed
+     * @param changes - the requested key / value changes
+     * @return an ordered map of property key to the value that should be set
+     * @throws NoSuchFieldException if a key is not a reading property
+     * @throws IllegalArgumentException if a change is not allowed, or a value has the wrong type
+     */
+    static Map<String, Object> checkPropertyChanges(Node reading, List<KeyPropertyModel> changes)
+            throws NoSuchFieldException {
+        LinkedHashMap<String, Object> toSet = new LinkedHashMap<>();
+        for (KeyPropertyModel keyPropertyModel : changes) {
+            String currentKey = keyPropertyModel.getKey();
+            if (currentKey.equals("id")) {
+                throw new IllegalArgumentException("Reading ID cannot be changed!");
+            } else if (currentKey.equals("is_lemma")
+                    && !keyPropertyModel.getProperty().equals(reading.getProperty(currentKey))) {
+                throw new IllegalArgumentException("Use /setlemma to change the reading's lemmatisation");
+            }
+            // Check that this field actually exists in our model
+            Field ourField = ReadingModel.class.getDeclaredField(currentKey);
+            // Convert types not native to JSON
+            try {
+                if (ourField.getType().equals(Long.class))
+                    toSet.put(currentKey, Long.valueOf(keyPropertyModel.getProperty().toString()));
+                else if (keyPropertyModel.getProperty() == null
+                        || ourField.getType().isInstance(keyPropertyModel.getProperty()))
+                    toSet.put(currentKey, keyPropertyModel.getProperty());
+                else
+                    throw new ClassCastException("expected " + ourField.getType().getSimpleName());
+            } catch (ClassCastException | NumberFormatException e) {
+                throw new IllegalArgumentException("Property " + currentKey + " of the wrong type: " + e.getMessage());
+            }
+        }
+        return toSet;
+    }
+
     /**
      * Deletes a reading. This only makes sense if it is a user-addable reading, i.e. an emendation.
      * If the lemma path goes through the emendation, the lemma path will also be removed.
@@ -146,11 +181,20 @@ public class Reading {
      * @statuscode 403 - if deletion of a non-user reading is requested
      * @statuscode 404 - if the reading doesn't exist
      * @statuscode 500 - on error
+     * @statuscode 503 - if the section is locked by another edit for too long
      */
     @DELETE
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType(clazz = GraphModel.class)
     public Response deleteUserReading() {
+        try (LockManager.Held ignored = lockSectionsOf(readId)) {
+            return doDeleteUserReading();
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doDeleteUserReading() {
         GraphModel deletedElements = new GraphModel();
         try (Transaction tx = db.beginTx()) {
             Node reading = db.getNodeById(readId);
@@ -200,13 +244,23 @@ public class Reading {
      * @return a list of changed ReadingModels
      * @statuscode 200 - on success
      * @statuscode 500 - on error, with an error message
+     * @statuscode 503 - if the section is locked by another edit for too long
      */
     @POST
     @Path("setlemma")
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType("java.util.List<net.stemmaweb.model.ReadingModel>")
+    @DeadlockRetry.Retryable
     public Response setReadingAsLemma(@FormParam("value") @DefaultValue("false") String value) {
+        try (LockManager.Held ignored = lockSectionsOf(readId)) {
+            return doSetReadingAsLemma(value);
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doSetReadingAsLemma(String value) {
         List<ReadingModel> changed = new ArrayList<>();
         try (Transaction tx = db.beginTx()) {
             Node reading = db.getNodeById(readId);
@@ -231,6 +285,9 @@ public class Reading {
         } catch (NotFoundException e) {
             errorMessage = e.getMessage();
             return errorResponse(Status.NOT_FOUND);
+        } catch (TransientFailureException e) {
+            // Let the request be retried
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             errorMessage = e.getMessage();
@@ -251,12 +308,21 @@ public class Reading {
      * @statuscode 200 - on success
      * @statuscode 400 - if a specified witness does not pass through the given reading
      * @statuscode 500 - on error
+     * @statuscode 503 - if the section is locked by another edit for too long
      */
     @POST
     @Path("/lacunaAfter")
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType("net.stemmaweb.model.GraphModel")
     public Response addLacuna (@QueryParam("witness") List<String> forWitnesses) {
+        try (LockManager.Held ignored = lockSectionsOf(readId)) {
+            return doAddLacuna(forWitnesses);
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doAddLacuna(List<String> forWitnesses) {
         GraphModel result = new GraphModel();
         try (Transaction tx = db.beginTx()) {
             // Get a reading model so we can easily check the witnesses
@@ -349,12 +415,21 @@ public class Reading {
      * @statuscode 200 - on success
      * @statuscode 400 - if the reading has neither normal form nor text
      * @statuscode 500 - on failure
+     * @statuscode 503 - if the section is locked by another edit for too long
      */
     @POST
     @Path("normaliseRelated/{reltype}")
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType("java.util.List<net.stemmaweb.model.ReadingModel>")
     public Response normaliseRelated(@PathParam("reltype") String onRelationType) {
+        try (LockManager.Held ignored = lockSectionsOf(readId)) {
+            return doNormaliseRelated(onRelationType);
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doNormaliseRelated(String onRelationType) {
         List<ReadingModel> changed = new ArrayList<>();
         try (Transaction tx = db.beginTx()) {
             List<Node> related = collectRelatedReadings(Collections.singletonList(onRelationType));
@@ -413,12 +488,21 @@ public class Reading {
      * @return a list of the relations that were deleted.
      * @statuscode 200 - on success
      * @statuscode 500 - on error, with an error message
+     * @statuscode 503 - if the section is locked by another edit for too long
      */
     @DELETE
     @Path("relations")
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType("java.util.List<net.stemmaweb.model.RelationModel")
     public Response deleteAllRelations() {
+        try (LockManager.Held ignored = lockSectionsOf(readId)) {
+            return doDeleteAllRelations();
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doDeleteAllRelations() {
         ArrayList<RelationModel> deleted = new ArrayList<>();
         try (Transaction tx = db.beginTx()) {
             Node reading = db.getNodeById(readId);
@@ -509,6 +593,7 @@ public class Reading {
      *         deleted relations.
      * @statuscode 200 - on success
      * @statuscode 500 - on error, with an error message
+     * @statuscode 503 - if the section or tradition is locked by another edit for too long
      */
     @POST
     @Path("duplicate")
@@ -516,6 +601,14 @@ public class Reading {
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType(clazz = GraphModel.class)
     public Response duplicateReading(DuplicateModel duplicateModel) {
+        try (LockManager.Held ignored = lockSectionsOf(duplicateModel)) {
+            return doDuplicateReading(duplicateModel);
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doDuplicateReading(DuplicateModel duplicateModel) {
 
         ArrayList<ReadingModel> createdReadings = new ArrayList<>();
         ArrayList<RelationModel> tempDeleted = new ArrayList<>();
@@ -697,11 +790,21 @@ public class Reading {
      * @statuscode 409 - if merging the readings would invalidate the graph.
      *                   This usually means that they are not in the same variant location.
      * @statuscode 500 - on error, with an error message
+     * @statuscode 503 - if the section is locked by another edit for too long
      */
     @POST
     @Path("merge/{secondReadId}")
     @ReturnType("java.lang.Void")
+    @DeadlockRetry.Retryable
     public Response mergeReadings(@PathParam("secondReadId") long secondReadId) {
+        try (LockManager.Held ignored = lockSectionsOf(readId, secondReadId)) {
+            return doMergeReadings(secondReadId);
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doMergeReadings(long secondReadId) {
 
         Node stayingReading;
         Node deletingReading;
@@ -757,6 +860,9 @@ public class Reading {
         } catch (NotFoundException e) {
             errorMessage = e.getMessage();
             return errorResponse(Status.NOT_FOUND);
+        } catch (TransientFailureException e) {
+            // Let the request be retried
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             errorMessage = e.getMessage();
@@ -917,14 +1023,24 @@ public class Reading {
      *         as the new sequence links necessary to construct the bath.
      * @statuscode 200 - on success
      * @statuscode 500 - on error, with a descriptive error message
+     * @statuscode 503 - if the section is locked by another edit for too long
      */
     @POST
     @Path("split/{splitIndex}")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType(clazz = GraphModel.class)
+    @DeadlockRetry.Retryable
     public Response splitReading(@PathParam("splitIndex") int splitIndex,
                                  ReadingBoundaryModel model) {
+        try (LockManager.Held ignored = lockSectionsOf(readId)) {
+            return doSplitReading(splitIndex, model);
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doSplitReading(int splitIndex, ReadingBoundaryModel model) {
         assert (model != null);
         GraphModel readingsAndRelations;
         Node originalReading;
@@ -965,6 +1081,9 @@ public class Reading {
         } catch (NotFoundException e) {
             errorMessage = e.getMessage();
             return errorResponse(Status.NOT_FOUND);
+        } catch (TransientFailureException e) {
+            // Let the request be retried
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             errorMessage = e.getMessage();
@@ -1224,6 +1343,7 @@ public class Reading {
      * @statuscode 200 - on success
      * @statuscode 409 - if the readings cannot legally be concatenated
      * @statuscode 500 - on error, with an error message
+     * @statuscode 503 - if the section is locked by another edit for too long
      */
     @POST
     @Path("concatenate/{read2Id}")
@@ -1231,6 +1351,14 @@ public class Reading {
     // @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType("java.lang.Void")
     public Response compressReadings(@PathParam("read2Id") long readId2, ReadingBoundaryModel boundary) {
+        try (LockManager.Held ignored = lockSectionsOf(readId, readId2)) {
+            return doCompressReadings(readId2, boundary);
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doCompressReadings(long readId2, ReadingBoundaryModel boundary) {
 
         Node read1, read2;
         errorMessage = "problem with a reading. could not compress";
@@ -1409,6 +1537,81 @@ public class Reading {
         return foundRels;
     }
 
+    // Takes the write locks on the sections of the given readings, and checks once they are
+    // held that the readings haven't moved meanwhile. If a reading doesn't exist, nothing
+    // is locked, and the request will fail with a 404 anyway.
+    private LockManager.Held lockSectionsOf (long... readingIds) {
+        String tradId;
+        try {
+            tradId = getTraditionId();
+        } catch (NotFoundException e) {
+            return LockManager.Held.none();
+        }
+        return LockManager.writeSectionsOf(tradId, () -> {
+            HashSet<Long> sections = new HashSet<>();
+            try (Transaction tx = db.beginTx()) {
+                for (long id : readingIds)
+                    sections.add(Long.valueOf(db.getNodeById(id).getProperty("section_id").toString()));
+                tx.success();
+            } catch (NotFoundException e) {
+                return null;
+            }
+            return sections;
+        });
+    }
+
+    // The readings to be duplicated might lie in other sections than our own. A relation that
+    // the duplication sets aside is put back through the Relation API, and one with tradition
+    // scope needs the tradition to itself then; since a read lock can't be upgraded, the
+    // tradition is locked exclusively from the start. No such relation can be added while
+    // we hold the section locks, so we only need to look again once they are held.
+    private LockManager.Held lockSectionsOf (DuplicateModel duplicateModel) {
+        ArrayList<Long> readingIds = new ArrayList<>();
+        readingIds.add(readId);
+        try {
+            duplicateModel.getReadings().forEach(x -> readingIds.add(Long.valueOf(x)));
+        } catch (NullPointerException | NumberFormatException e) {
+            // The request will fail anyway
+        }
+        long[] ids = readingIds.stream().mapToLong(Long::longValue).toArray();
+        if (!hasTraditionScopeRelation(ids)) {
+            LockManager.Held held = lockSectionsOf(ids);
+            if (!hasTraditionScopeRelation(ids))
+                return held;
+            held.close();
+        }
+        try {
+            return LockManager.writeTradition(getTraditionId());
+        } catch (NotFoundException e) {
+            return LockManager.Held.none();
+        }
+    }
+
+    // Whether any relation that a duplication might set aside, i.e. any relation in the
+    // sections of the given readings that isn't a colocation, has tradition scope
+    private boolean hasTraditionScopeRelation (long... readingIds) {
+        boolean found = false;
+        try (Transaction tx = db.beginTx()) {
+            String tradId = getTraditionId();
+            HashSet<String> sections = new HashSet<>();
+            for (long id : readingIds)
+                sections.add(db.getNodeById(id).getProperty("section_id").toString());
+            for (String sectId : sections)
+                for (RelationModel rm : new Section(tradId, sectId).sectionRelations()) {
+                    Relationship r = db.getRelationshipById(Long.valueOf(rm.getId()));
+                    if ("tradition".equals(r.getProperty("scope", null))
+                            && !r.getProperty("colocation", false).equals(true)) {
+                        found = true;
+                        break;
+                    }
+                }
+            tx.success();
+        } catch (NotFoundException e) {
+            // Nothing will be duplicated anyway
+        }
+        return found;
+    }
+
     private String getTraditionId () {
         String tradId;
         try (Transaction tx = db.beginTx()) {
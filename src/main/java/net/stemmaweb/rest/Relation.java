@@ -11,19 +11,24 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import com.qmino.miredot.annotations.ReturnType;
+import net.stemmaweb.model.BatchItemResultModel;
+import net.stemmaweb.model.BatchResultModel;
 import net.stemmaweb.model.GraphModel;
 import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.model.RelationModel;
 import net.stemmaweb.model.RelationTypeModel;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.LockManager;
 import net.stemmaweb.services.ReadingService;
+import net.stemmaweb.services.RelationService;
 
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.Traverser;
 import org.neo4j.graphdb.traversal.Uniqueness;
 
 import static net.stemmaweb.rest.Util.jsonerror;
+import static net.stemmaweb.rest.Util.lockTimeout;
 import static net.stemmaweb.services.RelationService.returnRelationType;
 import static net.stemmaweb.services.RelationService.TransitiveRelationTraverser;
 
@@ -60,6 +65,7 @@ public class Relation {
      * @statuscode 400 - if the request has an invalid scope
      * @statuscode 409 - if the relationship cannot legally be created
      * @statuscode 500 - on failure, with JSON error message
+     * @statuscode 503 - if the section or tradition is locked by another edit for too long
      */
     // TODO make this an idempotent PUT call
     @POST
@@ -67,6 +73,14 @@ public class Relation {
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType(clazz = GraphModel.class)
     public Response create(RelationModel relationModel) {
+        try (LockManager.Held ignored = lockFor(relationModel)) {
+            return doCreate(relationModel);
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doCreate(RelationModel relationModel) {
         // Make sure a scope is set
         if (relationModel.getScope() == null) relationModel.setScope(SCOPE_LOCAL);
         String scope = relationModel.getScope();
@@ -154,108 +168,296 @@ public class Relation {
         return Response.status(Status.BAD_REQUEST).entity("Undefined Scope").build();
     }
 
+    /**
+     * Creates a list of relations in one go. All relations are validated and created in
+     * a single transaction, and ranks are fully recalculated once per affected section at
+     * the end, rather than once per relation. Only relations of local scope can be created
+     * this way. Each relation gets its own result, with the status code that the
+     * equivalent single create call would have returned and the ID of the relation
+     * created; a relation that is refused does not stop the rest of the batch, and leaves
+     * nothing changed. If a relation fails with an error, the whole batch is rolled back.
+     *
+     * @summary Create relations in batch
+     * @param relationModels - a JSON list of the relations to create
+     * @return a list of per-relation results, together with all relations created and
+     * readings re-ranked
+     * @statuscode 200 - on success, even if individual relations were refused
+     * @statuscode 500 - on failure, with JSON error message
+     * @statuscode 503 - if a section is locked by another edit for too long
+     */
+    @POST
+    @Path("batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
+    @ReturnType(clazz = BatchResultModel.class)
+    public Response createBatch(List<RelationModel> relationModels) {
+        ArrayList<String> readings = new ArrayList<>();
+        for (RelationModel relationModel : relationModels) {
+            readings.add(relationModel.getSource());
+            readings.add(relationModel.getTarget());
+        }
+        // A reading that doesn't exist is skipped; its relation will be refused
+        try (LockManager.Held ignored = LockManager.writeSectionsOf(tradId, () -> sectionsOf(readings, true))) {
+            return doCreateBatch(relationModels);
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doCreateBatch(List<RelationModel> relationModels) {
+        BatchResultModel result = new BatchResultModel();
+        GraphModel changes = result.getChanges();
+        try (Transaction tx = db.beginTx()) {
+            RelationBatch batch = new RelationBatch(DatabaseService.getTraditionNode(tradId, db));
+            for (RelationModel relationModel : relationModels) {
+                if (relationModel.getScope() == null) relationModel.setScope(SCOPE_LOCAL);
+                if (!relationModel.getScope().equals(SCOPE_LOCAL)) {
+                    result.addResult(new BatchItemResultModel(Status.BAD_REQUEST.getStatusCode(), null,
+                            "Only relations of local scope can be created in a batch"));
+                    continue;
+                }
+                // A relation between readings that don't exist fails before anything is written
+                try {
+                    db.getNodeById(Long.parseLong(relationModel.getSource()));
+                    db.getNodeById(Long.parseLong(relationModel.getTarget()));
+                } catch (NotFoundException | NumberFormatException e) {
+                    result.addResult(new BatchItemResultModel(Status.INTERNAL_SERVER_ERROR.getStatusCode(),
+                            null, e.getMessage()));
+                    continue;
+                }
+                // Any other error would leave the relation half-written, so it is left to
+                // fail the whole batch
+                batch.removedWeak.clear();
+                Response response = createLocalRelation(relationModel, tx, batch);
+                if (response.getStatus() == Status.CREATED.getStatusCode()) {
+                    GraphModel created = (GraphModel) response.getEntity();
+                    changes.addReadings(created.getReadings());
+                    changes.addRelations(created.getRelations());
+                    Optional<RelationModel> orm = created.getRelations().stream()
+                            .filter(x -> x.getTarget().equals(relationModel.getTarget())
+                                    && x.getSource().equals(relationModel.getSource())).findFirst();
+                    result.addResult(new BatchItemResultModel(response.getStatus(),
+                            orm.map(RelationModel::getId).orElse(null), null));
+                } else {
+                    // Put back anything that was cleared out of the way for this relation
+                    batch.restoreWeak();
+                    result.addResult(new BatchItemResultModel(response.getStatus(), null,
+                            Util.errorMessage(response)));
+                }
+            }
+
+            // Now do the rank recalculation that the relations above left for us
+            for (Long sectionId : batch.rerank.keySet()) {
+                Set<Node> changed = new HashSet<>(batch.rerank.get(sectionId));
+                changed.addAll(ReadingService.recalculateRank(
+                        DatabaseService.getStartNode(String.valueOf(sectionId), db), true));
+                changes.addReadings(changed.stream().map(ReadingModel::new).collect(Collectors.toSet()));
+            }
+            tx.success();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        return Response.ok(result).build();
+    }
+
+    // Holds what a batch of relation creations can share: the relation types looked up
+    // so far, the colocation lookup for each section, the readings in each section whose
+    // rank has been raised, and the weak relations removed for the relation in hand.
+    private class RelationBatch {
+        private final HashMap<String, RelationTypeModel> relationTypes = new HashMap<>();
+        private final HashSet<String> colocationTypes = new HashSet<>();
+        private final HashMap<Long, Map<Long, Set<Node>>> colocations = new HashMap<>();
+        private final HashMap<Long, Set<Node>> rerank = new HashMap<>();
+        private final ArrayList<RemovedRelation> removedWeak = new ArrayList<>();
+
+        RelationBatch(Node traditionNode) throws Exception {
+            for (RelationTypeModel rtm : RelationService.ourRelationTypes(traditionNode))
+                if (rtm.getIs_colocation())
+                    colocationTypes.add(rtm.getName());
+        }
+
+        private Map<Long, Set<Node>> colocations(Node section) throws Exception {
+            Map<Long, Set<Node>> lookup = colocations.get(section.getId());
+            if (lookup == null) {
+                lookup = ReadingService.buildColocationLookup(tradId, String.valueOf(section.getId()), db);
+                colocations.put(section.getId(), lookup);
+            }
+            return lookup;
+        }
+
+        // Record that two readings are now colocated, so that later relations in the
+        // batch are checked against the merged cluster.
+        private void colocate(Node readingA, Node readingB) {
+            Long sectionId = (Long) readingA.getProperty("section_id");
+            Map<Long, Set<Node>> lookup = colocations.get(sectionId);
+            if (lookup != null) {
+                Set<Node> merged = new HashSet<>();
+                merged.addAll(lookup.getOrDefault(readingA.getId(), Collections.singleton(readingA)));
+                merged.addAll(lookup.getOrDefault(readingB.getId(), Collections.singleton(readingB)));
+                for (Node n : merged)
+                    lookup.put(n.getId(), merged);
+            }
+        }
+
+        // Delete a weak relation, remembering it so that it can be put back
+        private void removeWeak(Relationship r, RelationTypeModel rtm, Long sectionId) {
+            if (rtm.getIs_colocation())
+                colocations.remove(sectionId);
+            removedWeak.add(new RemovedRelation(r));
+            r.delete();
+        }
+
+        // Recreate the weak relations removed for a relation that was then refused
+        private void restoreWeak() {
+            for (RemovedRelation rr : removedWeak) {
+                Relationship r = rr.start.createRelationshipTo(rr.end, ERelations.RELATED);
+                rr.properties.forEach(r::setProperty);
+                colocations.remove((Long) rr.start.getProperty("section_id"));
+            }
+            removedWeak.clear();
+        }
+    }
+
+    private static class RemovedRelation {
+        private final Node start;
+        private final Node end;
+        private final Map<String, Object> properties;
+
+        RemovedRelation(Relationship r) {
+            start = r.getStartNode();
+            end = r.getEndNode();
+            properties = r.getAllProperties();
+        }
+    }
+
     // Create a relation; return the relation created as well as any reading nodes whose
     // properties (e.g. rank) have changed.
     private Response create_local(RelationModel relationModel) {
-        GraphModel readingsAndRelationModel;
         try (Transaction tx = db.beginTx()) {
-            /*
-             * Currently search by id search, because is much faster by measurement. Because
-             * the id search is O(n) just go through all ids without care. And the
-             *
-             */
-            Node readingA = db.getNodeById(Long.parseLong(relationModel.getSource()));
-            Node readingB = db.getNodeById(Long.parseLong(relationModel.getTarget()));
+            return createLocalRelation(relationModel, tx, null);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+    }
 
-            Node ourSection = db.getNodeById(Long.valueOf(readingA.getProperty("section_id").toString()));
-            Node ourTradition = ourSection.getSingleRelationship(ERelations.PART, Direction.INCOMING).getStartNode();
-            if (!ourTradition.getProperty("id").equals(tradId))
-                return Response.status(Status.CONFLICT)
-                    .entity(jsonerror("The specified readings do not belong to the specified tradition"))
+    // Does the work of create_local within the given transaction, marking it successful
+    // where the change should be kept. If a batch is given, its relation types and
+    // colocation lookups are used, and rank recalculation is left to the batch.
+    private Response createLocalRelation(RelationModel relationModel, Transaction tx, RelationBatch batch)
+            throws Exception {
+        /*
+         * Currently search by id search, because is much faster by measurement. Because
+         * the id search is O(n) just go through all ids without care. And the
+         *
+         */
+        Node readingA = db.getNodeById(Long.parseLong(relationModel.getSource()));
+        Node readingB = db.getNodeById(Long.parseLong(relationModel.getTarget()));
+
+        Node ourSection = db.getNodeById(Long.valueOf(readingA.getProperty("section_id").toString()));
+        Node ourTradition = ourSection.getSingleRelationship(ERelations.PART, Direction.INCOMING).getStartNode();
+        if (!ourTradition.getProperty("id").equals(tradId))
+            return Response.status(Status.CONFLICT)
+                .entity(jsonerror("The specified readings do not belong to the specified tradition"))
+                .build();
+
+
+        if (!readingA.getProperty("section_id").equals(readingB.getProperty("section_id")))
+            return Response.status(Status.CONFLICT)
+                    .entity(jsonerror("Cannot create relation across tradition sections"))
                     .build();
 
+        if (isMetaReading(readingA) || isMetaReading(readingB))
+            return Response.status(Status.CONFLICT)
+                .entity(jsonerror("Cannot set relation on a meta reading"))
+                .build();
 
-            if (!readingA.getProperty("section_id").equals(readingB.getProperty("section_id")))
-                return Response.status(Status.CONFLICT)
-                        .entity(jsonerror("Cannot create relation across tradition sections"))
-                        .build();
+        // Get, or create implicitly, the relation type node for the given type.
+        RelationTypeModel rmodel = relationType(relationModel.getType(), batch);
 
-            if (isMetaReading(readingA) || isMetaReading(readingB))
-                return Response.status(Status.CONFLICT)
-                    .entity(jsonerror("Cannot set relation on a meta reading"))
+        // Check that the relation type is compatible with the passed relation model
+        if (!relationModel.getScope().equals("local") && !rmodel.getIs_generalizable())
+            return Response.status(Status.CONFLICT)
+                    .entity(jsonerror("Relation type " + rmodel.getName() + " cannot be made outside a local scope"))
                     .build();
 
-            // Get, or create implicitly, the relation type node for the given type.
-            RelationTypeModel rmodel = returnRelationType(tradId, relationModel.getType());
-
-            // Check that the relation type is compatible with the passed relation model
-            if (!relationModel.getScope().equals("local") && !rmodel.getIs_generalizable())
-                return Response.status(Status.CONFLICT)
-                        .entity(jsonerror("Relation type " + rmodel.getName() + " cannot be made outside a local scope"))
-                        .build();
-
-            // Remove any weak relations that might conflict
-            // LATER better idea: write a traverser that will disregard weak relations
-            Boolean colocation = rmodel.getIs_colocation();
-            if (colocation) {
-                Iterable<Relationship> relsA = readingA.getRelationships(ERelations.RELATED);
-                for (Relationship r : relsA) {
-                    RelationTypeModel rm = returnRelationType(tradId, r.getProperty("type").toString());
-                    if (rm.getIs_weak())
-                        r.delete();
+        // Remove any weak relations that might conflict
+        // LATER better idea: write a traverser that will disregard weak relations
+        Boolean colocation = rmodel.getIs_colocation();
+        if (colocation) {
+            Iterable<Relationship> relsA = readingA.getRelationships(ERelations.RELATED);
+            for (Relationship r : relsA) {
+                RelationTypeModel rm = relationType(r.getProperty("type").toString(), batch);
+                if (rm.getIs_weak()) {
+                    if (batch != null) batch.removeWeak(r, rm, ourSection.getId());
+                    else r.delete();
                 }
-                Iterable<Relationship> relsB = readingB.getRelationships(ERelations.RELATED);
-                for (Relationship r : relsB) {
-                    RelationTypeModel rm = returnRelationType(tradId, r.getProperty("type").toString());
-                    if (rm.getIs_weak())
-                        r.delete();
+            }
+            Iterable<Relationship> relsB = readingB.getRelationships(ERelations.RELATED);
+            for (Relationship r : relsB) {
+                RelationTypeModel rm = relationType(r.getProperty("type").toString(), batch);
+                if (rm.getIs_weak()) {
+                    if (batch != null) batch.removeWeak(r, rm, ourSection.getId());
+                    else r.delete();
                 }
             }
+        }
 
-            Boolean isCyclic = ReadingService.wouldGetCyclic(readingA, readingB);
-            if (isCyclic && colocation) {
-                    return Response
-                            .status(Status.CONFLICT)
-                            .entity(jsonerror("This relation creation is not allowed, it would result in a cyclic graph."))
-                            .build();
-            } else if (!isCyclic && !colocation) {
+        // The batch keeps the ranks consistent as it goes, so the search can stop at the
+        // higher rank just as it does for a single relation
+        Boolean isCyclic = batch == null
+                ? ReadingService.wouldGetCyclic(readingA, readingB)
+                : ReadingService.wouldGetCyclic(readingA, readingB, batch.colocations(ourSection));
+        if (isCyclic && colocation) {
                 return Response
                         .status(Status.CONFLICT)
-                        .entity(jsonerror("This relation creation is not allowed. The two readings can be co-located."))
+                        .entity(jsonerror("This relation creation is not allowed, it would result in a cyclic graph."))
                         .build();
-            } // TODO add constraints about witness uniqueness or lack thereof
-
-            // Check if relation already exists
-            Iterable<Relationship> relationships = readingA.getRelationships(ERelations.RELATED);
-            for (Relationship relationship : relationships) {
-                if (relationship.getOtherNode(readingA).equals(readingB)) {
-                    RelationModel thisRel = new RelationModel(relationship);
-                    RelationTypeModel rtm = returnRelationType(tradId, thisRel.getType());
-                    if (thisRel.getType().equals(relationModel.getType())) {
-                        // TODO allow for update of existing relation
-                        tx.success();
-                        return Response.status(Status.NOT_MODIFIED).type(MediaType.TEXT_PLAIN_TYPE).build();
-                    } else if (!rtm.getIs_weak()) {
-                        tx.success();
-                        String msg = String.format("Relation of type %s already exists between readings %s and %s",
-                                relationModel.getType(), relationModel.getSource(), relationModel.getTarget());
-                        return Response.status(Status.CONFLICT).entity(jsonerror(msg)).build();
-                    }
+        } else if (!isCyclic && !colocation) {
+            return Response
+                    .status(Status.CONFLICT)
+                    .entity(jsonerror("This relation creation is not allowed. The two readings can be co-located."))
+                    .build();
+        } // TODO add constraints about witness uniqueness or lack thereof
+
+        // Check if relation already exists
+        Iterable<Relationship> relationships = readingA.getRelationships(ERelations.RELATED);
+        for (Relationship relationship : relationships) {
+            if (relationship.getOtherNode(readingA).equals(readingB)) {
+                RelationModel thisRel = new RelationModel(relationship);
+                RelationTypeModel rtm = relationType(thisRel.getType(), batch);
+                if (thisRel.getType().equals(relationModel.getType())) {
+                    // TODO allow for update of existing relation
+                    tx.success();
+                    return Response.status(Status.NOT_MODIFIED).type(MediaType.TEXT_PLAIN_TYPE).build();
+                } else if (!rtm.getIs_weak()) {
+                    tx.success();
+                    String msg = String.format("Relation of type %s already exists between readings %s and %s",
+                            relationModel.getType(), relationModel.getSource(), relationModel.getTarget());
+                    return Response.status(Status.CONFLICT).entity(jsonerror(msg)).build();
                 }
             }
-
-            // We are finally ready to write a relation.
-            readingsAndRelationModel = createSingleRelation(readingA, readingB, relationModel, rmodel);
-            // We can also write any transitive relationships.
-            propagateRelation(readingsAndRelationModel, rmodel);
-            tx.success();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
+
+        // We are finally ready to write a relation.
+        GraphModel readingsAndRelationModel = createSingleRelation(readingA, readingB, relationModel, rmodel, batch);
+        // We can also write any transitive relationships.
+        propagateRelation(readingsAndRelationModel, rmodel, batch);
+        tx.success();
         return Response.status(Response.Status.CREATED).entity(readingsAndRelationModel).build();
     }
 
+    // Look up a relation type, via the batch cache if there is one
+    private RelationTypeModel relationType(String name, RelationBatch batch) {
+        if (batch == null)
+            return returnRelationType(tradId, name);
+        RelationTypeModel rtm = batch.relationTypes.computeIfAbsent(name, k -> returnRelationType(tradId, k));
+        if (rtm.getIs_colocation())
+            batch.colocationTypes.add(name);
+        return rtm;
+    }
+
     /**
      * Muck with the database to set a relation
      *
@@ -263,10 +465,11 @@ public class Relation {
      * @param readingB - the target reading
      * @param relModel - the RelationModel to set
      * @param rtm      - the RelationTypeModel describing what sort of relation this is
+     * @param batch    - the batch this relation belongs to, if any
      * @return a GraphModel containing the single n4j relationship plus whatever readings were re-ranked
      */
-    private GraphModel createSingleRelation(Node readingA, Node readingB,
-                                            RelationModel relModel, RelationTypeModel rtm) throws Exception {
+    private GraphModel createSingleRelation(Node readingA, Node readingB, RelationModel relModel,
+                                            RelationTypeModel rtm, RelationBatch batch) throws Exception {
         ArrayList<ReadingModel> changedReadings = new ArrayList<>();
         ArrayList<RelationModel> createdRelations = new ArrayList<>();
 
@@ -294,14 +497,23 @@ public class Relation {
             // Which one is the lower-ranked reading? Promote it, and recalculate from that point
             Long higherRank = rankA < rankB ? rankB : rankA;
             Node lowerRanked = rankA < rankB ? readingA : readingB;
-            lowerRanked.setProperty("rank", higherRank);
-            changedReadings.add(new ReadingModel(lowerRanked));
-            Set<Node> changedRank = ReadingService.recalculateRank(lowerRanked);
-            for (Node cr : changedRank)
-                if (!cr.equals(lowerRanked))
-                    changedReadings.add(new ReadingModel(cr));
-
+            if (batch != null) {
+                // Push along only what has to move, so that the ranks stay usable for the
+                // cycle checks of later relations; the full recalculation is left for the
+                // end of the batch
+                batch.rerank.computeIfAbsent((Long) lowerRanked.getProperty("section_id"), k -> new HashSet<>())
+                        .addAll(ReadingService.raiseRank(lowerRanked, higherRank, batch.colocationTypes));
+            } else {
+                lowerRanked.setProperty("rank", higherRank);
+                changedReadings.add(new ReadingModel(lowerRanked));
+                Set<Node> changedRank = ReadingService.recalculateRank(lowerRanked);
+                for (Node cr : changedRank)
+                    if (!cr.equals(lowerRanked))
+                        changedReadings.add(new ReadingModel(cr));
+            }
         }
+        if (colocation && batch != null)
+            batch.colocate(readingA, readingB);
 
         createdRelations.add(new RelationModel(relationAtoB));
         return new GraphModel(changedReadings, createdRelations, new ArrayList<>());
@@ -328,8 +540,10 @@ public class Relation {
      *
      * @param newRelationResult - the GraphModel that contains a relation just created
      * @param rtm - the relation type specification
+     * @param batch - the batch this relation belongs to, if any
      */
-    private void propagateRelation(GraphModel newRelationResult, RelationTypeModel rtm) throws Exception {
+    private void propagateRelation(GraphModel newRelationResult, RelationTypeModel rtm, RelationBatch batch)
+            throws Exception {
         // First see if this relation type should be propagated.
         if (!rtm.getIs_transitive()) return;
         // Now go through all the relations that have been created, and make sure that any
@@ -355,7 +569,7 @@ public class Relation {
                 for (Node readingB : iterateNodes) {
                     if (!alreadyRelated.contains(readingB)) {
                         // System.out.println(String.format("...making relation %s to node %d / %s", rm.getType(), readingB.getId(), readingB.getProperty("text")));
-                        GraphModel interim = createSingleRelation(readingA, readingB, rm, rtm);
+                        GraphModel interim = createSingleRelation(readingA, readingB, rm, rtm, batch);
                         newRelationResult.addReadings(interim.getReadings());
                         newRelationResult.addRelations(interim.getRelations());
                     }
@@ -368,7 +582,7 @@ public class Relation {
                 // Get the nodes we are directly related to, and the relations involved, if
                 // they meet the criteria
                 for (Relationship r : sibling.getRelationships(ERelations.RELATED)) {
-                    RelationTypeModel othertm = returnRelationType(tradId, r.getProperty("type").toString());
+                    RelationTypeModel othertm = relationType(r.getProperty("type").toString(), batch);
                     if (othertm.getBindlevel() > rtm.getBindlevel() && othertm.getIs_transitive())
                         connections.put(r.getOtherNode(sibling), r);
                 }
@@ -377,12 +591,12 @@ public class Relation {
                 for (Node n : connections.keySet()) {
                     cousins.remove(n);
                     RelationModel newmodel = new RelationModel(connections.get(n));
-                    RelationTypeModel newtm = returnRelationType(tradId, newmodel.getType());
+                    RelationTypeModel newtm = relationType(newmodel.getType(), batch);
                     for (Node c : cousins) {
                         ArrayList<Relationship> priorLinks = DatabaseService.getRelationshipTo(n, c, ERelations.RELATED);
                         if (priorLinks.size() == 0) {
                             // Create a relation based on the looser link
-                            GraphModel interim = createSingleRelation(n, c, newmodel, newtm);
+                            GraphModel interim = createSingleRelation(n, c, newmodel, newtm, batch);
                             newRelationResult.addReadings(interim.getReadings());
                             newRelationResult.addRelations(interim.getRelations());
                         }
@@ -492,6 +706,32 @@ public class Relation {
         return Response.ok(relationModel).build();
     }
     
+    // A relation that is set across the whole tradition needs the tradition to itself; otherwise
+    // the sections of the two readings are locked. If a reading doesn't exist, nothing is
+    // locked, and the request will fail anyway.
+    private LockManager.Held lockFor(RelationModel relationModel) {
+        if (SCOPE_TRADITION.equals(relationModel.getScope()))
+            return LockManager.writeTradition(tradId);
+        return LockManager.writeSectionsOf(tradId, () -> sectionsOf(
+                Arrays.asList(relationModel.getSource(), relationModel.getTarget()), false));
+    }
+
+    // The sections of the given readings; if a reading doesn't exist, it is either skipped
+    // or the answer is null
+    private Set<Long> sectionsOf(Collection<String> readingIds, boolean skipMissing) {
+        HashSet<Long> sections = new HashSet<>();
+        try (Transaction tx = db.beginTx()) {
+            for (String id : readingIds)
+                try {
+                    sections.add(Long.valueOf(db.getNodeById(Long.parseLong(id)).getProperty("section_id").toString()));
+                } catch (NotFoundException | NumberFormatException e) {
+                    if (!skipMissing) return null;
+                }
+            tx.success();
+        }
+        return sections;
+    }
+
     private String nullToEmptyString(String str){
         return str == null ? "" : str;
     }
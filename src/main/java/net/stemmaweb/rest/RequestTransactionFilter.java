@@ -0,0 +1,113 @@
+package net.stemmaweb.rest;
+
+import com.sun.jersey.api.core.HttpContext;
+import com.sun.jersey.api.model.AbstractResourceMethod;
+import com.sun.jersey.spi.container.ResourceMethodDispatchAdapter;
+import com.sun.jersey.spi.container.ResourceMethodDispatchProvider;
+import com.sun.jersey.spi.dispatch.RequestDispatcher;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import static net.stemmaweb.rest.Util.jsonerror;
+
+/**
+ * Establishes a request-scoped transaction for read requests. Every GET or HEAD method
+ * runs inside a single transaction that is opened before the method is called and
+ * rolled back when it returns or throws; the transactions opened by the service
+ * helpers and model constructors join it rather than each starting their own. Since
+ * the transaction is never committed, a read request cannot change the database.
+ *
+ * Mutating requests, and read requests marked with @Writes, keep the commit boundaries
+ * that their handlers set up themselves. Since a transaction left open on a thread would
+ * swallow the commits of the next request served by that thread, every request first
+ * checks that no read transaction is still open, and fails if one was.
+ *
+ * Registered as a provider class in ApplicationConfig.
+ */
+
+@Provider
+public class RequestTransactionFilter implements ResourceMethodDispatchAdapter {
+
+    /**
+     * Marks a GET method that changes the database, and so must not run in the
+     * read-only request transaction.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.METHOD)
+    public @interface Writes {}
+
+    private static final ThreadLocal<Transaction> current = new ThreadLocal<>();
+
+    @Override
+    public ResourceMethodDispatchProvider adapt(ResourceMethodDispatchProvider provider) {
+        return new ResourceMethodDispatchProvider() {
+            @Override
+            public RequestDispatcher create(AbstractResourceMethod method) {
+                RequestDispatcher dispatcher = provider.create(method);
+                if (dispatcher == null)
+                    return null;
+                String httpMethod = method.getHttpMethod();
+                boolean readOnly = !method.isAnnotationPresent(Writes.class)
+                        && (httpMethod.equals("GET") || httpMethod.equals("HEAD"));
+                return new TransactionDispatcher(dispatcher, readOnly);
+            }
+        };
+    }
+
+    // Closes the read transaction of this thread, if there is one; returns whether there was
+    private static boolean closeCurrent() {
+        Transaction tx = current.get();
+        if (tx == null)
+            return false;
+        current.remove();
+        try {
+            tx.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    private static class TransactionDispatcher implements RequestDispatcher {
+        private final RequestDispatcher dispatcher;
+        private final boolean readOnly;
+
+        TransactionDispatcher(RequestDispatcher dispatcher, boolean readOnly) {
+            this.dispatcher = dispatcher;
+            this.readOnly = readOnly;
+        }
+
+        @Override
+        public void dispatch(Object resource, HttpContext context) {
+            // Nothing should be left over from an earlier request on this thread; if something
+            // was, this request can't be trusted to commit, so roll it back and refuse
+            if (closeCurrent())
+                throw new WebApplicationException(Response.serverError()
+                        .type(MediaType.APPLICATION_JSON_TYPE)
+                        .entity(jsonerror("A read transaction was left open by an earlier request"))
+                        .build());
+            if (!readOnly) {
+                dispatcher.dispatch(resource, context);
+                return;
+            }
+            GraphDatabaseService db = new GraphDatabaseServiceProvider().getDatabase();
+            current.set(db.beginTx());
+            try {
+                dispatcher.dispatch(resource, context);
+            } finally {
+                // Read-only: close without success, so that nothing is committed
+                closeCurrent();
+            }
+        }
+    }
+}
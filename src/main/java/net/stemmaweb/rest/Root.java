@@ -22,7 +22,9 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import static net.stemmaweb.rest.Util.jsonerror;
@@ -178,18 +180,51 @@ public class Root {
      *
      * @param publiconly    Returns only the traditions marked as being public.
      *                      Default is false.
+     * @param cursor        The cursor returned with the previous page.
+     * @param limit         The maximum number of traditions to return. If a limit or
+     *                      cursor is given, the cursor for the next page, if any, is
+     *                      returned in the X-Next-Cursor header.
      *
      * @return A list, one item per tradition, of tradition metadata.
      * @statuscode 200 on success
+     * @statuscode 400 if the cursor or limit is invalid
      * @statuscode 500 on failure, with an error report in JSON format
      */
     @GET
     @Path("/traditions")
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType("java.util.List<net.stemmaweb.model.TraditionModel>")
-    public Response getAllTraditions(@DefaultValue("false") @QueryParam("public") Boolean publiconly) {
+    public Response getAllTraditions(@DefaultValue("false") @QueryParam("public") Boolean publiconly,
+                                     @QueryParam("cursor") String cursor,
+                                     @QueryParam("limit") Integer limit) {
         List<TraditionModel> traditionList = new ArrayList<>();
 
+        Paging paging;
+        try {
+            paging = Paging.of(cursor, limit, 1);
+        } catch (IllegalArgumentException e) {
+            return Paging.badCursor(e);
+        }
+        if (paging != null) {
+            try (Transaction tx = db.beginTx()) {
+                Map<String, Object> params = new HashMap<>();
+                params.put("after", paging.atStart() ? -1L : paging.after(0));
+                params.put("fetch", paging.fetchSize());
+                Result result = db.execute("MATCH (t:TRADITION) WHERE id(t) > $after" +
+                        (publiconly ? " AND t.is_public = true" : "") +
+                        " RETURN t ORDER BY id(t) LIMIT $fetch", params);
+                List<Node> found = new ArrayList<>();
+                result.<Node>columnAs("t").forEachRemaining(found::add);
+                long[] next = paging.trim(found, n -> new long[] {n.getId()});
+                found.forEach(t -> traditionList.add(new TraditionModel(t)));
+                tx.success();
+                return Paging.page(traditionList, next);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return Response.serverError().entity(jsonerror(e.getMessage())).build();
+            }
+        }
+
         try (Transaction tx = db.beginTx()) {
             ResourceIterator<Node> nodeList;
             if (publiconly)
@@ -1,15 +1,25 @@
 package net.stemmaweb.rest;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.qmino.miredot.annotations.MireDotIgnore;
 import com.qmino.miredot.annotations.ReturnType;
+import net.stemmaweb.exporter.AlignmentTable;
 import net.stemmaweb.exporter.DotExporter;
 import net.stemmaweb.exporter.GraphMLExporter;
 import net.stemmaweb.exporter.TabularExporter;
 import net.stemmaweb.model.*;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.LockManager;
 import net.stemmaweb.services.ReadingService;
 import net.stemmaweb.services.RelationService;
+import net.stemmaweb.services.SectionOrderCache;
+import net.stemmaweb.services.SectionStatistics;
+import net.stemmaweb.services.WitnessRegistry;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.Evaluators;
 import org.neo4j.graphdb.traversal.Uniqueness;
@@ -18,6 +28,7 @@ import javax.ws.rs.*;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.InputStream;
 import java.text.Normalizer;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -26,6 +37,7 @@ import java.util.stream.StreamSupport;
 
 import static net.stemmaweb.rest.Util.jsonerror;
 import static net.stemmaweb.rest.Util.jsonresp;
+import static net.stemmaweb.rest.Util.lockTimeout;
 import static net.stemmaweb.services.ReadingService.AlignmentTraverse;
 import static net.stemmaweb.services.ReadingService.addWitnessLink;
 import static net.stemmaweb.services.ReadingService.recalculateRank;
@@ -130,16 +142,27 @@ public class Section {
      * @statuscode 200 - on success
      * @statuscode 404 - if no such tradition or section exists
      * @statuscode 500 - on failure, with an error message
+     * @statuscode 503 - if the tradition is locked by another edit for too long
      */
     @DELETE
     @ReturnType("java.lang.Void")
     public Response deleteSection() {
+        try (LockManager.Held ignored = LockManager.writeTradition(tradId)) {
+            return doDeleteSection();
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doDeleteSection() {
         if (!sectionInTradition())
             return Response.status(Response.Status.NOT_FOUND).type(MediaType.APPLICATION_JSON_TYPE)
                     .entity(jsonerror("Tradition and/or section not found")).build();
         try (Transaction tx = db.beginTx()) {
             Node foundSection = db.getNodeById(Long.valueOf(sectId));
             if (foundSection != null) {
+                // Note the annotations that refer to this section, which might be left dangling
+                Set<Node> sectionAnnotations = indexedAnnotations(foundSection);
                 // Find the section either side of this one and connect them if necessary.
                 removeFromSequence(foundSection);
                 // Collect all nodes and relationships that belong to this section.
@@ -156,9 +179,13 @@ public class Section {
                 removableNodes.forEach(Node::delete);
                 // Clean up any annotations that need it.
                 Tradition tService = new Tradition(tradId);
-                Response pruned = tService.pruneAnnotations();
-                if (pruned.getStatus() > 299) {
-                    return pruned;
+                if (sectionAnnotations != null)
+                    tService.pruneAnnotations(sectionAnnotations);
+                else {
+                    Response pruned = tService.pruneAnnotations();
+                    if (pruned.getStatus() > 299) {
+                        return pruned;
+                    }
                 }
             }
             tx.success();
@@ -215,18 +242,13 @@ public class Section {
         HashSet<Node> witnessList = new HashSet<>();
         Node traditionNode = DatabaseService.getTraditionNode(tradId, db);
         Node sectionStart = DatabaseService.getStartNode(sectId, db);
-        ArrayList<Node> traditionWitnesses = DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS);
         try (Transaction tx = db.beginTx()) {
             for (Relationship relationship : sectionStart.getRelationships(ERelations.SEQUENCE)) {
                 for (String witClass : relationship.getPropertyKeys()) {
                     for (String sigil : (String[]) relationship.getProperty(witClass)) {
-                        for (Node curWitness : traditionWitnesses) {
-                            if (sigil.equals(curWitness.getProperty("sigil"))) {
-                                witnessList.add(curWitness);
-                                traditionWitnesses.remove(curWitness);
-                                break;
-                            }
-                        }
+                        Node curWitness = WitnessRegistry.lookup(traditionNode, sigil);
+                        if (curWitness != null)
+                            witnessList.add(curWitness);
                     }
                 }
             }
@@ -239,11 +261,16 @@ public class Section {
     }
 
     /**
-     * Gets a list of all readings in the given tradition section.
+     * Gets a list of all readings in the given tradition section. If a limit or cursor is
+     * given, the readings are returned a page at a time in order of rank, and the cursor
+     * for the next page, if any, is returned in the X-Next-Cursor header.
      *
      * @summary Get readings
+     * @param cursor - the cursor returned with the previous page
+     * @param limit - the maximum number of readings to return
      * @return A list of reading metadata
      * @statuscode 200 - on success
+     * @statuscode 400 - if the cursor or limit is invalid
      * @statuscode 404 - if no such tradition or section exists
      * @statuscode 500 - on failure, with an error message
      */
@@ -251,10 +278,34 @@ public class Section {
     @Path("/readings")
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType("java.util.List<net.stemmaweb.model.ReadingModel>")
-    public Response getAllReadings() {
+    public Response getAllReadings(@QueryParam("cursor") String cursor,
+                                   @QueryParam("limit") Integer limit) {
         if (!sectionInTradition())
             return Response.status(Response.Status.NOT_FOUND).entity(jsonerror("Tradition and/or section not found")).build();
 
+        Paging paging;
+        try {
+            paging = Paging.of(cursor, limit, 2);
+        } catch (IllegalArgumentException e) {
+            return Paging.badCursor(e);
+        }
+        if (paging != null) {
+            try (Transaction tx = db.beginTx()) {
+                Node sectionNode = db.getNodeById(Long.valueOf(sectId));
+                List<Node> found = paging.atStart()
+                        ? ReadingService.readingsAfter(sectionNode, 0, -1, paging.fetchSize())
+                        : ReadingService.readingsAfter(sectionNode, paging.after(0), paging.after(1), paging.fetchSize());
+                long[] next = paging.trim(found,
+                        n -> new long[] {Long.valueOf(n.getProperty("rank").toString()), n.getId()});
+                List<ReadingModel> page = found.stream().map(ReadingModel::new).collect(Collectors.toList());
+                tx.success();
+                return Paging.page(page, next);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return Response.serverError().entity(jsonerror(e.getMessage())).build();
+            }
+        }
+
         List<ReadingModel> readingModels = sectionReadings();
         if (readingModels == null)
             return Response.serverError().entity(jsonerror("No readings found in section")).build();
@@ -280,6 +331,130 @@ public class Section {
         return readingModels;
     }
 
+    /**
+     * Changes the properties of many readings in the section at once. Each change names
+     * a reading and gives its property changes in the same form as a single reading
+     * update; it is checked and applied or refused as a whole, with the status code that
+     * the single update would have returned, and a refused change does not stop the rest.
+     * The list is read from the request as it arrives, and the changes are committed in
+     * batches of CHANGE_BATCH_SIZE readings, so that a long list is never held in memory
+     * as a whole. This means that if the list turns out to be malformed partway through,
+     * the batches before that point have already been committed; the error says how many
+     * changes were read before it.
+     *
+     * @summary Update many readings
+     * @param changes - a JSON list of reading changes. For example, a request to set
+     *                the normal form of two readings will look like this:
+     *                {@code [{"id":"123","properties":[{"key":"normal_form","property":"dominus"}]},
+     *                {"id":"125","properties":[{"key":"normal_form","property":"deus"}]}]}
+     * @return a list of per-reading results, in request order
+     * @statuscode 200 - on success, even if individual changes were refused
+     * @statuscode 400 - if the request is not a well-formed list of reading changes
+     * @statuscode 404 - if no such tradition or section exists
+     * @statuscode 500 - on failure, with an error message
+     * @statuscode 503 - if the section is locked by another edit for too long
+     */
+    @PUT
+    @Path("/readings")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
+    @ReturnType(clazz = BatchResultModel.class)
+    public Response changeReadingsProperties(InputStream changes) {
+        try (LockManager.Held ignored = LockManager.writeSections(tradId,
+                Collections.singletonList(Long.valueOf(sectId)))) {
+            return doChangeReadingsProperties(changes);
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doChangeReadingsProperties(InputStream changes) {
+        if (!sectionInTradition())
+            return Response.status(Response.Status.NOT_FOUND).entity(jsonerror("Tradition and/or section not found")).build();
+
+        BatchResultModel result = new BatchResultModel();
+        // The readings can be fetched individually if they are wanted
+        result.setChanges(null);
+        ObjectMapper mapper = new ObjectMapper();
+        int read = 0;
+        try (JsonParser jp = mapper.getFactory().createParser(changes)) {
+            if (jp.nextToken() != JsonToken.START_ARRAY)
+                throw new JsonParseException(jp, "Expected a list of reading changes");
+            List<ReadingBatchChangeModel> batch = new ArrayList<>();
+            while (jp.nextToken() != JsonToken.END_ARRAY) {
+                batch.add(mapper.readValue(jp, ReadingBatchChangeModel.class));
+                read++;
+                if (batch.size() == CHANGE_BATCH_SIZE) {
+                    result.getResults().addAll(applyReadingChanges(batch));
+                    batch = new ArrayList<>();
+                }
+            }
+            if (!batch.isEmpty())
+                result.getResults().addAll(applyReadingChanges(batch));
+        } catch (JsonProcessingException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror(String.format(
+                    "Malformed change list after %d changes: %s", read, e.getOriginalMessage()))).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        return Response.ok(result).build();
+    }
+
+    private static final int CHANGE_BATCH_SIZE = 10000;
+
+    // Applies one batch of reading changes in a single transaction. If the commit fails,
+    // every change in the batch that had succeeded is reported as failed instead.
+    private List<BatchItemResultModel> applyReadingChanges(List<ReadingBatchChangeModel> batch) {
+        List<BatchItemResultModel> results = new ArrayList<>();
+        Long sectionId = Long.valueOf(sectId);
+        try (Transaction tx = db.beginTx()) {
+            for (ReadingBatchChangeModel change : batch)
+                results.add(applyReadingChange(change, sectionId));
+            tx.success();
+        } catch (Exception e) {
+            e.printStackTrace();
+            for (BatchItemResultModel r : results)
+                if (r.getStatus() == Response.Status.OK.getStatusCode()) {
+                    r.setStatus(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+                    r.setError(e.getMessage());
+                }
+        }
+        return results;
+    }
+
+    // NOTE: for use in a transaction!
+    private BatchItemResultModel applyReadingChange(ReadingBatchChangeModel change, Long sectionId) {
+        String readingId = change.getId();
+        HashMap<String, Object> previous = new HashMap<>();
+        Node reading = null;
+        try {
+            reading = db.getNodeById(Long.valueOf(readingId));
+            if (!reading.hasLabel(Nodes.READING) || !sectionId.equals(reading.getProperty("section_id", null)))
+                return new BatchItemResultModel(Response.Status.NOT_FOUND.getStatusCode(), readingId,
+                        "Reading " + readingId + " not found in this section");
+            Map<String, Object> toSet = Reading.checkPropertyChanges(reading, change.getProperties());
+            for (String key : toSet.keySet()) {
+                previous.put(key, reading.getProperty(key, null));
+                reading.setProperty(key, toSet.get(key));
+            }
+            return new BatchItemResultModel(Response.Status.OK.getStatusCode(), readingId, null);
+        } catch (NoSuchFieldException f) {
+            return new BatchItemResultModel(Response.Status.BAD_REQUEST.getStatusCode(), readingId,
+                    "Reading has no such property '" + f.getMessage() + "'");
+        } catch (NotFoundException e) {
+            return new BatchItemResultModel(Response.Status.NOT_FOUND.getStatusCode(), readingId, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            // A value was refused partway through; put back what had already been set, so
+            // that the rest of the batch can still be committed.
+            if (reading != null)
+                for (String key : previous.keySet())
+                    if (previous.get(key) == null) reading.removeProperty(key);
+                    else reading.setProperty(key, previous.get(key));
+            return new BatchItemResultModel(Response.Status.BAD_REQUEST.getStatusCode(), readingId, e.getMessage());
+        }
+    }
+
     /**
      * Gets a list of all relations defined within the given section.
      *
@@ -288,13 +463,20 @@ public class Section {
      * @statuscode 200 - on success
      * @statuscode 404 - if no such tradition exists
      * @statuscode 500 - on failure, with an error message
+     * @statuscode 503 - if the section is locked by another edit for too long
      */
     @GET
     @Path("/relations")
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType("java.util.List<net.stemmaweb.model.RelationModel>")
     public Response getAllRelationships() {
-        ArrayList<RelationModel> relList = sectionRelations();
+        ArrayList<RelationModel> relList;
+        // Wait for any edit to the section to finish, so that the walk sees all of it or none
+        try (LockManager.Held ignored = LockManager.readSections(tradId, Collections.singletonList(Long.valueOf(sectId)))) {
+            relList = sectionRelations();
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
 
         if (relList == null) {
             return Response.serverError().entity(jsonerror("No relations found in section")).build();
@@ -302,6 +484,112 @@ public class Section {
         return Response.ok(relList).build();
     }
 
+    /**
+     * Gets the variant locations of the section, for building a critical apparatus. Each
+     * location is a run of ranks over which the witnesses diverge, and lists the variants
+     * found there, i.e. the sequences of readings that the witnesses have over the run,
+     * each with the witnesses that have it. Readings that are related by the given type or
+     * a more closely binding one are treated as the same reading, and lacunae are not
+     * counted as variation.
+     *
+     * @summary Get variant locations
+     * @param toConflate - the relation type up to which related readings should be treated as identical
+     * @return A list of variant locations
+     * @statuscode 200 - on success
+     * @statuscode 404 - if no such tradition or section exists
+     * @statuscode 500 - on failure, with an error message
+     * @statuscode 503 - if the section is locked by another edit for too long
+     */
+    @GET
+    @Path("/variants")
+    @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
+    @ReturnType("java.util.List<net.stemmaweb.model.VariantLocationModel>")
+    public Response getVariantLocations(@QueryParam("conflate") String toConflate) {
+        if (!sectionInTradition())
+            return Response.status(Response.Status.NOT_FOUND).entity(jsonerror("Tradition and/or section not found")).build();
+        List<VariantLocationModel> locations;
+        try (LockManager.Held ignored = LockManager.readSections(tradId, Collections.singletonList(Long.valueOf(sectId)))) {
+            Node sectionNode;
+            try (Transaction tx = db.beginTx()) {
+                sectionNode = db.getNodeById(Long.valueOf(sectId));
+                tx.success();
+            }
+            locations = AlignmentTable.forSections(Collections.singletonList(sectionNode), toConflate)
+                    .variantLocations();
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        return Response.ok(locations).build();
+    }
+
+    /**
+     * Gets the statistics of the section: the number of readings, its end rank, the number
+     * of witnesses, the number of relations of each type, and the number of annotations that
+     * refer to it. If no statistics are being kept for the section, they are counted afresh.
+     *
+     * @summary Get section statistics
+     * @return the section statistics
+     * @statuscode 200 - on success
+     * @statuscode 404 - if no such tradition or section exists
+     * @statuscode 500 - on failure, with an error message
+     */
+    @GET
+    @Path("/statistics")
+    @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
+    @ReturnType(clazz = StatisticsModel.class)
+    public Response getStatistics() {
+        if (!sectionInTradition())
+            return Response.status(Response.Status.NOT_FOUND).entity(jsonerror("Tradition and/or section not found")).build();
+        StatisticsModel result;
+        try (Transaction tx = db.beginTx()) {
+            Node sectionNode = db.getNodeById(Long.valueOf(sectId));
+            result = SectionStatistics.of(sectionNode);
+            if (result == null)
+                result = SectionStatistics.count(sectionNode);
+            tx.success();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        return Response.ok(result).build();
+    }
+
+    /**
+     * Counts the statistics of the section from scratch and stores them, replacing whatever
+     * was kept before. This is for repair; the statistics are otherwise kept up to date as
+     * the section is changed.
+     *
+     * @summary Rebuild section statistics
+     * @return the section statistics
+     * @statuscode 200 - on success
+     * @statuscode 404 - if no such tradition or section exists
+     * @statuscode 500 - on failure, with an error message
+     * @statuscode 503 - if the section is locked by another edit for too long
+     */
+    @POST
+    @Path("/statistics")
+    @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
+    @ReturnType(clazz = StatisticsModel.class)
+    public Response rebuildStatistics() {
+        if (!sectionInTradition())
+            return Response.status(Response.Status.NOT_FOUND).entity(jsonerror("Tradition and/or section not found")).build();
+        StatisticsModel result;
+        try (LockManager.Held ignored = LockManager.writeSections(tradId, Collections.singletonList(Long.valueOf(sectId)));
+             Transaction tx = db.beginTx()) {
+            result = SectionStatistics.rebuild(db.getNodeById(Long.valueOf(sectId)));
+            tx.success();
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        return Response.ok(result).build();
+    }
+
     ArrayList<RelationModel> sectionRelations() {
         ArrayList<RelationModel> relList = new ArrayList<>();
 
@@ -324,6 +612,44 @@ public class Section {
     }
 
 
+    /**
+     * Returns up to the given number of the section's relations, ordered by the rank and
+     * ID of their source reading and then by their own ID, beginning after the given
+     * relation.
+     * NOTE: for use in a transaction!
+     *
+     * @param rank - the rank of the source reading of the last relation seen
+     * @param readingId - the ID of the source reading of the last relation seen, or -1
+     * @param relId - the ID of the last relation seen, or -1
+     * @param limit - the maximum number of relations to return
+     * @return the list of relations
+     */
+    List<Relationship> sectionRelationsAfter(long rank, long readingId, long relId, int limit) {
+        List<Relationship> result = new ArrayList<>();
+        Node sectionNode = db.getNodeById(Long.valueOf(sectId));
+        // Start with the source reading of the last relation, in case it has more
+        long seenRank = rank;
+        long seenId = readingId - 1;
+        while (result.size() < limit) {
+            List<Node> readings = ReadingService.readingsAfter(sectionNode, seenRank, seenId, Math.min(limit, 1000));
+            if (readings.isEmpty()) break;
+            for (Node n : readings) {
+                seenRank = Long.valueOf(n.getProperty("rank").toString());
+                seenId = n.getId();
+                if (n.hasLabel(Nodes.EMENDATION)) continue;
+                List<Relationship> outgoing = new ArrayList<>();
+                n.getRelationships(ERelations.RELATED, Direction.OUTGOING).forEach(outgoing::add);
+                outgoing.sort(Comparator.comparingLong(Relationship::getId));
+                for (Relationship r : outgoing) {
+                    if (n.getId() == readingId && r.getId() <= relId) continue;
+                    result.add(r);
+                    if (result.size() == limit) return result;
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * Gets a list of all clusters of readings that are related via colocation links.
      *
@@ -382,7 +708,7 @@ public class Section {
         try {
             if (startRdg != null) startRank = rankForReading(startRdg);
             if (endRdg != null) endRank = rankForReading(endRdg);
-            sectionLemmata = collectLemmaReadings(followFinal.equals("true"), startRank, endRank);
+            sectionLemmata = collectLemmaReadings(followFinal.equals("true"), startRank, endRank, startRdg);
             // Add on the end node, so we know whether a lacuna marker is needed.
             sectionLemmata.add(new ReadingModel(DatabaseService.getEndNode(sectId, db)));
         } catch (Exception e) {
@@ -425,7 +751,7 @@ public class Section {
         try {
             if (startRdg != null) startRank = rankForReading(startRdg);
             if (endRdg != null) endRank = rankForReading(endRdg);
-            sectionLemmata = collectLemmaReadings(followFinal.equals("true"), startRank, endRank);
+            sectionLemmata = collectLemmaReadings(followFinal.equals("true"), startRank, endRank, startRdg);
         } catch (Exception e) {
             e.printStackTrace();
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
@@ -433,35 +759,23 @@ public class Section {
         return Response.ok(sectionLemmata).build();
     }
 
-    private List<ReadingModel> collectLemmaReadings(Boolean followFinal, String startFrom, String endAt) {
+    private List<ReadingModel> collectLemmaReadings(Boolean followFinal, String startFrom, String endAt,
+                                                    String startRdg) {
         List<ReadingModel> result;
-        Node sectionStart = DatabaseService.getStartNode(sectId, db);
-        Node sectionEnd = DatabaseService.getEndNode(sectId, db);
         try (Transaction tx = db.beginTx()) {
+            Node sectionNode = db.getNodeById(Long.valueOf(sectId));
             long startRank = Long.valueOf(startFrom);
             long endRank = endAt.equals("E")
-                    ? Long.valueOf(sectionEnd.getProperty("rank").toString()) - 1
+                    ? Long.valueOf(DatabaseService.getEndNode(sectId, db).getProperty("rank").toString()) - 1
                     : Long.valueOf(endAt);
             if (followFinal) {
-                ResourceIterable<Node> sectionLemmata = db.traversalDescription().depthFirst()
-                        .relationships(ERelations.LEMMA_TEXT, Direction.OUTGOING)
-                        .evaluator(Evaluators.all())
-                        .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(sectionStart)
-                        .nodes();
-                // Limit to the requested rank range
-                result = sectionLemmata.stream().map(ReadingModel::new)
-                        .filter(x -> x.getRank() >= startRank && x.getRank() <= endRank)
-                        .collect(Collectors.toList());
+                Node entry = startRdg == null ? null : db.getNodeById(Long.valueOf(startRdg));
+                result = lemmaChain(sectionNode, entry, startRank, endRank).stream()
+                        .map(ReadingModel::new).collect(Collectors.toList());
             } else {
-                result = db.traversalDescription().depthFirst()
-                        .expand(new AlignmentTraverse())
-                        .uniqueness(Uniqueness.NODE_GLOBAL)
-                        .traverse(sectionStart).nodes().stream()
-                        .filter(x -> x.hasLabel(Nodes.READING)
-                                && x.hasProperty("is_lemma")
-                                && x.getProperty("is_lemma").equals(true)
-                                && (Long) x.getProperty("rank") >= startRank
-                                && (Long) x.getProperty("rank") <= endRank)
+                // Lemma readings needn't be on the chain yet, so look at everything in the window
+                result = ReadingService.readingsInRankRange(sectionNode, startRank, endRank, true).stream()
+                        .filter(x -> x.getProperty("is_lemma", false).equals(true))
                         .map(ReadingModel::new).sorted().collect(Collectors.toList());
             }
             tx.success();
@@ -472,6 +786,46 @@ public class Section {
         return result;
     }
 
+    // Follows the LEMMA_TEXT chain through the given ranks. The chain is entered at the given
+    // reading if it is on the chain, or else at its first reading in the window, which is
+    // found by seeking through the rank index; the walk stops once it passes the window.
+    private List<Node> lemmaChain(Node sectionNode, Node entry, long startRank, long endRank) {
+        List<Node> chain = new ArrayList<>();
+        Node current = null;
+        if (entry != null && entry.hasRelationship(ERelations.LEMMA_TEXT, Direction.INCOMING)) {
+            current = entry;
+        } else if (startRank <= 1) {
+            current = DatabaseService.getStartNode(sectId, db);
+            if (startRank == 1) {
+                Relationship first = current.getSingleRelationship(ERelations.LEMMA_TEXT, Direction.OUTGOING);
+                current = first == null ? null : first.getEndNode();
+            }
+        } else {
+            long rank = startRank;
+            long after = -1;
+            seek:
+            for (List<Node> batch = ReadingService.readingsAfter(sectionNode, rank, after, 64); !batch.isEmpty();
+                 batch = ReadingService.readingsAfter(sectionNode, rank, after, 64)) {
+                for (Node n : batch) {
+                    rank = Long.valueOf(n.getProperty("rank").toString());
+                    after = n.getId();
+                    if (rank > endRank)
+                        break seek;
+                    if (n.hasRelationship(ERelations.LEMMA_TEXT, Direction.INCOMING)) {
+                        current = n;
+                        break seek;
+                    }
+                }
+            }
+        }
+        while (current != null && Long.valueOf(current.getProperty("rank").toString()) <= endRank) {
+            chain.add(current);
+            Relationship next = current.getSingleRelationship(ERelations.LEMMA_TEXT, Direction.OUTGOING);
+            current = next == null ? null : next.getEndNode();
+        }
+        return chain;
+    }
+
     private String rankForReading(String rdgId) {
         String answer;
         try (Transaction tx = db.beginTx()) {
@@ -506,12 +860,16 @@ public class Section {
         List<AnnotationModel> result = new ArrayList<>();
         try (Transaction tx = db.beginTx()) {
             // We want to find all annotation nodes that are linked both to the tradition node
-            // and to some node in this section.
-            HashSet<Node> foundAnns = new HashSet<>();
-            for (Node n : DatabaseService.returnTraditionSection(sectId, db).nodes()) {
-                StreamSupport.stream(n.getRelationships(Direction.INCOMING).spliterator(), false)
-                        .filter(x -> x.getStartNode().hasRelationship(ERelations.HAS_ANNOTATION, Direction.INCOMING))
-                        .map(Relationship::getStartNode).forEach(foundAnns::add);
+            // and to some node in this section. The section statistics keep track of these;
+            // if there are none, we have to look through the section.
+            Set<Node> foundAnns = indexedAnnotations(db.getNodeById(Long.valueOf(sectId)));
+            if (foundAnns == null) {
+                foundAnns = new HashSet<>();
+                for (Node n : DatabaseService.returnTraditionSection(sectId, db).nodes()) {
+                    StreamSupport.stream(n.getRelationships(Direction.INCOMING).spliterator(), false)
+                            .filter(x -> x.getStartNode().hasRelationship(ERelations.HAS_ANNOTATION, Direction.INCOMING))
+                            .map(Relationship::getStartNode).forEach(foundAnns::add);
+                }
             }
             // Filter the annotations if we have been asked to
             if (filterLabels.size() > 0) {
@@ -542,6 +900,26 @@ public class Section {
         return Response.ok(result).build();
     }
 
+    // The annotations that refer to the section, as recorded in its statistics, or null
+    // if it has none. Used inside a transaction
+    private Set<Node> indexedAnnotations(Node sectionNode) {
+        Set<Long> annotationIds = SectionStatistics.annotations(sectionNode);
+        if (annotationIds == null)
+            return null;
+        HashSet<Node> result = new HashSet<>();
+        for (Long id : annotationIds) {
+            try {
+                Node a = db.getNodeById(id);
+                if (a.hasRelationship(ERelations.HAS_ANNOTATION, Direction.INCOMING))
+                    result.add(a);
+            } catch (NotFoundException e) {
+                // The statistics are behind; look through the section instead
+                return null;
+            }
+        }
+        return result;
+    }
+
     /*
      * Manipulation
      */
@@ -556,12 +934,21 @@ public class Section {
      * @statuscode 400 - if the priorSectId doesn't belong to the given tradition
      * @statuscode 404 - if no such tradition or section exists
      * @statuscode 500 - on failure, with an error message
+     * @statuscode 503 - if the tradition is locked by another edit for too long
      */
     @PUT
     @Path("/orderAfter/{priorSectID}")
     @Produces(MediaType.TEXT_PLAIN)
     @ReturnType("java.lang.Void")
     public Response reorderSectionAfter(@PathParam("priorSectID") String priorSectID) {
+        try (LockManager.Held ignored = LockManager.writeTradition(tradId)) {
+            return doReorderSectionAfter(priorSectID);
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doReorderSectionAfter(String priorSectID) {
         try (Transaction tx = db.beginTx()) {
             if (!sectionInTradition())
                 return Response.status(Response.Status.NOT_FOUND).entity("Tradition and/or section not found").build();
@@ -616,7 +1003,11 @@ public class Section {
             if (priorSection != null) priorSection.createRelationshipTo(thisSection, ERelations.NEXT);
             // ...and to the old "next" if it exists
             if (latterSection != null) thisSection.createRelationshipTo(latterSection, ERelations.NEXT);
+            SectionOrderCache.invalidate(tradId);
             tx.success();
+        } catch (TransientFailureException e) {
+            // Let the request be retried
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             return Response.serverError().build();
@@ -636,12 +1027,22 @@ public class Section {
      * @statuscode 400 - if the section doesn't contain the specified rank
      * @statuscode 404 - if no such tradition or section exists
      * @statuscode 500 - on failure, with an error message
+     * @statuscode 503 - if the tradition is locked by another edit for too long
      */
     @POST
     @Path("/splitAtRank/{rankstr}")
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     // @ReturnType("java.lang.String")
+    @DeadlockRetry.Retryable
     public Response splitAtRank (@PathParam("rankstr") String rankstr) {
+        try (LockManager.Held ignored = LockManager.writeTradition(tradId)) {
+            return doSplitAtRank(rankstr);
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doSplitAtRank (String rankstr) {
         if (!sectionInTradition())
             return Response.status(Response.Status.NOT_FOUND).entity(jsonerror("Tradition and/or section not found")).build();
 
@@ -679,6 +1080,7 @@ public class Section {
             // Make a new section node and insert it into the sequence
             Node newSection = db.createNode(Nodes.SECTION);
             DatabaseService.getTraditionNode(thisSection, db).createRelationshipTo(newSection, ERelations.PART);
+            SectionOrderCache.invalidate(tradId);
             newSection.setProperty("name", thisSection.getProperty("name") + " split");
             newSectionId = newSection.getId();
             Section newSectionRest = new Section(tradId, String.valueOf(newSection.getId()));
@@ -756,6 +1158,9 @@ public class Section {
             // recalculateRank(newStart);
 
             tx.success();
+        } catch (TransientFailureException e) {
+            // Let the request be retried
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
@@ -793,12 +1198,22 @@ public class Section {
      * @statuscode 400 - if the sections are not contiguous
      * @statuscode 404 - if no such tradition or section exists
      * @statuscode 500 - on failure, with an error message
+     * @statuscode 503 - if the tradition is locked by another edit for too long
      */
     @POST
     @Path("/merge/{otherId}")
     @Produces(MediaType.TEXT_PLAIN)
     @ReturnType("java.lang.Void")
+    @DeadlockRetry.Retryable
     public Response mergeSections (@PathParam("otherId") String otherId) {
+        try (LockManager.Held ignored = LockManager.writeTradition(tradId)) {
+            return doMergeSections(otherId);
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        }
+    }
+
+    private Response doMergeSections (String otherId) {
         if (!sectionInTradition())
             return Response.status(Response.Status.NOT_FOUND).entity("Tradition and/or section not found").build();
         if (!DatabaseService.sectionInTradition(tradId, otherId, db))
@@ -896,6 +1311,9 @@ public class Section {
                 recalculateRank(n);
 
             tx.success();
+        } catch (TransientFailureException e) {
+            // Let the request be retried
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             return Response.serverError().entity(e.getMessage()).build();
@@ -911,6 +1329,7 @@ public class Section {
      */
     @GET
     @Path("/initRanks")
+    @RequestTransactionFilter.Writes
     @Produces(MediaType.APPLICATION_JSON)
     @MireDotIgnore
     public Response initRanks() {
@@ -965,7 +1384,7 @@ public class Section {
         List<List<ReadingModel>> couldBeIdenticalReadings;
         try (Transaction tx = db.beginTx()) {
             List<Node> questionedReadings = getReadingsBetweenRanks(
-                    startRank, endRank, startNode, limitText);
+                    startRank, endRank, limitText);
 
             couldBeIdenticalReadings = getCouldBeIdenticalAsList(questionedReadings, threshold);
             tx.success();
@@ -1023,15 +1442,11 @@ public class Section {
     }
 
     // Retrieve all readings of a tradition between two ranks as Nodes
-    private List<Node> getReadingsBetweenRanks(long startRank, long endRank, Node startNode, String limitText) throws Exception {
+    private List<Node> getReadingsBetweenRanks(long startRank, long endRank, String limitText) {
         List<Node> readings;
-        PathExpander e = new AlignmentTraverse(startNode);
         try (Transaction tx = db.beginTx()) {
-            Stream<Node> readingStream = db.traversalDescription().depthFirst()
-                    .expand(e).uniqueness(Uniqueness.NODE_GLOBAL)
-                    .traverse(startNode).nodes().stream()
-                    .filter(x -> startRank <= Long.valueOf(x.getProperty("rank").toString()) &&
-                            endRank >= Long.valueOf(x.getProperty("rank").toString()));
+            Stream<Node> readingStream = ReadingService.readingsInRankRange(
+                    db.getNodeById(Long.valueOf(sectId)), startRank, endRank).stream();
             if (!limitText.equals(""))
                 readingStream = readingStream.filter(x -> x.getProperty("text").toString().equals(limitText));
             readings = readingStream.collect(Collectors.toList());
@@ -1074,7 +1489,7 @@ public class Section {
         ArrayList<List<ReadingModel>> identicalReadings;
         try {
             ArrayList<ReadingModel> readingModels =
-                    getAllReadingsFromSectionBetweenRanks(startNode, startRank, endRank);
+                    getAllReadingsFromSectionBetweenRanks(startRank, endRank);
             identicalReadings = identifyIdenticalReadings(readingModels, startRank, endRank);
         } catch (Exception e) {
             e.printStackTrace();
@@ -1088,10 +1503,9 @@ public class Section {
     }
 
     // Retrieve all readings of a tradition between two ranks as ReadingModels
-    private ArrayList<ReadingModel> getAllReadingsFromSectionBetweenRanks(
-            Node startNode, long startRank, long endRank) throws Exception {
+    private ArrayList<ReadingModel> getAllReadingsFromSectionBetweenRanks(long startRank, long endRank) {
         ArrayList<ReadingModel> readingModels = new ArrayList<>();
-        getReadingsBetweenRanks(startRank, endRank, startNode, "")
+        getReadingsBetweenRanks(startRank, endRank, "")
                 .forEach(x -> readingModels.add(new ReadingModel(x)));
         readingModels.sort(Comparator.comparing(ReadingModel::getRank));
         return readingModels;
@@ -1461,6 +1875,26 @@ public class Section {
         return new TabularExporter(db).exportAsCSV(tradId, '\t', toConflate, thisSection);
     }
 
+    /**
+     * Returns an Excel (.xlsx) workbook that contains the aligned reading data for the section.
+     * The workbook is streamed as it is written, so that large sections need not be held in memory.
+     *
+     * @summary Download Excel alignment
+     *
+     * @param toConflate     - Zero or more relationship types whose readings should be treated as identical
+     * @param highlightLemma - If true, cells that hold lemma readings are highlighted. Default is false.
+     * @return the alignment as an Excel workbook
+     */
+    @GET
+    @Path("/xlsx")
+    @Produces(TabularExporter.XLSX_TYPE)
+    @ReturnType("java.lang.Void")
+    public Response getXlsx(@QueryParam("conflate") String toConflate,
+                            @QueryParam("highlight_lemma") @DefaultValue("false") String highlightLemma) {
+        List<String> thisSection = new ArrayList<>(Collections.singletonList(sectId));
+        return new TabularExporter(db).exportAsXlsx(tradId, toConflate, thisSection, highlightLemma.equals("true"));
+    }
+
     /**
      * Returns a character matrix suitable for use with e.g. Phylip Pars.
      *
@@ -1498,6 +1932,7 @@ public class Section {
         if (priorSection != null && nextSection != null) {
             priorSection.createRelationshipTo(nextSection, ERelations.NEXT);
         }
+        SectionOrderCache.invalidate(tradId);
     }
 
     private Boolean sectionInTradition() {
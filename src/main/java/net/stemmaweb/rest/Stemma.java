@@ -1,6 +1,7 @@
 package net.stemmaweb.rest;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -14,6 +15,7 @@ import com.qmino.miredot.annotations.ReturnType;
 import net.stemmaweb.model.StemmaModel;
 import net.stemmaweb.parser.DotParser;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.StemmaGraph;
 
 import org.codehaus.jettison.json.JSONObject;
 import org.neo4j.graphdb.*;
@@ -61,16 +63,76 @@ public class Stemma {
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType(clazz = StemmaModel.class)
     public Response getStemma() {
-        Node stemmaNode = getStemmaNode();
-        if (stemmaNode == null) {
+        StemmaGraph stemma = StemmaGraph.of(tradId, name, db);
+        if (stemma == null) {
             return Response.status(Status.NOT_FOUND)
                     .entity(jsonerror(String.format("No stemma %s found for tradition %s", name, tradId))).build();
         }
-        StemmaModel result = new StemmaModel(stemmaNode);
+        StemmaModel result = new StemmaModel(stemma);
         Status returncode = newCreated ? Status.CREATED : Status.OK;
         return Response.status(returncode).entity(result).build();
     }
 
+    /**
+     * Returns the sigla of the witnesses from which the given witness descends in this
+     * stemma, nearest first.
+     *
+     * @summary Get witness ancestors
+     * @param sigil - the sigil of the witness
+     * @return A list of witness sigla
+     * @statuscode 200 - on success
+     * @statuscode 404 - if no such stemma exists, or the witness is not in it
+     * @statuscode 412 - if the stemma is undirected
+     * @statuscode 500 - on failure, with an error message
+     */
+    @GET
+    @Path("ancestors/{sigil}")
+    @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
+    @ReturnType("java.util.List<java.lang.String>")
+    public Response getAncestors(@PathParam("sigil") String sigil) {
+        return lineage(sigil, true);
+    }
+
+    /**
+     * Returns the sigla of the witnesses that descend from the given witness in this
+     * stemma, nearest first.
+     *
+     * @summary Get witness descendants
+     * @param sigil - the sigil of the witness
+     * @return A list of witness sigla
+     * @statuscode 200 - on success
+     * @statuscode 404 - if no such stemma exists, or the witness is not in it
+     * @statuscode 412 - if the stemma is undirected
+     * @statuscode 500 - on failure, with an error message
+     */
+    @GET
+    @Path("descendants/{sigil}")
+    @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
+    @ReturnType("java.util.List<java.lang.String>")
+    public Response getDescendants(@PathParam("sigil") String sigil) {
+        return lineage(sigil, false);
+    }
+
+    private Response lineage(String sigil, boolean ancestors) {
+        List<String> result;
+        try {
+            StemmaGraph stemma = StemmaGraph.of(tradId, name, db);
+            if (stemma == null)
+                return Response.status(Status.NOT_FOUND)
+                        .entity(jsonerror(String.format("No stemma %s found for tradition %s", name, tradId))).build();
+            if (!stemma.hasWitness(sigil))
+                return Response.status(Status.NOT_FOUND).entity(jsonerror("No such witness found in stemma")).build();
+            if (!stemma.isDirected())
+                return Response.status(Status.PRECONDITION_FAILED)
+                        .entity(jsonerror("Undirected stemma has no lines of descent")).build();
+            result = ancestors ? stemma.ancestors(sigil) : stemma.descendants(sigil);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        return Response.ok(result).build();
+    }
+
     /**
      * Stores a new or updated stemma under the given name.
      *
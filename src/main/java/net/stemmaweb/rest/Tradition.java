@@ -11,8 +11,13 @@ import net.stemmaweb.model.*;
 import net.stemmaweb.parser.*;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.LockManager;
 import net.stemmaweb.services.ReadingService;
 import net.stemmaweb.services.RelationService;
+import net.stemmaweb.services.SectionOrderCache;
+import net.stemmaweb.services.SectionStatistics;
+import net.stemmaweb.services.TraditionCloner;
+import net.stemmaweb.services.WitnessRegistry;
 import org.codehaus.jettison.json.JSONObject;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.*;
@@ -28,6 +33,7 @@ import java.util.stream.Collectors;
 
 import static net.stemmaweb.rest.Util.jsonerror;
 import static net.stemmaweb.rest.Util.jsonresp;
+import static net.stemmaweb.rest.Util.lockTimeout;
 //import org.neo4j.helpers.collection.IteratorUtil; // Neo4j 2.x
 
 
@@ -160,25 +166,11 @@ public class Tradition {
     private ArrayList<SectionModel> produceSectionList (Node traditionNode) {
         ArrayList<SectionModel> sectionList = new ArrayList<>();
         try (Transaction tx = db.beginTx()) {
-            ArrayList<Node> sectionNodes = DatabaseService.getRelated(traditionNode, ERelations.PART);
-            int depth = sectionNodes.size();
-            if (depth > 0) {
-                for(Node n: sectionNodes) {
-                    if (!n.getRelationships(Direction.INCOMING, ERelations.NEXT)
-                            .iterator()
-                            .hasNext()) {
-                        db.traversalDescription()
-                                .depthFirst()
-                                .relationships(ERelations.NEXT, Direction.OUTGOING)
-                                .evaluator(Evaluators.toDepth(depth))
-                                .uniqueness(Uniqueness.NODE_GLOBAL)
-                                .traverse(n)
-                                .nodes()
-                                .forEach(r -> sectionList.add(new SectionModel(r)));
-                        break;
-                    }
-                }
-            }
+            int depth = DatabaseService.getRelated(traditionNode, ERelations.PART).size();
+            ArrayList<Node> sectionNodes = DatabaseService.getSectionNodes(
+                    traditionNode.getProperty("id").toString(), db);
+            if (sectionNodes != null)
+                sectionNodes.forEach(r -> sectionList.add(new SectionModel(r)));
             tx.success();
             if (sectionList.size() != depth) {
                 throw new Exception(
@@ -229,6 +221,7 @@ public class Tradition {
                 traditionNode.createRelationshipTo(sectionNode, ERelations.PART);
                 tx.success();
             }
+            SectionOrderCache.invalidate(traditionId);
         }
 
         // Parse the contents of the given file into that section
@@ -276,6 +269,7 @@ public class Tradition {
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
+                SectionOrderCache.invalidate(traditionId);
             }
         }
 
@@ -326,6 +320,7 @@ public class Tradition {
      */
     @GET
     @Path("/initRanks")
+    @RequestTransactionFilter.Writes
     @Produces(MediaType.APPLICATION_JSON)
     @MireDotIgnore
     public Response initRanks() {
@@ -397,7 +392,7 @@ public class Tradition {
 
         ArrayList<WitnessModel> witnessList = new ArrayList<>();
         try (Transaction tx = db.beginTx()) {
-            DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS)
+            WitnessRegistry.witnesses(traditionNode)
                     .forEach(r -> witnessList.add(new WitnessModel(r)));
             tx.success();
         } catch (Exception e) {
@@ -440,11 +435,17 @@ public class Tradition {
     }
 
     /**
-     * Gets a list of all relationships defined within the given tradition.
+     * Gets a list of all relationships defined within the given tradition. If a limit or
+     * cursor is given, the relationships are returned a page at a time, section by section
+     * and in order of rank, and the cursor for the next page, if any, is returned in the
+     * X-Next-Cursor header.
      *
      * @summary Get relationships
+     * @param cursor - the cursor returned with the previous page
+     * @param limit - the maximum number of relationships to return
      * @return A list of relationship metadata
      * @statuscode 200 - on success
+     * @statuscode 400 - if the cursor or limit is invalid
      * @statuscode 404 - if no such tradition exists
      * @statuscode 500 - on failure, with an error message
      */
@@ -452,11 +453,20 @@ public class Tradition {
     @Path("/relations")
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType("java.util.List<net.stemmaweb.model.RelationModel>")
-    public Response getAllRelationships() {
+    public Response getAllRelationships(@QueryParam("cursor") String cursor,
+                                        @QueryParam("limit") Integer limit) {
         ArrayList<RelationModel> relList = new ArrayList<>();
         Node traditionNode = DatabaseService.getTraditionNode(traditionId, db);
         if (traditionNode == null)
             return Response.status(Status.NOT_FOUND).entity(jsonerror("tradition not found")).build();
+
+        try {
+            Paging paging = Paging.of(cursor, limit, 4);
+            if (paging != null)
+                return relationPage(paging);
+        } catch (IllegalArgumentException e) {
+            return Paging.badCursor(e);
+        }
         ArrayList<SectionModel> ourSections = produceSectionList(traditionNode);
         if (ourSections == null)
             return Response.serverError().entity(jsonerror("section lookup failed")).build();
@@ -499,12 +509,23 @@ public class Tradition {
         return Response.ok(relTypeList).build();
     }
 
+    // Backwards compatibility for API
+    public Response getAllReadings() {
+        return getAllReadings(null, null);
+    }
+
     /**
-     * Gets a list of all readings in the given tradition.
+     * Gets a list of all readings in the given tradition. If a limit or cursor is given,
+     * the readings are returned a page at a time, section by section and in order of
+     * rank, and the cursor for the next page, if any, is returned in the X-Next-Cursor
+     * header.
      *
      * @summary Get readings
+     * @param cursor - the cursor returned with the previous page
+     * @param limit - the maximum number of readings to return
      * @return A list of reading metadata
      * @statuscode 200 - on success
+     * @statuscode 400 - if the cursor or limit is invalid
      * @statuscode 404 - if no such tradition exists
      * @statuscode 500 - on failure, with an error message
      */
@@ -512,12 +533,21 @@ public class Tradition {
     @Path("/readings")
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType("java.util.List<net.stemmaweb.model.ReadingModel>")
-    public Response getAllReadings() {
+    public Response getAllReadings(@QueryParam("cursor") String cursor,
+                                   @QueryParam("limit") Integer limit) {
         Node traditionNode = DatabaseService.getTraditionNode(traditionId, db);
         if (traditionNode == null)
             return Response.status(Status.NOT_FOUND)
                     .entity(jsonerror("There is no tradition with this id")).build();
 
+        try {
+            Paging paging = Paging.of(cursor, limit, 3);
+            if (paging != null)
+                return readingPage(paging);
+        } catch (IllegalArgumentException e) {
+            return Paging.badCursor(e);
+        }
+
         ArrayList<SectionModel> allSections = produceSectionList(traditionNode);
         if (allSections == null)
             return Response.serverError()
@@ -535,27 +565,129 @@ public class Tradition {
         return Response.ok(readingModels).build();
     }
 
+    // Find the index of the section a cursor points into, which must still be in the tradition
+    private static int cursorSection(List<Node> sections, long sectionId) {
+        for (int i = 0; i < sections.size(); i++)
+            if (sections.get(i).getId() == sectionId)
+                return i;
+        throw new IllegalArgumentException("Paging cursor refers to a section that no longer exists");
+    }
+
+    // One page of readings, sorted by section, rank and node ID
+    private Response readingPage(Paging paging) {
+        try (Transaction tx = db.beginTx()) {
+            ArrayList<Node> sections = DatabaseService.getSectionNodes(traditionId, db);
+            if (sections == null)
+                return Response.serverError().entity(jsonerror("Tradition has no sections")).build();
+            int from = paging.atStart() ? 0 : cursorSection(sections, paging.after(0));
+            long rank = paging.atStart() ? 0 : paging.after(1);
+            long afterId = paging.atStart() ? -1 : paging.after(2);
+            List<Node> found = new ArrayList<>();
+            for (int i = from; i < sections.size() && found.size() < paging.fetchSize(); i++) {
+                found.addAll(ReadingService.readingsAfter(sections.get(i), rank, afterId,
+                        paging.fetchSize() - found.size()));
+                rank = 0;
+                afterId = -1;
+            }
+            long[] next = paging.trim(found, n -> new long[] {(Long) n.getProperty("section_id"),
+                    Long.valueOf(n.getProperty("rank").toString()), n.getId()});
+            List<ReadingModel> page = found.stream().map(ReadingModel::new).collect(Collectors.toList());
+            tx.success();
+            return Paging.page(page, next);
+        } catch (IllegalArgumentException e) {
+            return Paging.badCursor(e);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+    }
+
+    // One page of relations, sorted by section, source reading rank and ID, and relation ID
+    private Response relationPage(Paging paging) {
+        try (Transaction tx = db.beginTx()) {
+            ArrayList<Node> sections = DatabaseService.getSectionNodes(traditionId, db);
+            if (sections == null)
+                return Response.serverError().entity(jsonerror("section lookup failed")).build();
+            int from = paging.atStart() ? 0 : cursorSection(sections, paging.after(0));
+            long rank = paging.atStart() ? 0 : paging.after(1);
+            long readingId = paging.atStart() ? -1 : paging.after(2);
+            long relId = paging.atStart() ? -1 : paging.after(3);
+            List<Relationship> found = new ArrayList<>();
+            for (int i = from; i < sections.size() && found.size() < paging.fetchSize(); i++) {
+                Section sectRest = new Section(traditionId, String.valueOf(sections.get(i).getId()));
+                found.addAll(sectRest.sectionRelationsAfter(rank, readingId, relId, paging.fetchSize() - found.size()));
+                rank = 0;
+                readingId = -1;
+                relId = -1;
+            }
+            long[] next = paging.trim(found, r -> new long[] {(Long) r.getStartNode().getProperty("section_id"),
+                    Long.valueOf(r.getStartNode().getProperty("rank").toString()), r.getStartNode().getId(), r.getId()});
+            List<RelationModel> page = found.stream().map(RelationModel::new).collect(Collectors.toList());
+            tx.success();
+            return Paging.page(page, next);
+        } catch (IllegalArgumentException e) {
+            return Paging.badCursor(e);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+    }
+
     /**
-     * Return a list of the annotations that have been made on this tradition.
+     * Return a list of the annotations that have been made on this tradition. If a limit
+     * or cursor is given, the annotations are returned a page at a time, and the cursor
+     * for the next page, if any, is returned in the X-Next-Cursor header.
      *
      * @summary Get annotations on tradition
      *
      * @param filterLabels Return only annotations with the given label. May be specified multiple times.
+     * @param cursor - the cursor returned with the previous page
+     * @param limit - the maximum number of annotations to return
      * @return a list of AnnotationModels
      * @statuscode 200 - on success
-     * @statuscode 400 - if tradition doesn't exist
+     * @statuscode 400 - if tradition doesn't exist, or the cursor or limit is invalid
      * @statuscode 500 - on error
      */
     @GET
     @Path("/annotations")
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType("java.util.List<net.stemmaweb.model.AnnotationModel>")
-    public Response getAllAnnotations(@QueryParam("label") List<String> filterLabels) {
+    public Response getAllAnnotations(@QueryParam("label") List<String> filterLabels,
+                                      @QueryParam("cursor") String cursor,
+                                      @QueryParam("limit") Integer limit) {
         Node traditionNode = DatabaseService.getTraditionNode(traditionId, db);
         if (traditionNode == null)
             return Response.status(Status.NOT_FOUND)
                     .entity(jsonerror("There is no tradition with this id")).build();
 
+        Paging paging;
+        try {
+            paging = Paging.of(cursor, limit, 1);
+        } catch (IllegalArgumentException e) {
+            return Paging.badCursor(e);
+        }
+        if (paging != null) {
+            try (Transaction tx = db.beginTx()) {
+                Map<String, Object> params = new HashMap<>();
+                params.put("tradId", traditionId);
+                params.put("after", paging.atStart() ? -1L : paging.after(0));
+                params.put("labels", filterLabels);
+                params.put("fetch", paging.fetchSize());
+                Result result = db.execute("MATCH (:TRADITION {id:$tradId})-[:HAS_ANNOTATION]->(a) " +
+                        "WHERE id(a) > $after AND (size($labels) = 0 OR any(l IN labels(a) WHERE l IN $labels)) " +
+                        "RETURN a ORDER BY id(a) LIMIT $fetch", params);
+                List<Node> found = new ArrayList<>();
+                result.<Node>columnAs("a").forEachRemaining(found::add);
+                long[] next = paging.trim(found, n -> new long[] {n.getId()});
+                List<AnnotationModel> page = found.stream().map(AnnotationModel::new).collect(Collectors.toList());
+                tx.success();
+                return Paging.page(page, next);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return Response.serverError().entity(jsonerror(e.getMessage())).build();
+            }
+        }
+
         List<AnnotationModel> result;
         try (Transaction tx = db.beginTx()) {
             ArrayList<AnnotationModel> allAnnotations = new ArrayList<>();
@@ -751,6 +883,100 @@ public class Tradition {
         return Response.ok(deleted).build();
     }
 
+    /**
+     * Deletes those of the given annotations that lack referents, unless the annotation is
+     * marked as "primary", along with any annotations that are left without referents in
+     * turn. Used after a deletion, when only the annotations that referred to the deleted
+     * nodes can have been left dangling. Must be called within a transaction.
+     *
+     * @param candidates - the annotation nodes to check
+     * @return a list of AnnotationModels representing deleted annotations
+     */
+    List<AnnotationModel> pruneAnnotations(Collection<Node> candidates) {
+        List<AnnotationModel> deleted = new ArrayList<>();
+        HashSet<Long> gone = new HashSet<>();
+        ArrayDeque<Node> toCheck = new ArrayDeque<>(candidates);
+        while (!toCheck.isEmpty()) {
+            Node a = toCheck.pop();
+            if (gone.contains(a.getId()) || a.hasLabel(Nodes.TRADITION)) continue;
+            boolean isPrimary = a.getProperty("primary", false).equals(true);
+            if (!a.hasRelationship(Direction.OUTGOING) && !isPrimary) {
+                deleted.add(new AnnotationModel(a));
+                for (Relationship r : a.getRelationships(Direction.INCOMING)) {
+                    toCheck.add(r.getStartNode());
+                    r.delete();
+                }
+                a.delete();
+                gone.add(a.getId());
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Makes a copy of this tradition within the database, including its sections, readings,
+     * relations, witnesses, stemmata, relation types, and annotations. Returns the ID of the
+     * new tradition, in the form {@code {"tradId": <ID>}}. Edits to the tradition are held
+     * back while the copy is made, but it can still be read.
+     *
+     * @summary Clone tradition
+     *
+     * @param name - the name for the copy; defaults to the name of this tradition
+     * @param userId - the ID of the user who should own the copy; defaults to the owner of
+     *               this tradition
+     * @return the ID of the new tradition
+     * @statuscode 201 - on success
+     * @statuscode 404 - if the tradition or the requested owner does not exist
+     * @statuscode 500 - on error, with an error message
+     * @statuscode 503 - if the tradition is locked by another request for too long
+     */
+    @POST
+    @Path("/clone")
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
+    @ReturnType("java.lang.Void")
+    public Response cloneTradition(@FormParam("name") String name,
+                                   @FormParam("userId") String userId) {
+        Node traditionNode = DatabaseService.getTraditionNode(traditionId, db);
+        if (traditionNode == null)
+            return Response.status(Status.NOT_FOUND).entity(jsonerror("No such tradition found")).build();
+        Node owner;
+        try (Transaction tx = db.beginTx()) {
+            owner = userId == null
+                    ? traditionNode.getSingleRelationship(ERelations.OWNS_TRADITION, Direction.INCOMING).getStartNode()
+                    : db.findNode(Nodes.USER, "id", userId);
+            tx.success();
+        }
+        if (owner == null)
+            return Response.status(Status.NOT_FOUND).entity(jsonerror("A user with this id does not exist")).build();
+
+        String newId;
+        // The copy only reads the tradition, so it takes shared locks: the tradition lock keeps
+        // the list of sections still, and the section locks hold back edits within them
+        try (LockManager.Held traditionLock = LockManager.readTradition(traditionId);
+             LockManager.Held sectionLocks = LockManager.readSections(traditionId, sectionIds())) {
+            newId = TraditionCloner.cloneTradition(traditionId, name, owner, db);
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        return Response.status(Status.CREATED).entity(jsonresp("tradId", newId)).build();
+    }
+
+    // The node IDs of the tradition's sections, or none if it has gone
+    private List<Long> sectionIds() {
+        ArrayList<Long> ids = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            ArrayList<Node> sections = DatabaseService.getSectionNodes(traditionId, db);
+            if (sections != null)
+                sections.forEach(x -> ids.add(x.getId()));
+            tx.success();
+        }
+        return ids;
+    }
+
     /*
      * Tradition export API
      *
@@ -897,6 +1123,128 @@ public class Tradition {
         return new TabularExporter(db).exportAsCSV(traditionId, '\t', toConflate, sectionList);
     }
 
+    /**
+     * Returns an Excel (.xlsx) workbook that contains the aligned reading data for the tradition,
+     * with one sheet per section. The workbook is streamed as it is written, so that large
+     * traditions need not be held in memory.
+     *
+     * @summary Download Excel alignment
+     *
+     * @param toConflate     - Zero or more relationship types whose readings should be treated as identical
+     * @param sectionList    - Restrict the output to include the given sections. Can be specified multiple times.
+     * @param highlightLemma - If true, cells that hold lemma readings are highlighted. Default is false.
+     * @return the alignment as an Excel workbook
+     */
+    @GET
+    @Path("/xlsx")
+    @Produces(TabularExporter.XLSX_TYPE)
+    @ReturnType("java.lang.Void")
+    public Response getXlsx(@QueryParam("conflate") String toConflate,
+                            @QueryParam("section") List<String> sectionList,
+                            @QueryParam("highlight_lemma") @DefaultValue("false") String highlightLemma) {
+        return new TabularExporter(db).exportAsXlsx(traditionId, toConflate, sectionList, highlightLemma.equals("true"));
+    }
+
+    /**
+     * Returns the pairwise agreement of the witnesses over the variant locations of the
+     * tradition, i.e. the ranks where the witnesses don't all have the same reading. For
+     * each pair of witnesses, the number of locations where they agree and disagree is
+     * given, along with the proportion where they disagree. An omission counts as a
+     * reading, and a lacuna as no reading.
+     *
+     * @summary Get witness distances
+     *
+     * @param toConflate   - Zero or more relationship types whose readings should be treated as identical
+     * @param sectionList - Restrict the output to include the given sections. Can be specified multiple times.
+     * @return the agreement and distance matrices
+     * @statuscode 200 - on success
+     * @statuscode 400 - if a requested section does not exist
+     * @statuscode 404 - if the tradition does not exist
+     * @statuscode 500 - on error, with an error message
+     */
+    @GET
+    @Path("/witnessdistances")
+    @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
+    @ReturnType(clazz = WitnessDistancesModel.class)
+    public Response getWitnessDistances(@QueryParam("conflate") String toConflate,
+                                        @QueryParam("section") List<String> sectionList) {
+        return new TabularExporter(db).exportWitnessDistances(traditionId, toConflate, sectionList);
+    }
+
+    /**
+     * Gets the statistics of the tradition, added up over its sections: the number of
+     * readings, the number of witnesses, the number of relations of each type, and the
+     * number of annotations that refer to a section or its readings. Sections for which no
+     * statistics are being kept are counted afresh.
+     *
+     * @summary Get tradition statistics
+     * @return the tradition statistics
+     * @statuscode 200 - on success
+     * @statuscode 404 - if the tradition does not exist
+     * @statuscode 500 - on error, with an error message
+     */
+    @GET
+    @Path("/statistics")
+    @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
+    @ReturnType(clazz = StatisticsModel.class)
+    public Response getStatistics() {
+        Node traditionNode = DatabaseService.getTraditionNode(traditionId, db);
+        if (traditionNode == null)
+            return Response.status(Status.NOT_FOUND).entity(jsonerror("No such tradition found")).build();
+        StatisticsModel result;
+        try (Transaction tx = db.beginTx()) {
+            result = SectionStatistics.forSections(DatabaseService.getRelated(traditionNode, ERelations.PART), true);
+            tx.success();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        return Response.ok(result).build();
+    }
+
+    /**
+     * Counts the statistics of each section of the tradition from scratch and stores them,
+     * replacing whatever was kept before, and returns the totals. This is for repair, and
+     * for traditions whose statistics have not been kept so far.
+     *
+     * @summary Rebuild tradition statistics
+     * @return the tradition statistics
+     * @statuscode 200 - on success
+     * @statuscode 404 - if the tradition does not exist
+     * @statuscode 500 - on error, with an error message
+     * @statuscode 503 - if the tradition is locked by another request for too long
+     */
+    @POST
+    @Path("/statistics")
+    @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
+    @ReturnType(clazz = StatisticsModel.class)
+    public Response rebuildStatistics() {
+        Node traditionNode = DatabaseService.getTraditionNode(traditionId, db);
+        if (traditionNode == null)
+            return Response.status(Status.NOT_FOUND).entity(jsonerror("No such tradition found")).build();
+        StatisticsModel result;
+        try (LockManager.Held ignored = LockManager.writeTradition(traditionId)) {
+            ArrayList<Node> sections = DatabaseService.getRelated(traditionNode, ERelations.PART);
+            // One section per transaction, to keep the transaction state small
+            for (Node s : sections) {
+                try (Transaction tx = db.beginTx()) {
+                    SectionStatistics.rebuild(s);
+                    tx.success();
+                }
+            }
+            try (Transaction tx = db.beginTx()) {
+                result = SectionStatistics.forSections(sections, true);
+                tx.success();
+            }
+        } catch (LockManager.LockTimeoutException e) {
+            return lockTimeout(e);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        return Response.ok(result).build();
+    }
+
     /**
      * Returns a character matrix suitable for use with e.g. Phylip Pars.
      *
@@ -1,6 +1,10 @@
 package net.stemmaweb.rest;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
@@ -16,6 +20,7 @@ import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Result;
 import org.neo4j.graphdb.Transaction;
 
 import static net.stemmaweb.rest.Util.jsonerror;
@@ -174,19 +179,50 @@ public class User {
     /**
      * Get a list of the traditions belong to the user.
      *
+     * If a limit or cursor is given, the traditions are returned a page at a time, and
+     * the cursor for the next page, if any, is returned in the X-Next-Cursor header.
+     *
      * @summary List user traditions
      *
+     * @param cursor - the cursor returned with the previous page
+     * @param limit - the maximum number of traditions to return
      * @return A JSON list of tradition metadata objects
      */
     @GET
     @Path("/traditions")
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType("java.util.List<net.stemmaweb.model.TraditionModel>")
-    public Response getUserTraditions() {
+    public Response getUserTraditions(@QueryParam("cursor") String cursor,
+                                      @QueryParam("limit") Integer limit) {
         if (!DatabaseService.userExists(userId, db)) {
             return Response.status(Status.NOT_FOUND).entity(jsonerror("User does not exist")).build();
         }
 
+        Paging paging;
+        try {
+            paging = Paging.of(cursor, limit, 1);
+        } catch (IllegalArgumentException e) {
+            return Paging.badCursor(e);
+        }
+        if (paging != null) {
+            try (Transaction tx = db.beginTx()) {
+                Map<String, Object> params = new HashMap<>();
+                params.put("userId", userId);
+                params.put("after", paging.atStart() ? -1L : paging.after(0));
+                params.put("fetch", paging.fetchSize());
+                Result result = db.execute("MATCH (:USER {id:$userId})-[:OWNS_TRADITION]->(t) " +
+                        "WHERE id(t) > $after RETURN t ORDER BY id(t) LIMIT $fetch", params);
+                List<Node> found = new ArrayList<>();
+                result.<Node>columnAs("t").forEachRemaining(found::add);
+                long[] next = paging.trim(found, n -> new long[] {n.getId()});
+                List<TraditionModel> page = found.stream().map(TraditionModel::new).collect(Collectors.toList());
+                tx.success();
+                return Paging.page(page, next);
+            } catch (Exception e) {
+                return Response.serverError().entity(jsonerror(e.getMessage())).build();
+            }
+        }
+
         ArrayList<TraditionModel> traditions = new ArrayList<>();
         try {
             Node thisUser = getUserNode();
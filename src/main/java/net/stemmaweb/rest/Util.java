@@ -1,5 +1,10 @@
 package net.stemmaweb.rest;
 
+import net.stemmaweb.services.LockManager;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
 /**
  * Utility functions for the REST modules
  * Created by tla on 14/02/2018.
@@ -19,4 +24,21 @@ public class Util {
     static String jsonresp (String key, Long value) {
         return String.format("{\"%s\": %d}", key, value);
     }
+
+    // The response for a request that couldn't get its tradition or section locks in time
+    static Response lockTimeout (LockManager.LockTimeoutException e) {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .type(MediaType.APPLICATION_JSON_TYPE).entity(jsonerror(e.getMessage())).build();
+    }
+
+    // Get the error message back out of an error response, e.g. for reporting in a batch
+    static String errorMessage (Response response) {
+        if (response.getEntity() == null)
+            return null;
+        String entity = response.getEntity().toString();
+        String prefix = "{\"error\": \"";
+        if (entity.startsWith(prefix) && entity.endsWith("\"}"))
+            return entity.substring(prefix.length(), entity.length() - 2);
+        return entity;
+    }
 }
@@ -3,6 +3,10 @@ package net.stemmaweb.rest;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import javax.ws.rs.*;
@@ -20,8 +24,10 @@ import net.stemmaweb.services.GraphDatabaseServiceProvider;
 
 import net.stemmaweb.services.ReadingService;
 import net.stemmaweb.services.WitnessPath;
+import net.stemmaweb.services.WitnessRegistry;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.Evaluator;
+import org.neo4j.graphdb.traversal.TraversalDescription;
 import org.neo4j.graphdb.traversal.Uniqueness;
 
 import static net.stemmaweb.rest.Util.jsonerror;
@@ -33,12 +39,23 @@ import static net.stemmaweb.rest.Util.jsonerror;
  */
 
 public class Witness {
+    // Traverses the sections of tradition-wide requests; a fixed number of threads, so that
+    // one large request can't take over the server
+    private static final ExecutorService sectionPool = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread t = new Thread(r, "witness-sections");
+                t.setDaemon(true);
+                return t;
+            });
 
     private GraphDatabaseService db;
     private String tradId;
     private String sigil;
     private String sectId;
     private String errorMessage;
+    // The decoded witness lists of the sequences walked in this request; the entry search
+    // and the walk that follows it look at the same sequences
+    private final WitnessPath.EdgeCache edgeCache = new WitnessPath.EdgeCache();
 
     public Witness (String traditionId, String requestedSigil) {
         GraphDatabaseServiceProvider dbServiceProvider = new GraphDatabaseServiceProvider();
@@ -66,13 +83,7 @@ public class Witness {
         String foundSigil = null;
         Node tradNode = DatabaseService.getTraditionNode(tradId, db);
         try (Transaction tx = db.beginTx()) {
-            Node found = null;
-            for (Relationship r : tradNode.getRelationships(ERelations.HAS_WITNESS, Direction.OUTGOING)) {
-                if (r.getEndNodeId() == nodeId)
-                    found = r.getEndNode();
-            }
-            if (found != null)
-                foundSigil = found.getProperty("sigil").toString();
+            foundSigil = WitnessRegistry.sigilOf(tradNode, nodeId);
             tx.success();
         }
         return foundSigil;
@@ -82,13 +93,7 @@ public class Witness {
         Node tradNode = DatabaseService.getTraditionNode(tradId, db);
         Node found = null;
         try (Transaction tx = db.beginTx()) {
-            for (Relationship r : tradNode.getRelationships(ERelations.HAS_WITNESS, Direction.OUTGOING)) {
-                Node wit = r.getEndNode();
-                if (wit.hasProperty("sigil") && wit.getProperty("sigil").equals(sigil)) {
-                    found = wit;
-                    break;
-                }
-            }
+            found = WitnessRegistry.lookup(tradNode, sigil);
             tx.success();
         }
         return found;
@@ -151,7 +156,8 @@ public class Witness {
                         orphanReadings.add(end);
                 }
             }
-            // Delete any orphan readings
+            // Delete any orphan readings, noting the annotations that referred to them
+            HashSet<Node> annotations = new HashSet<>();
             for (Node orphan : orphanReadings) {
                 if (orphan.hasRelationship()) {
                     // Check that no SEQUENCE or LEMMA_TEXT relationships are left
@@ -160,11 +166,15 @@ public class Witness {
                             return Response.serverError()
                                     .entity(String.format("Reading %d (%s) still has sequence links",
                                             orphan.getId(), orphan.getProperty("text"))).build();
+                        if (r.getEndNode().equals(orphan)
+                                && r.getStartNode().hasRelationship(ERelations.HAS_ANNOTATION, Direction.INCOMING))
+                            annotations.add(r.getStartNode());
                         r.delete();
                     }
                     orphan.delete();
                 }
             }
+            new Tradition(tradId).pruneAnnotations(annotations);
             // Look through any stemmata and turn the witness hypothetical in each of them
             for (Relationship r : witnessNode.getRelationships(ERelations.HAS_WITNESS)) {
                 Node owner = r.getStartNode();
@@ -236,18 +246,34 @@ public class Witness {
         if (layer.size() == 1 && layer.get(0).equals(""))
             layer.remove(0);
 
-        ArrayList<Node> witnessReadings = new ArrayList<>();
-        for (Node currentSection: iterationList) {
-            if (iterationList.size() > 1 && (!end.equals("E") || startRank != 0))
-                return Response.status(Status.BAD_REQUEST)
-                        .entity(jsonerror("Cannot request specific start/end across sections")).build();
-
+        if (iterationList.size() > 1 && (!end.equals("E") || startRank != 0))
+            return Response.status(Status.BAD_REQUEST)
+                    .entity(jsonerror("Cannot request specific start/end across sections")).build();
+
+        List<ReadingModel> witnessReadings = new ArrayList<>();
+        if (iterationList.size() > 1) {
+            try {
+                readingsBySection(iterationList, layer).forEach(witnessReadings::addAll);
+            } catch (TransientFailureException e) {
+                // Let the request be retried
+                throw e;
+            } catch (Exception e) {
+                if ("CONFLICT".equals(e.getMessage()))
+                    return Response.status(Status.CONFLICT).entity(jsonerror("Traversal end node not reached")).build();
+                e.printStackTrace();
+                return Response.serverError().entity(jsonerror(e.getMessage())).build();
+            }
+        } else {
+            Node currentSection = iterationList.get(0);
             if (end.equals("E")) {
                 // Find the rank of the graph's end.
                 Node endNode = DatabaseService.getRelated(currentSection, ERelations.HAS_END).get(0);
                 try (Transaction tx = db.beginTx()) {
                     endRank = Long.valueOf(endNode.getProperty("rank").toString());
                     tx.success();
+                } catch (TransientFailureException e) {
+                    // Let the request be retried
+                    throw e;
                 } catch (Exception e) {
                     e.printStackTrace();
                     return Response.serverError().entity(jsonerror(e.getMessage())).build();
@@ -268,15 +294,13 @@ public class Witness {
                 endRank = tempRank;
             }
 
-            Node startNode = DatabaseService.getStartNode(String.valueOf(currentSection.getId()), db);
             try (Transaction tx = db.beginTx()) {
-                final long sr = startRank;
-                final long er = endRank;
-                witnessReadings.addAll(traverseReadings(startNode, layer).stream()
-                        .filter(x -> Long.valueOf(x.getProperty("rank").toString()) >= sr
-                                && Long.valueOf(x.getProperty("rank").toString()) <= er)
-                        .collect(Collectors.toList()));
+                traverseReadings(currentSection, layer, startRank, endRank).stream()
+                        .map(ReadingModel::new).forEach(witnessReadings::add);
                 tx.success();
+            } catch (TransientFailureException e) {
+                // Let the request be retried
+                throw e;
             } catch (Exception e) {
                 if (e.getMessage().equals("CONFLICT"))
                     return Response.status(Status.CONFLICT).entity(jsonerror("Traversal end node not reached")).build();
@@ -289,8 +313,7 @@ public class Witness {
             return Response.status(Status.NOT_FOUND)
                     .entity(jsonerror("No witness path found for this sigil")).build();
         // Construct the text from the node reading models
-        String witnessText = ReadingService.textOfReadings(
-                witnessReadings.stream().map(ReadingModel::new).collect(Collectors.toList()), false, false);
+        String witnessText = ReadingService.textOfReadings(witnessReadings, false, false);
         TextSequenceModel wtm = new TextSequenceModel(witnessText);
         return Response.ok(wtm).build();
 
@@ -299,10 +322,20 @@ public class Witness {
     /**
      * Returns the sequence of readings for a given witness.
      *
+     * If a limit or cursor is given, the readings are returned a page at a time, and the
+     * cursor for the next page, if any, is returned in the X-Next-Cursor header. If start
+     * and end ranks are given, only the readings between those ranks inclusive are returned.
+     *
      * @summary Get readings
      * @param witnessClass - the text layer to return, e.g. "a.c."
+     * @param start - the starting rank
+     * @param end - the end rank
+     * @param cursor - the cursor returned with the previous page
+     * @param limit - the maximum number of readings to return
      * @return The witness text as a list of readings.
      * @statuscode 200 - on success
+     * @statuscode 400 - if the cursor or limit is invalid, or if a start or end rank is specified
+     *                   on the tradition-wide call or together with a cursor or limit
      * @statuscode 404 - if the tradition, section, or witness text doesn't exist
      * @statuscode 409 - if a section's end node cannot be reached while assembling the witness text
      * @statuscode 500 - on error, with an error message
@@ -311,7 +344,11 @@ public class Witness {
     @Path("/readings")
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType("java.util.List<net.stemmaweb.model.ReadingModel>")
-    public Response getWitnessAsReadings(@QueryParam("layer") @DefaultValue("") List<String> witnessClass) {
+    public Response getWitnessAsReadings(@QueryParam("layer") @DefaultValue("") List<String> witnessClass,
+                                         @QueryParam("start") @DefaultValue("0") String start,
+                                         @QueryParam("end") @DefaultValue("E") String end,
+                                         @QueryParam("cursor") String cursor,
+                                         @QueryParam("limit") Integer limit) {
         ArrayList<ReadingModel> readingModels = new ArrayList<>();
         if (witnessClass.size() == 1 && witnessClass.get(0).equals(""))
             witnessClass.remove(0);
@@ -321,20 +358,36 @@ public class Witness {
             return Response.status(errorMessage.contains("not found") ? Status.NOT_FOUND : Status.INTERNAL_SERVER_ERROR)
                     .entity(jsonerror(errorMessage)).build();
 
-        for (Node currentSection: iterationList) {
-            try (Transaction tx = db.beginTx()) {
-                Node startNode = DatabaseService.getStartNode(String.valueOf(currentSection.getId()), db);
-                readingModels.addAll(traverseReadings(startNode, witnessClass).stream().map(ReadingModel::new).collect(Collectors.toList()));
+        if (!end.equals("E") || !start.equals("0")) {
+            if (iterationList.size() > 1)
+                return Response.status(Status.BAD_REQUEST)
+                        .entity(jsonerror("Cannot request specific start/end across sections")).build();
+            if (cursor != null || limit != null)
+                return Response.status(Status.BAD_REQUEST)
+                        .entity(jsonerror("Cannot request specific start/end with paging")).build();
+            return readingWindow(iterationList.get(0), witnessClass, start, end);
+        }
+
+        try {
+            Paging paging = Paging.of(cursor, limit, 2);
+            if (paging != null)
+                return readingPage(iterationList, witnessClass, paging);
+        } catch (IllegalArgumentException e) {
+            return Paging.badCursor(e);
+        }
+
+        try {
+            for (List<ReadingModel> sectionReadings : readingsBySection(iterationList, witnessClass)) {
                 // Remove the meta node from the list
-                if (readingModels.size() > 0 && readingModels.get(readingModels.size() - 1).getText().equals("#END#"))
-                    readingModels.remove(readingModels.size() - 1);
-                tx.success();
-            } catch (Exception e) {
-                if (e.getMessage().equals("CONFLICT"))
-                    return Response.status(Status.CONFLICT).entity(jsonerror("Traversal end node not reached")).build();
-                e.printStackTrace();
-                return Response.serverError().entity(jsonerror(e.getMessage())).build();
+                if (sectionReadings.size() > 0 && sectionReadings.get(sectionReadings.size() - 1).getText().equals("#END#"))
+                    sectionReadings.remove(sectionReadings.size() - 1);
+                readingModels.addAll(sectionReadings);
             }
+        } catch (Exception e) {
+            if ("CONFLICT".equals(e.getMessage()))
+                return Response.status(Status.CONFLICT).entity(jsonerror("Traversal end node not reached")).build();
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
 
         // If the path is size 0 then the witness path doesn't exist.
@@ -345,28 +398,188 @@ public class Witness {
         return Response.status(Status.OK).entity(readingModels).build();
     }
 
+    // Backwards compatibility for API
+    public Response getWitnessAsReadings(List<String> witnessClass, String cursor, Integer limit) {
+        return getWitnessAsReadings(witnessClass, "0", "E", cursor, limit);
+    }
+
+    // The witness's readings between two ranks of a single section
+    private Response readingWindow(Node sectionNode, List<String> witnessClass, String start, String end) {
+        try (Transaction tx = db.beginTx()) {
+            long startRank = Long.parseLong(start);
+            long endRank = end.equals("E")
+                    ? Long.valueOf(DatabaseService.getEndNode(String.valueOf(sectionNode.getId()), db)
+                        .getProperty("rank").toString())
+                    : Long.parseLong(end);
+            if (endRank < startRank) {
+                long tempRank = startRank;
+                startRank = endRank;
+                endRank = tempRank;
+            }
+            List<ReadingModel> readingModels = traverseReadings(sectionNode, witnessClass, startRank, endRank)
+                    .stream().filter(x -> !x.hasProperty("is_end")).map(ReadingModel::new)
+                    .collect(Collectors.toList());
+            tx.success();
+            if (readingModels.size() == 0)
+                return Response.status(Status.NOT_FOUND)
+                        .entity(jsonerror("No witness path found for this sigil")).build();
+            return Response.ok(readingModels).build();
+        } catch (NumberFormatException e) {
+            return Response.status(Status.BAD_REQUEST).entity(jsonerror("Invalid start or end rank")).build();
+        } catch (Exception e) {
+            if ("CONFLICT".equals(e.getMessage()))
+                return Response.status(Status.CONFLICT).entity(jsonerror("Traversal end node not reached")).build();
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+    }
+
+    // One page of the witness's readings. The cursor holds the section and the last
+    // reading returned, and the next page is read by following the witness onward from
+    // that reading.
+    private Response readingPage(List<Node> sections, List<String> witnessClass, Paging paging) {
+        try (Transaction tx = db.beginTx()) {
+            int from = 0;
+            Node resumeAt = null;
+            if (!paging.atStart()) {
+                from = -1;
+                for (int i = 0; i < sections.size(); i++)
+                    if (sections.get(i).getId() == paging.after(0)) from = i;
+                try {
+                    resumeAt = db.getNodeById(paging.after(1));
+                } catch (NotFoundException e) {
+                    resumeAt = null;
+                }
+                if (from < 0 || resumeAt == null)
+                    return Paging.badCursor(new IllegalArgumentException(
+                            "Paging cursor refers to a reading that no longer exists"));
+            }
+            List<Node> found = new ArrayList<>();
+            for (int i = from; i < sections.size() && found.size() < paging.fetchSize(); i++) {
+                Node begin = resumeAt != null ? resumeAt
+                        : DatabaseService.getStartNode(String.valueOf(sections.get(i).getId()), db);
+                resumeAt = null;
+                int wanted = paging.fetchSize() - found.size();
+                boolean ended = false;
+                List<Node> sectionReadings = new ArrayList<>();
+                for (Node n : witnessTraverser(witnessClass).traverse(begin).nodes()) {
+                    if (n.hasProperty("is_end")) {
+                        ended = true;
+                        break;
+                    }
+                    if (sectionReadings.size() == wanted) break;
+                    sectionReadings.add(n);
+                }
+                // As for the whole list, a path that stops short of the end is a conflict.
+                if (!ended && sectionReadings.size() < wanted && !sectionReadings.isEmpty())
+                    return Response.status(Status.CONFLICT).entity(jsonerror("Traversal end node not reached")).build();
+                found.addAll(sectionReadings);
+            }
+            if (paging.atStart() && found.isEmpty())
+                return Response.status(Status.NOT_FOUND)
+                        .entity(jsonerror("No witness path found for this sigil")).build();
+            long[] next = paging.trim(found, n -> new long[] {(Long) n.getProperty("section_id"), n.getId()});
+            List<ReadingModel> page = found.stream().map(ReadingModel::new).collect(Collectors.toList());
+            tx.success();
+            return Paging.page(page, next);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+    }
+
+    private TraversalDescription witnessTraverser(List<String> witnessClass) {
+        Evaluator e = new WitnessPath(sigil, witnessClass == null ? new ArrayList<>() : witnessClass, edgeCache)
+                .getEvalForWitness();
+        return db.traversalDescription().depthFirst()
+                .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
+                .evaluator(e)
+                .uniqueness(Uniqueness.RELATIONSHIP_PATH);
+    }
+
     // For use within a transaction
     private ArrayList<Node> traverseReadings(Node startNode, List<String> witnessClass) throws Exception {
-        Evaluator e;
-        if (witnessClass == null)
-            e = new WitnessPath(sigil).getEvalForWitness();
-        else
-            e = new WitnessPath(sigil, witnessClass).getEvalForWitness();
+        ArrayList<Node> result = new ArrayList<>();
+        witnessTraverser(witnessClass)
+                .traverse(startNode)
+                .nodes()
+                .forEach(result::add);
+        // If the path is nonzero but the end node wasn't reached, we had a conflict.
+        if (result.size() > 0 && !result.get(result.size()-1).hasProperty("is_end"))
+            throw new Exception("CONFLICT");
+        return result;
+    }
 
+    // For use within a transaction. Finds the witness's first reading at or after startRank
+    // by an index seek over the readings in the window, and follows the witness from there
+    // until it passes endRank, so that the cost depends on the size of the window rather
+    // than on the length of the section.
+    private ArrayList<Node> traverseReadings(Node sectionNode, List<String> witnessClass,
+                                             long startRank, long endRank) throws Exception {
         ArrayList<Node> result = new ArrayList<>();
+        WitnessPath wp = new WitnessPath(sigil, witnessClass == null ? new ArrayList<>() : witnessClass, edgeCache);
+        Node entry = null;
+        if (startRank <= 0)
+            entry = DatabaseService.getStartNode(String.valueOf(sectionNode.getId()), db);
+        else
+            for (Node n : ReadingService.readingsInRankRange(sectionNode, startRank, endRank))
+                if (wp.passesThrough(n)) {
+                    entry = n;
+                    break;
+                }
+        if (entry == null)
+            return result;
+        boolean[] reached = new boolean[] {false};
         db.traversalDescription().depthFirst()
                 .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
-                .evaluator(e)
+                .evaluator(wp.getEvalForWitness(endRank, reached))
                 .uniqueness(Uniqueness.RELATIONSHIP_PATH)
-                .traverse(startNode)
+                .traverse(entry)
                 .nodes()
                 .forEach(result::add);
-        // If the path is nonzero but the end node wasn't reached, we had a conflict.
-        if (result.size() > 0 && !result.get(result.size()-1).hasProperty("is_end"))
+        // The start node is not part of the text
+        if (startRank <= 0)
+            result.remove(0);
+        // If the walk neither got past the window nor reached the end node, we had a conflict.
+        if (result.size() > 0 && !reached[0])
             throw new Exception("CONFLICT");
         return result;
     }
 
+    // The witness's readings in each of the given sections, from the start node to the end
+    // node, in section order. If there is more than one section, they are traversed at the
+    // same time on the section pool, each in its own transaction.
+    private List<List<ReadingModel>> readingsBySection(List<Node> sections, List<String> witnessClass)
+            throws Exception {
+        List<List<ReadingModel>> result = new ArrayList<>();
+        if (sections.size() == 1) {
+            result.add(sectionReadings(sections.get(0), witnessClass));
+            return result;
+        }
+        List<Future<List<ReadingModel>>> pending = new ArrayList<>();
+        for (Node section : sections)
+            pending.add(sectionPool.submit(() -> sectionReadings(section, witnessClass)));
+        try {
+            for (Future<List<ReadingModel>> f : pending)
+                result.add(f.get());
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            pending.forEach(f -> f.cancel(true));
+        }
+        return result;
+    }
+
+    private List<ReadingModel> sectionReadings(Node sectionNode, List<String> witnessClass) throws Exception {
+        try (Transaction tx = db.beginTx()) {
+            Node startNode = DatabaseService.getStartNode(String.valueOf(sectionNode.getId()), db);
+            List<ReadingModel> readings = traverseReadings(startNode, witnessClass).stream()
+                    .map(ReadingModel::new).collect(Collectors.toList());
+            tx.success();
+            return readings;
+        }
+    }
+
     private ArrayList<Node> sectionsRequested() {
         Node traditionNode = DatabaseService.getTraditionNode(tradId, db);
         if (traditionNode == null) {
@@ -386,6 +599,9 @@ public class Witness {
                 Node sectionNode = db.getNodeById(Long.valueOf(sectId));
                 iterationList.add(sectionNode);
                 tx.success();
+            } catch (TransientFailureException e) {
+                // Let the request be retried
+                throw e;
             } catch (Exception e) {
                 e.printStackTrace();
                 errorMessage = e.getMessage();
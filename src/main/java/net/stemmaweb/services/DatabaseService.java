@@ -2,12 +2,17 @@ package net.stemmaweb.services;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.*;
 import org.neo4j.graphdb.traversal.Traverser;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 
 /**
  * Helper methods for the database
@@ -106,6 +111,25 @@ public class DatabaseService {
         if (tradition == null)
             return null;
         ArrayList<Node> sectionNodes = new ArrayList<>();
+        List<Long> cached = SectionOrderCache.get(tradId);
+        if (cached != null) {
+            // Check the cached sections without letting a lookup fail, since a failure
+            // would doom any transaction that this one is nested in
+            try (Transaction tx = db.beginTx()) {
+                for (Long id : cached) {
+                    Node n = sectionIfExists(id, db);
+                    if (n == null) break;
+                    sectionNodes.add(n);
+                }
+                tx.success();
+            }
+            if (sectionNodes.size() == cached.size())
+                return sectionNodes;
+            // The cache is out of date somehow; fall back to the NEXT chain.
+            SectionOrderCache.invalidate(tradId);
+            sectionNodes.clear();
+        }
+        long cacheVersion = SectionOrderCache.version(tradId);
         ArrayList<Node> sections = DatabaseService.getRelated(tradition, ERelations.PART);
         int size = sections.size();
         try (Transaction tx = db.beginTx()) {
@@ -126,9 +150,32 @@ public class DatabaseService {
             }
             tx.success();
         }
+        // Only cache a complete chain, and only one that has been committed
+        if (sectionNodes.size() == size && !hasUncommittedChanges(db))
+            SectionOrderCache.put(tradId, cacheVersion,
+                    sectionNodes.stream().map(Node::getId).collect(Collectors.toList()));
         return sectionNodes;
     }
 
+    // The section node with the given ID, or null if there is none
+    private static Node sectionIfExists(Long id, GraphDatabaseService db) {
+        try {
+            Node n = db.getNodeById(id);
+            return n.hasLabel(Nodes.SECTION) ? n : null;
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
+
+    // Whether the transaction open on this thread, if any, has changes that are not yet
+    // committed, and might yet be rolled back
+    private static boolean hasUncommittedChanges(GraphDatabaseService db) {
+        KernelTransaction ktx = ((GraphDatabaseAPI) db).getDependencyResolver()
+                .resolveDependency(ThreadToStatementContextBridge.class, DependencyResolver.SelectionStrategy.ONLY)
+                .getKernelTransactionBoundToThread(false);
+        return ktx != null && ktx.dataRead().transactionStateHasChanges();
+    }
+
     /*
      *
      * @param tradId      the tradition being checked
@@ -145,6 +192,9 @@ public class DatabaseService {
             sectionNode = db.getNodeById(Long.valueOf(sectionId));
             tx.success();
             if (sectionNode == null) return false;
+        } catch (TransientFailureException e) {
+            // Let the request be retried
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             return false;
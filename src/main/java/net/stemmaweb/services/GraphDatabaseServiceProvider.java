@@ -3,14 +3,20 @@ package net.stemmaweb.services;
 
 import org.neo4j.graphalgo.UnionFindProc;
 import org.neo4j.graphdb.DependencyResolver;
+import net.stemmaweb.rest.Nodes;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.factory.GraphDatabaseBuilder;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.graphdb.schema.IndexDefinition;
 import org.neo4j.internal.kernel.api.exceptions.KernelException;
 import org.neo4j.kernel.impl.proc.Procedures;
 import org.neo4j.kernel.internal.GraphDatabaseAPI;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Creates a global DatabaseService provider, which holds a reference to the
@@ -36,6 +42,9 @@ public class GraphDatabaseServiceProvider {
             db = dbbuilder.loadPropertiesFromFile(config.toString()).newGraphDatabase();
         else
             db = dbbuilder.newGraphDatabase();
+        SectionOrderCache.invalidate();
+        TraditionVersion.bumpAll();
+        SectionStatistics.reset();
         registerExtensions();
 
     }
@@ -43,6 +52,9 @@ public class GraphDatabaseServiceProvider {
     // Manage an existing (e.g. test) DB
     public GraphDatabaseServiceProvider(GraphDatabaseService existingdb) throws KernelException {
         db = existingdb;
+        SectionOrderCache.invalidate();
+        TraditionVersion.bumpAll();
+        SectionStatistics.reset();
         registerExtensions();
     }
 
@@ -57,6 +69,28 @@ public class GraphDatabaseServiceProvider {
         api.getDependencyResolver()
                 .resolveDependency(Procedures.class, DependencyResolver.SelectionStrategy.ONLY)
                 .registerProcedure(UnionFindProc.class, true);
+        // Keep the tradition versions, which tell cached results when they are stale
+        db.registerTransactionEventHandler(TraditionVersion.versionHandler);
+        // ...and the section statistics
+        db.registerTransactionEventHandler(SectionStatistics.statisticsHandler);
+        createIndexes();
+    }
+
+    // Create any schema indexes that don't yet exist. They are populated in the
+    // background; until they are online, queries fall back to a label scan.
+    private static void createIndexes() {
+        List<String> rankIndex = Arrays.asList("section_id", "rank");
+        try (Transaction tx = db.beginTx()) {
+            boolean found = false;
+            for (IndexDefinition idx : db.schema().getIndexes(Nodes.READING)) {
+                List<String> keys = new ArrayList<>();
+                idx.getPropertyKeys().forEach(keys::add);
+                if (keys.equals(rankIndex)) found = true;
+            }
+            if (!found)
+                db.schema().indexFor(Nodes.READING).on("section_id").on("rank").create();
+            tx.success();
+        }
     }
 
 }
@@ -0,0 +1,206 @@
+package net.stemmaweb.services;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Application-level read/write locks on traditions and sections, so that edits to the
+ * graph can be serialised before they start rather than colliding on Neo4j's node locks
+ * halfway through a traversal.
+ *
+ * A tradition lock and any section locks are always taken in the same order: first the
+ * tradition, then the sections in order of node ID. A section-level edit holds the
+ * tradition lock shared and its sections exclusively, so that edits to different sections,
+ * and to different traditions, go ahead in parallel. A structural edit that changes the
+ * section order or spans the whole tradition holds the tradition lock exclusively, which
+ * excludes every section-level edit and read in that tradition.
+ *
+ * The locks are reentrant, and a thread that holds a write lock may take the matching read
+ * lock, but a read lock can't be upgraded: a thread that holds a read lock must not ask for
+ * the write lock on the same tradition or section.
+ *
+ * Each lock counts the requests that hold it or are waiting for it, and is dropped once
+ * there are none, so that the tables only hold the traditions and sections in use.
+ */
+
+public class LockManager {
+    // How long to wait for a lock before giving up
+    private static final long TIMEOUT_SECONDS = 30;
+
+    // How often to look again for the sections to lock, if they keep changing while we wait
+    private static final int MAX_LOOKUPS = 5;
+
+    private static final ConcurrentHashMap<String, Entry> traditionLocks = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Long, Entry> sectionLocks = new ConcurrentHashMap<>();
+
+    /**
+     * Takes a shared lock on a tradition, e.g. for reading across its sections.
+     *
+     * @param tradId - the tradition ID
+     * @return the locks held, to be closed when the work is done
+     * @throws LockTimeoutException if the lock can't be had in time
+     */
+    public static Held readTradition(String tradId) {
+        return acquire(tradId, false, Collections.emptyList(), false);
+    }
+
+    /**
+     * Takes an exclusive lock on a tradition, for edits that change its structure.
+     *
+     * @param tradId - the tradition ID
+     * @return the locks held, to be closed when the work is done
+     * @throws LockTimeoutException if the lock can't be had in time
+     */
+    public static Held writeTradition(String tradId) {
+        return acquire(tradId, true, Collections.emptyList(), false);
+    }
+
+    /**
+     * Takes shared locks on the given sections of a tradition.
+     *
+     * @param tradId - the tradition ID
+     * @param sectionIds - the section node IDs
+     * @return the locks held, to be closed when the work is done
+     * @throws LockTimeoutException if a lock can't be had in time
+     */
+    public static Held readSections(String tradId, Collection<Long> sectionIds) {
+        return acquire(tradId, false, sectionIds, false);
+    }
+
+    /**
+     * Takes exclusive locks on the given sections of a tradition, and a shared lock on
+     * the tradition itself.
+     *
+     * @param tradId - the tradition ID
+     * @param sectionIds - the section node IDs
+     * @return the locks held, to be closed when the work is done
+     * @throws LockTimeoutException if a lock can't be had in time
+     */
+    public static Held writeSections(String tradId, Collection<Long> sectionIds) {
+        return acquire(tradId, false, sectionIds, true);
+    }
+
+    /**
+     * Takes exclusive locks on the sections that the lookup returns, and a shared lock on
+     * the tradition. Since the sections have to be looked up before they are locked, e.g.
+     * from the section_id of a reading, the lookup is made again once the locks are held;
+     * if it has changed in the meantime, the locks are given up and the new sections
+     * locked instead.
+     *
+     * @param tradId - the tradition ID
+     * @param lookup - finds the section node IDs; returns null if there is nothing to lock
+     * @return the locks held, to be closed when the work is done
+     * @throws LockTimeoutException if a lock can't be had in time, or the sections don't
+     *                              hold still long enough to be locked
+     */
+    public static Held writeSectionsOf(String tradId, Supplier<Collection<Long>> lookup) {
+        Collection<Long> sections = lookup.get();
+        for (int i = 0; i < MAX_LOOKUPS; i++) {
+            if (sections == null)
+                return Held.none();
+            Held held = writeSections(tradId, sections);
+            Collection<Long> now = lookup.get();
+            if (now != null && new HashSet<>(now).equals(new HashSet<>(sections)))
+                return held;
+            held.close();
+            sections = now;
+        }
+        throw new LockTimeoutException("The sections to lock in tradition " + tradId + " kept changing");
+    }
+
+    private static Held acquire(String tradId, boolean traditionWrite, Collection<Long> sectionIds,
+                                boolean sectionWrite) {
+        Held held = new Held();
+        try {
+            take(held, traditionLocks, tradId, traditionWrite);
+            for (Long id : new TreeSet<>(sectionIds))
+                take(held, sectionLocks, id, sectionWrite);
+        } catch (InterruptedException e) {
+            held.close();
+            Thread.currentThread().interrupt();
+            throw new LockTimeoutException("Interrupted while waiting for a lock on tradition " + tradId);
+        } catch (LockTimeoutException e) {
+            held.close();
+            throw e;
+        }
+        return held;
+    }
+
+    // Take one lock, counting ourselves among its users for as long as we wait or hold it
+    private static <K> void take(Held held, ConcurrentHashMap<K, Entry> table, K key, boolean write)
+            throws InterruptedException {
+        Entry entry = table.compute(key, (k, e) -> {
+            if (e == null) e = new Entry();
+            e.users++;
+            return e;
+        });
+        Lock l = write ? entry.lock.writeLock() : entry.lock.readLock();
+        boolean locked = false;
+        try {
+            locked = l.tryLock(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } finally {
+            if (!locked)
+                release(table, key);
+        }
+        if (!locked)
+            throw new LockTimeoutException("Timed out waiting for a lock on " + key);
+        held.releases.add(() -> {
+            l.unlock();
+            release(table, key);
+        });
+    }
+
+    private static <K> void release(ConcurrentHashMap<K, Entry> table, K key) {
+        table.computeIfPresent(key, (k, e) -> --e.users == 0 ? null : e);
+    }
+
+    /**
+     * @return the number of traditions and sections that currently have a lock
+     */
+    public static int size() {
+        return traditionLocks.size() + sectionLocks.size();
+    }
+
+    private static class Entry {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+        // Guarded by the table's compute methods
+        private int users = 0;
+    }
+
+    /**
+     * A set of locks held by the current thread; closing it releases them, in the reverse
+     * of the order they were taken.
+     */
+    public static class Held implements AutoCloseable {
+        private final ArrayList<Runnable> releases = new ArrayList<>();
+
+        private Held() {}
+
+        /**
+         * @return an empty set of locks, for when there is nothing to lock
+         */
+        public static Held none() {
+            return new Held();
+        }
+
+        @Override
+        public void close() {
+            for (int i = releases.size() - 1; i >= 0; i--)
+                releases.get(i).run();
+            releases.clear();
+        }
+    }
+
+    /**
+     * Thrown when a lock can't be had within the timeout.
+     */
+    public static class LockTimeoutException extends RuntimeException {
+        LockTimeoutException(String message) {
+            super(message);
+        }
+    }
+}
@@ -443,6 +443,145 @@ public class ReadingService {
         return recalculateRank(startNode, false);
     }
 
+    /**
+     * Raises the rank of a reading, and pushes the readings that follow it, and those
+     * colocated with any reading moved, only as far along as they must go to keep the
+     * ranks consistent. Unlike recalculateRank this never lowers a rank, and it stops
+     * wherever the ranks are already far enough apart, so its cost depends on how much
+     * of the graph actually moves rather than on how much of it lies downstream.
+     * NOTE: For use within a transaction
+     *
+     * @param reading - the reading to promote
+     * @param rank - its new rank
+     * @param colocationTypes - the names of the relation types that colocate readings
+     * @return the readings whose ranks were changed
+     */
+    public static Set<Node> raiseRank(Node reading, Long rank, Set<String> colocationTypes) {
+        Set<Node> changed = new HashSet<>();
+        ArrayDeque<Node> nodes = new ArrayDeque<>();
+        ArrayDeque<Long> ranks = new ArrayDeque<>();
+        nodes.add(reading);
+        ranks.add(rank);
+        while (!nodes.isEmpty()) {
+            Node n = nodes.poll();
+            Long r = ranks.poll();
+            Long current = (Long) n.getProperty("rank", null);
+            if (current == null || current >= r) continue;
+            n.setProperty("rank", r);
+            changed.add(n);
+            for (Relationship rel : n.getRelationships(Direction.OUTGOING,
+                    ERelations.SEQUENCE, ERelations.LEMMA_TEXT, ERelations.EMENDED)) {
+                nodes.add(rel.getEndNode());
+                ranks.add(r + 1);
+            }
+            for (Relationship rel : n.getRelationships(Direction.BOTH, ERelations.RELATED))
+                if (colocationTypes.contains(rel.getProperty("type").toString())) {
+                    nodes.add(rel.getOtherNode(n));
+                    ranks.add(r);
+                }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns the readings of a section whose ranks fall within the given window, in
+     * rank order. The lookup uses the (section_id, rank) index on READING nodes, so its
+     * cost depends on the width of the window rather than on the length of the section;
+     * since the index follows the rank property, it is kept current by recalculateRank.
+     * Emendations are not part of the alignment, and are left out.
+     * NOTE: for use in a transaction!
+     *
+     * @param sectionNode - the section whose readings are wanted
+     * @param startRank - the first rank of the window
+     * @param endRank - the last rank of the window
+     * @return the list of readings
+     */
+    public static List<Node> readingsInRankRange(Node sectionNode, long startRank, long endRank) {
+        return readingsInRankRange(sectionNode, startRank, endRank, false);
+    }
+
+    /**
+     * As readingsInRankRange above, but with the section's emendations in the window
+     * included if asked for.
+     * NOTE: for use in a transaction!
+     *
+     * @param sectionNode - the section whose readings are wanted
+     * @param startRank - the first rank of the window
+     * @param endRank - the last rank of the window
+     * @param withEmendations - whether to include emendations
+     * @return the list of readings
+     */
+    public static List<Node> readingsInRankRange(Node sectionNode, long startRank, long endRank,
+                                                 boolean withEmendations) {
+        List<Node> readings = new ArrayList<>();
+        // No reading is ranked beyond the section end, so the window needn't be either
+        Long lastRank = sectionEndRank(sectionNode);
+        if (lastRank != null) endRank = Math.min(endRank, lastRank);
+        for (Node n : seekRanks(sectionNode, startRank, endRank))
+            if (withEmendations || !n.hasLabel(Nodes.EMENDATION)) readings.add(n);
+        return readings;
+    }
+
+    /**
+     * Returns up to the given number of readings of a section, emendations included, in
+     * (rank, node ID) order, beginning with the first reading that sorts after the given
+     * rank and node ID. Like readingsInRankRange it works by index seeks, in windows of
+     * ranks, so that the cost depends on the number of readings wanted.
+     * NOTE: for use in a transaction!
+     *
+     * @param sectionNode - the section whose readings are wanted
+     * @param rank - the rank of the last reading already seen
+     * @param afterId - the node ID of the last reading already seen, or -1 to begin at the rank
+     * @param limit - the maximum number of readings to return
+     * @return the list of readings
+     */
+    public static List<Node> readingsAfter(Node sectionNode, long rank, long afterId, int limit) {
+        List<Node> readings = new ArrayList<>();
+        Long lastRank = sectionEndRank(sectionNode);
+        if (lastRank == null) return readings;
+        long window = Math.max(limit, 16);
+        for (long r = Math.max(rank, 0); r <= lastRank && readings.size() < limit; r += window) {
+            for (Node n : seekRanks(sectionNode, r, Math.min(r + window - 1, lastRank))) {
+                if (readings.size() == limit) break;
+                if (Long.valueOf(n.getProperty("rank").toString()) > rank || n.getId() > afterId)
+                    readings.add(n);
+            }
+        }
+        return readings;
+    }
+
+    // Returns the rank of the section's end node, or if it hasn't got one yet, the
+    // highest rank in the section; null if nothing in the section is ranked.
+    private static Long sectionEndRank(Node sectionNode) {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        Node endNode = DatabaseService.getEndNode(String.valueOf(sectionNode.getId()), db);
+        if (endNode != null && endNode.hasProperty("rank"))
+            return Long.valueOf(endNode.getProperty("rank").toString());
+        Result result = db.execute("MATCH (r:READING) WHERE r.section_id = $sectionId RETURN max(r.rank) AS m",
+                Collections.singletonMap("sectionId", sectionNode.getId()));
+        Object max = result.hasNext() ? result.next().get("m") : null;
+        return max == null ? null : Long.valueOf(max.toString());
+    }
+
+    // Returns all readings of the section with ranks in the given window, in (rank, node ID)
+    // order. An IN list lets the composite index be used with one seek per rank.
+    private static List<Node> seekRanks(Node sectionNode, long startRank, long endRank) {
+        List<Node> readings = new ArrayList<>();
+        startRank = Math.max(startRank, 0);
+        if (endRank < startRank) return readings;
+        List<Long> ranks = new ArrayList<>();
+        for (long r = startRank; r <= endRank; r++) ranks.add(r);
+        Map<String, Object> params = new HashMap<>();
+        params.put("sectionId", sectionNode.getId());
+        params.put("ranks", ranks);
+        Result result = sectionNode.getGraphDatabase().execute(
+                "MATCH (r:READING) WHERE r.section_id = $sectionId AND r.rank IN $ranks " +
+                "RETURN r ORDER BY r.rank, id(r)", params);
+        ResourceIterator<Node> found = result.columnAs("r");
+        found.forEachRemaining(readings::add);
+        return readings;
+    }
+
     /**
      * A traversal expander for crawling an alignment, which includes sequence paths
      * as well as colocated relation paths.
@@ -541,7 +680,24 @@ public class ReadingService {
         Node traditionNode = DatabaseService.getTraditionNode(sectionNode, db);
         Map<Long, Set<Node>> colocatedLookup = buildColocationLookup(
                 traditionNode.getProperty("id").toString(), String.valueOf(sectionNode.getId()), db);
+        return wouldGetCyclic(firstReading, secondReading, colocatedLookup);
+    }
 
+    /**
+     * As above, but against a colocation lookup that the caller has already built, e.g.
+     * once for a whole batch of relations. The ranks in the section must be consistent
+     * with its sequences and colocations.
+     * NOTE: For use within a transaction
+     *
+     * @param firstReading - a node to merge
+     * @param secondReading - the node with which to merge it
+     * @param colocatedLookup - a map of reading ID to colocated cluster, from buildColocationLookup
+     * @return - true or false
+     */
+    public static boolean wouldGetCyclic(Node firstReading, Node secondReading,
+                                         Map<Long, Set<Node>> colocatedLookup)
+            throws Exception {
+        GraphDatabaseService db = firstReading.getGraphDatabase();
         // Get the relevant cluster sets
         Set<Node> firstCluster = colocatedLookup.containsKey(firstReading.getId()) ?
                 colocatedLookup.get(firstReading.getId()) : new HashSet<>();
@@ -552,6 +708,8 @@ public class ReadingService {
         // Is it the same cluster set? Then they won't get cyclic
         if (firstCluster.equals(secondCluster)) return false;
 
+        AlignmentTraverse alignmentEvaluator = new AlignmentTraverse(firstReading);
+
         // Find our max rank, as well as whether we need to reverse the search
         boolean reverse = false;
         Long maxRank = (Long) firstReading.getProperty("rank");
@@ -562,26 +720,41 @@ public class ReadingService {
 
         // For each node in the lower cluster, see if we can reach any node in the
         // higher cluster.
-        AlignmentTraverse alignmentEvaluator = new AlignmentTraverse(firstReading);
         RankEvaluate rankEvaluator = new RankEvaluate(maxRank);
-        for (Node lower : reverse ? secondCluster : firstCluster) {
+        return reverse
+                ? reachable(db, secondCluster, firstCluster, alignmentEvaluator, rankEvaluator)
+                : reachable(db, firstCluster, secondCluster, alignmentEvaluator, rankEvaluator);
+    }
+
+    private static boolean reachable(GraphDatabaseService db, Set<Node> from, Set<Node> to,
+                                     AlignmentTraverse alignmentEvaluator, Evaluator evaluator) {
+        for (Node lower : from) {
             boolean followed_sequence = false;
             for (Relationship r : db.traversalDescription()
                     .depthFirst()
-                    .evaluator(rankEvaluator)
+                    .evaluator(evaluator)
                     .expand(alignmentEvaluator).traverse(lower).relationships()) {
                 // TODO does this need to include EMENDED links?
                 if (r.getType().name().equals(ERelations.SEQUENCE.name()))
                     followed_sequence = true;
-                if ((reverse ? firstCluster : secondCluster).contains(r.getEndNode()) && followed_sequence)
+                if (to.contains(r.getEndNode()) && followed_sequence)
                     return true;
             }
         }
-
         return false;
     }
 
-    private static Map<Long, Set<Node>> buildColocationLookup (String tradId, String sectionId, GraphDatabaseService db)
+    /**
+     * Returns a map of reading ID to the set of readings colocated with it, for all
+     * readings in the section that take part in a colocation.
+     *
+     * @param tradId - the tradition ID
+     * @param sectionId - the section ID
+     * @param db - the GraphDatabaseService where the tradition is stored
+     * @return the lookup map
+     * @throws Exception - if the clusters can't be calculated
+     */
+    public static Map<Long, Set<Node>> buildColocationLookup (String tradId, String sectionId, GraphDatabaseService db)
             throws Exception {
         Map<Long, Set<Node>> result = new HashMap<>();
         List<Set<Node>> clusters = RelationService.getClusters(tradId, sectionId, db);
@@ -0,0 +1,89 @@
+package net.stemmaweb.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Caches the ordered list of section node IDs for each tradition, so that tradition-wide
+ * operations don't have to follow the NEXT chain on every call.
+ *
+ * Each list is kept against the TraditionVersion it was read under, so any commit that
+ * touches a tradition, and in particular one that adds, reorders, splits, merges or
+ * deletes its sections, makes its list stale without disturbing those of other
+ * traditions. Code that changes the section order should also call invalidate() for the
+ * tradition directly, so that later reads within the same transaction see the change; a
+ * list read inside a transaction with uncommitted changes is never stored.
+ */
+
+public class SectionOrderCache {
+    private static final HashMap<String, Entry> sectionOrder = new HashMap<>();
+
+    /**
+     * @param tradId - the tradition ID
+     * @return the current version of the tradition, to be passed back to put()
+     */
+    static long version(String tradId) {
+        return TraditionVersion.of(tradId);
+    }
+
+    /**
+     * @param tradId - the tradition ID
+     * @return the ordered section node IDs for the tradition, or null if not cached
+     */
+    static List<Long> get(String tradId) {
+        long current = TraditionVersion.of(tradId);
+        synchronized (sectionOrder) {
+            Entry e = sectionOrder.get(tradId);
+            return e != null && e.version == current ? e.sectionIds : null;
+        }
+    }
+
+    /**
+     * Stores the section order for a tradition, unless the tradition has changed since
+     * the order was read.
+     *
+     * @param tradId - the tradition ID
+     * @param seenVersion - the tradition version from before the order was read
+     * @param sectionIds - the ordered section node IDs
+     */
+    static void put(String tradId, long seenVersion, List<Long> sectionIds) {
+        if (seenVersion != TraditionVersion.of(tradId))
+            return;
+        synchronized (sectionOrder) {
+            sectionOrder.put(tradId, new Entry(seenVersion,
+                    Collections.unmodifiableList(new ArrayList<>(sectionIds))));
+        }
+    }
+
+    /**
+     * Drops the cached section order of a tradition.
+     *
+     * @param tradId - the tradition ID
+     */
+    public static void invalidate(String tradId) {
+        synchronized (sectionOrder) {
+            sectionOrder.remove(tradId);
+        }
+    }
+
+    /**
+     * Drops all cached section orders, e.g. when a different database is opened.
+     */
+    public static void invalidate() {
+        synchronized (sectionOrder) {
+            sectionOrder.clear();
+        }
+    }
+
+    private static class Entry {
+        private final long version;
+        private final List<Long> sectionIds;
+
+        Entry(long version, List<Long> sectionIds) {
+            this.version = version;
+            this.sectionIds = sectionIds;
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.StatisticsModel;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.graphdb.traversal.Uniqueness;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a statistics node for each section, holding the number of readings, the number
+ * of witnesses, the number of relations of each type, and the number of annotations that
+ * refer to the section. The node points to its section with a STATS_FOR relationship, so
+ * that it lies outside the outward crawl of the tradition and is not exported or copied
+ * along with it.
+ *
+ * The statistics are kept off the write path. A transaction handler only works out which
+ * sections each commit touches, and marks them as changed once the commit has gone
+ * through; a background thread then counts each changed section afresh, in a transaction
+ * of its own, and stores the result with a stamp. Stored statistics are only used if
+ * their stamp is later than the last change to their section, so that until the recount
+ * is done, readers count for themselves or do without. If the sections touched by a
+ * commit can't be told, every section is marked as changed. Since the marks are kept in
+ * memory, statistics stored before the database was last opened are recounted when they
+ * are next wanted.
+ *
+ * The annotation counts double as an index of the annotations on each section, so that
+ * they can be listed, or checked after a deletion, without a crawl of the section.
+ */
+
+public class SectionStatistics {
+    private static final HashSet<String> internalTypes = new HashSet<>();
+    static {
+        for (ERelations r : ERelations.values())
+            internalTypes.add(r.name());
+    }
+
+    // Stamps statistics and changes, so that they can be put in order
+    private static final AtomicLong clock = new AtomicLong();
+    // When each section was last changed, for those changed since they were last counted
+    private static final ConcurrentHashMap<Long, Long> changedAt = new ConcurrentHashMap<>();
+    // When every section was last marked as changed
+    private static volatile long allChangedAt = 0;
+    // Statistics stored under a different session were stored before the database was opened
+    private static volatile String session = UUID.randomUUID().toString();
+
+    // The sections waiting to be recounted
+    private static final Set<Long> queued = ConcurrentHashMap.newKeySet();
+    private static final ExecutorService recounter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "section-statistics");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Transaction handler that works out, before each commit, which sections the commit
+     * touches, and marks them as changed once it has gone through. A null state means
+     * that the sections couldn't all be told.
+     */
+    static final TransactionEventHandler<Set<Long>> statisticsHandler = new TransactionEventHandler.Adapter<Set<Long>>() {
+        @Override
+        public Set<Long> beforeCommit(TransactionData data) {
+            try {
+                return new Touched(data).sections();
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Set<Long> touched) {
+            if (touched == null) {
+                allChangedAt = clock.incrementAndGet();
+                return;
+            }
+            for (Long id : touched) {
+                changedAt.put(id, clock.incrementAndGet());
+                recount(id);
+            }
+        }
+    };
+
+    /**
+     * Forgets what is known about the statistics, for when a different database is opened.
+     */
+    static void reset() {
+        session = UUID.randomUUID().toString();
+        changedAt.clear();
+        allChangedAt = clock.incrementAndGet();
+    }
+
+    /**
+     * Waits until the sections marked as changed so far have been recounted.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void settle() throws InterruptedException {
+        try {
+            recounter.submit(() -> {}).get();
+        } catch (ExecutionException e) {
+            // Nothing to fail
+        }
+    }
+
+    /**
+     * Reads the stored statistics of a section. Must be called within a transaction.
+     *
+     * @param sectionNode - the section node
+     * @return the statistics, or null if the section has none stored that are up to date
+     */
+    public static StatisticsModel of(Node sectionNode) {
+        Node stats = currentStats(sectionNode);
+        return stats == null ? null : Counts.read(stats).toModel(endRank(sectionNode));
+    }
+
+    /**
+     * Counts the statistics of a section from scratch, without storing them. Must be
+     * called within a transaction.
+     *
+     * @param sectionNode - the section node
+     * @return the statistics
+     */
+    public static StatisticsModel count(Node sectionNode) {
+        return Counts.count(sectionNode).toModel(endRank(sectionNode));
+    }
+
+    /**
+     * Counts the statistics of a section from scratch and stores them, replacing any that
+     * were there. Must be called within a transaction.
+     *
+     * @param sectionNode - the section node
+     * @return the statistics
+     */
+    public static StatisticsModel rebuild(Node sectionNode) {
+        long stamp = clock.incrementAndGet();
+        Counts counts = Counts.count(sectionNode);
+        store(counts, sectionNode, stamp);
+        return counts.toModel(endRank(sectionNode));
+    }
+
+    /**
+     * Adds up the statistics of the given sections. Must be called within a transaction.
+     *
+     * @param sections - the section nodes
+     * @param countMissing - whether to count the sections that have no up-to-date stored
+     *                     statistics, rather than giving up
+     * @return the statistics, or null if a section has none up to date and countMissing is false
+     */
+    public static StatisticsModel forSections(List<Node> sections, boolean countMissing) {
+        Counts total = new Counts();
+        for (Node s : sections) {
+            Node stats = currentStats(s);
+            if (stats == null && !countMissing)
+                return null;
+            total.add(stats == null ? Counts.count(s) : Counts.read(stats));
+        }
+        return total.toModel(null);
+    }
+
+    /**
+     * Reads the IDs of the annotations that link to the section or to anything in it, from
+     * the stored counts. Must be called within a transaction.
+     *
+     * @param sectionNode - the section node
+     * @return the annotation node IDs, or null if the section has no up-to-date statistics stored
+     */
+    public static Set<Long> annotations(Node sectionNode) {
+        Node stats = currentStats(sectionNode);
+        if (stats == null)
+            return null;
+        HashSet<Long> result = new HashSet<>();
+        long[] annos = (long[]) stats.getProperty("annotation_ids", new long[0]);
+        long[] links = (long[]) stats.getProperty("annotation_refs", new long[0]);
+        for (int i = 0; i < annos.length; i++)
+            if (links[i] > 0)
+                result.add(annos[i]);
+        return result;
+    }
+
+    // The stored statistics node of the section, if its numbers are up to date; if not,
+    // the section is queued to be recounted
+    private static Node currentStats(Node sectionNode) {
+        Node stats = statsNode(sectionNode);
+        if (stats != null && session.equals(stats.getProperty("session", null))) {
+            long stamp = (Long) stats.getProperty("stamp", 0L);
+            if (stamp > allChangedAt && stamp > changedAt.getOrDefault(sectionNode.getId(), 0L))
+                return stats;
+        }
+        recount(sectionNode.getId());
+        return null;
+    }
+
+    // Queue a section to be counted afresh, unless it is already waiting
+    private static void recount(Long sectionId) {
+        if (queued.add(sectionId))
+            recounter.submit(() -> {
+                // Anything that changes the section from here on queues it again
+                queued.remove(sectionId);
+                long stamp = clock.incrementAndGet();
+                GraphDatabaseService db = new GraphDatabaseServiceProvider().getDatabase();
+                try (Transaction tx = db.beginTx()) {
+                    Node section = sectionNode(sectionId, db);
+                    if (section == null) {
+                        // The section is gone, so its statistics go too
+                        db.findNodes(Nodes.SECTION_STATS, "section_id", sectionId).forEachRemaining(n -> {
+                            n.getRelationships().forEach(Relationship::delete);
+                            n.delete();
+                        });
+                    } else
+                        store(Counts.count(section), section, stamp);
+                    tx.success();
+                } catch (Exception e) {
+                    // The section stays marked as changed, so its stored numbers aren't used
+                    System.err.println("Failed to recount statistics for section " + sectionId);
+                    e.printStackTrace();
+                    return;
+                }
+                changedAt.computeIfPresent(sectionId, (k, v) -> v < stamp ? null : v);
+            });
+    }
+
+    private static void store(Counts counts, Node sectionNode, long stamp) {
+        Node stats = statsNodeFor(sectionNode);
+        counts.write(stats);
+        stats.setProperty("session", session);
+        stats.setProperty("stamp", stamp);
+    }
+
+    private static Node statsNode(Node sectionNode) {
+        Relationship r = sectionNode.getSingleRelationship(ERelations.STATS_FOR, Direction.INCOMING);
+        return r == null ? null : r.getStartNode();
+    }
+
+    private static Node statsNodeFor(Node sectionNode) {
+        Node stats = statsNode(sectionNode);
+        if (stats == null) {
+            stats = sectionNode.getGraphDatabase().createNode(Nodes.SECTION_STATS);
+            stats.setProperty("section_id", sectionNode.getId());
+            stats.createRelationshipTo(sectionNode, ERelations.STATS_FOR);
+        }
+        return stats;
+    }
+
+    private static Long endRank(Node sectionNode) {
+        Relationship r = sectionNode.getSingleRelationship(ERelations.HAS_END, Direction.OUTGOING);
+        if (r == null || !r.getEndNode().hasProperty("rank"))
+            return null;
+        return Long.valueOf(r.getEndNode().getProperty("rank").toString());
+    }
+
+    private static Long asId(Object value) {
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        try {
+            return value == null ? null : Long.valueOf(value.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Whether a node counts as a reading, given its labels and properties
+    private static boolean isReading(boolean labelled, Object isStart, Object isEnd) {
+        return labelled && !Boolean.TRUE.equals(isStart) && !Boolean.TRUE.equals(isEnd);
+    }
+
+    // An annotation link is any relationship from an annotation to its target; these are
+    // the only ones with types of the user's choosing
+    private static boolean isAnnotationLink(Relationship r) {
+        return !internalTypes.contains(r.getType().name());
+    }
+
+    // The counts behind the statistics of a section, or the difference made to them
+    private static class Counts {
+        private long readings = 0;
+        private final TreeMap<String, Long> witnesses = new TreeMap<>();
+        private final TreeMap<String, Long> relations = new TreeMap<>();
+        private final HashMap<Long, Long> annotations = new HashMap<>();
+
+        static Counts read(Node stats) {
+            Counts c = new Counts();
+            c.readings = (Long) stats.getProperty("readings", 0L);
+            String[] sigla = (String[]) stats.getProperty("witness_sigla", new String[0]);
+            long[] refs = (long[]) stats.getProperty("witness_refs", new long[0]);
+            for (int i = 0; i < sigla.length; i++)
+                c.witnesses.put(sigla[i], refs[i]);
+            String[] types = (String[]) stats.getProperty("relation_types", new String[0]);
+            long[] counts = (long[]) stats.getProperty("relation_counts", new long[0]);
+            for (int i = 0; i < types.length; i++)
+                c.relations.put(types[i], counts[i]);
+            long[] annos = (long[]) stats.getProperty("annotation_ids", new long[0]);
+            long[] links = (long[]) stats.getProperty("annotation_refs", new long[0]);
+            for (int i = 0; i < annos.length; i++)
+                c.annotations.put(annos[i], links[i]);
+            return c;
+        }
+
+        static Counts count(Node sectionNode) {
+            Counts c = new Counts();
+            Long sectionId = sectionNode.getId();
+            c.countLinks(sectionNode);
+            for (Node n : sectionNode.getGraphDatabase().traversalDescription().breadthFirst()
+                    .relationships(ERelations.COLLATION, Direction.OUTGOING)
+                    .relationships(ERelations.HAS_END, Direction.OUTGOING)
+                    .relationships(ERelations.HAS_EMENDATION, Direction.OUTGOING)
+                    .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
+                    .uniqueness(Uniqueness.NODE_GLOBAL)
+                    .traverse(sectionNode).nodes()) {
+                if (!n.hasLabel(Nodes.READING) || !sectionId.equals(asId(n.getProperty("section_id", null))))
+                    continue;
+                if (isReading(true, n.getProperty("is_start", null), n.getProperty("is_end", null)))
+                    c.readings++;
+                for (Relationship r : n.getRelationships(ERelations.SEQUENCE, Direction.OUTGOING))
+                    for (Object value : r.getAllProperties().values())
+                        c.addSigla(value, 1);
+                for (Relationship r : n.getRelationships(ERelations.RELATED, Direction.OUTGOING))
+                    c.addRelation(r.getProperty("type", null), 1);
+                c.countLinks(n);
+            }
+            return c;
+        }
+
+        private void countLinks(Node target) {
+            for (Relationship r : target.getRelationships(Direction.INCOMING))
+                if (isAnnotationLink(r))
+                    addAnnotation(r.getStartNodeId(), 1);
+        }
+
+        void addSigla(Object value, long delta) {
+            if (value instanceof String[])
+                for (String sigil : (String[]) value)
+                    witnesses.merge(sigil, delta, Long::sum);
+        }
+
+        void addRelation(Object type, long delta) {
+            if (type != null)
+                relations.merge(type.toString(), delta, Long::sum);
+        }
+
+        void addAnnotation(long annotationId, long delta) {
+            annotations.merge(annotationId, delta, Long::sum);
+        }
+
+        void add(Counts other) {
+            readings += other.readings;
+            other.witnesses.forEach((k, v) -> witnesses.merge(k, v, Long::sum));
+            other.relations.forEach((k, v) -> relations.merge(k, v, Long::sum));
+            other.annotations.forEach((k, v) -> annotations.merge(k, v, Long::sum));
+        }
+
+        void write(Node stats) {
+            witnesses.values().removeIf(x -> x <= 0);
+            relations.values().removeIf(x -> x <= 0);
+            annotations.values().removeIf(x -> x <= 0);
+            stats.setProperty("readings", readings);
+            stats.setProperty("witness_sigla", witnesses.keySet().toArray(new String[0]));
+            stats.setProperty("witness_refs", witnesses.values().stream().mapToLong(x -> x).toArray());
+            stats.setProperty("relation_types", relations.keySet().toArray(new String[0]));
+            stats.setProperty("relation_counts", relations.values().stream().mapToLong(x -> x).toArray());
+            stats.setProperty("annotation_ids", annotations.keySet().stream().mapToLong(x -> x).toArray());
+            stats.setProperty("annotation_refs", annotations.values().stream().mapToLong(x -> x).toArray());
+        }
+
+        StatisticsModel toModel(Long endRank) {
+            StatisticsModel sm = new StatisticsModel();
+            sm.setReadings(readings);
+            sm.setEndRank(endRank);
+            sm.setWitnesses((int) witnesses.values().stream().filter(x -> x > 0).count());
+            TreeMap<String, Long> relCounts = new TreeMap<>(relations);
+            relCounts.values().removeIf(x -> x <= 0);
+            sm.setRelations(relCounts);
+            sm.setAnnotations(annotations.values().stream().filter(x -> x > 0).count());
+            return sm;
+        }
+    }
+
+    // Works out which sections a transaction touches. The statistics nodes themselves
+    // are left out, so that storing statistics doesn't mark them as changed again.
+    private static class Touched {
+        private final GraphDatabaseService db;
+        private final TransactionData data;
+        private final HashSet<Long> deleted = new HashSet<>();
+        // The section IDs that deleted nodes had, and the deleted nodes that held statistics
+        private final HashMap<Long, Long> oldSections = new HashMap<>();
+        private final HashSet<Long> deletedStats = new HashSet<>();
+
+        private final HashSet<Long> sections = new HashSet<>();
+
+        Touched(TransactionData data) {
+            this.db = new GraphDatabaseServiceProvider().getDatabase();
+            this.data = data;
+            data.deletedNodes().forEach(n -> deleted.add(n.getId()));
+            for (PropertyEntry<Node> pe : data.removedNodeProperties())
+                if (deleted.contains(pe.entity().getId()) && pe.key().equals("section_id"))
+                    oldSections.put(pe.entity().getId(), asId(pe.previouslyCommitedValue()));
+            for (LabelEntry le : data.removedLabels())
+                if (deleted.contains(le.node().getId()) && le.label().equals(Nodes.SECTION_STATS))
+                    deletedStats.add(le.node().getId());
+        }
+
+        Set<Long> sections() {
+            for (Node n : data.createdNodes())
+                add(n.getId());
+            for (Long id : deleted)
+                add(id);
+            for (PropertyEntry<Node> pe : data.assignedNodeProperties()) {
+                add(pe.entity().getId());
+                // A node that moves between sections changes both
+                if (pe.key().equals("section_id") && !isStats(pe.entity().getId()))
+                    addSection(asId(pe.previouslyCommitedValue()));
+            }
+            for (PropertyEntry<Node> pe : data.removedNodeProperties()) {
+                add(pe.entity().getId());
+                if (pe.key().equals("section_id") && !isStats(pe.entity().getId()))
+                    addSection(asId(pe.previouslyCommitedValue()));
+            }
+            for (LabelEntry le : data.assignedLabels())
+                add(le.node().getId());
+            for (LabelEntry le : data.removedLabels())
+                add(le.node().getId());
+            for (Relationship r : data.createdRelationships())
+                add(r);
+            for (Relationship r : data.deletedRelationships())
+                add(r);
+            for (PropertyEntry<Relationship> pe : data.assignedRelationshipProperties())
+                add(pe.entity());
+            for (PropertyEntry<Relationship> pe : data.removedRelationshipProperties())
+                add(pe.entity());
+            return sections;
+        }
+
+        private void add(Relationship r) {
+            if (r.isType(ERelations.STATS_FOR))
+                return;
+            add(r.getStartNodeId());
+            add(r.getEndNodeId());
+        }
+
+        // Mark the section that a node belongs to, or is
+        private void add(long nodeId) {
+            if (isStats(nodeId))
+                return;
+            if (deleted.contains(nodeId)) {
+                addSection(oldSections.get(nodeId));
+                return;
+            }
+            Node n = db.getNodeById(nodeId);
+            if (n.hasProperty("section_id"))
+                addSection(asId(n.getProperty("section_id")));
+            else if (n.hasLabel(Nodes.SECTION))
+                sections.add(n.getId());
+        }
+
+        private void addSection(Long id) {
+            if (id != null)
+                sections.add(id);
+        }
+
+        private boolean isStats(long nodeId) {
+            if (deleted.contains(nodeId))
+                return deletedStats.contains(nodeId);
+            return db.getNodeById(nodeId).hasLabel(Nodes.SECTION_STATS);
+        }
+    }
+
+    private static Node sectionNode(Long id, GraphDatabaseService db) {
+        try {
+            Node n = db.getNodeById(id);
+            return n.hasLabel(Nodes.SECTION) ? n : null;
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * An in-memory copy of a stemma: its witnesses, its transmission edges, and its archetype
+ * if it has one. A stemma is read from the graph once and then kept against the version of
+ * its tradition, so that its DOT form, and questions of ancestry within it, can be answered
+ * without going back to the database until the tradition changes.
+ *
+ * If the stemma has an archetype, its edges are kept as they are found by a walk outward
+ * from the archetype, and so oriented away from it; in a contaminated stemma only stored
+ * directions are followed. Otherwise the edges are kept in their stored direction.
+ */
+
+public class StemmaGraph {
+    private static final int CACHE_SIZE = 256;
+
+    private static final LinkedHashMap<String, Cached> cache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final long nodeId;
+    private final String name;
+    private final boolean directed;
+    private final boolean contaminated;
+    private final Long fromJobid;
+    private String archetype = null;
+    // The witnesses, by sigil, in the order they are linked to the stemma
+    private final LinkedHashMap<String, Vertex> vertices = new LinkedHashMap<>();
+    private final ArrayList<String[]> edges = new ArrayList<>();
+    private final HashMap<String, List<String>> parents = new HashMap<>();
+    private final HashMap<String, List<String>> children = new HashMap<>();
+
+    /**
+     * Returns the named stemma of a tradition, from the cache if the tradition hasn't
+     * changed since it was last read.
+     *
+     * @param tradId - the tradition ID
+     * @param name - the name of the stemma
+     * @param db - the database service
+     * @return the stemma, or null if the tradition has no stemma by this name
+     */
+    public static StemmaGraph of(String tradId, String name, GraphDatabaseService db) {
+        String key = tradId + "/" + name;
+        long version = TraditionVersion.of(tradId);
+        try (Transaction tx = db.beginTx()) {
+            Cached c;
+            synchronized (cache) {
+                c = cache.get(key);
+            }
+            // A stemma read in a transaction that was rolled back might not be there
+            if (c != null && c.version == version && c.stemma.stillThere(db)) {
+                tx.success();
+                return c.stemma;
+            }
+
+            Node traditionNode = DatabaseService.getTraditionNode(tradId, db);
+            Node stemmaNode = null;
+            if (traditionNode != null)
+                for (Node s : DatabaseService.getRelated(traditionNode, ERelations.HAS_STEMMA))
+                    if (s.getProperty("name").equals(name)) {
+                        stemmaNode = s;
+                        break;
+                    }
+            StemmaGraph result = stemmaNode == null ? null : new StemmaGraph(stemmaNode);
+            tx.success();
+            synchronized (cache) {
+                if (result == null)
+                    cache.remove(key);
+                else
+                    cache.put(key, new Cached(version, result));
+            }
+            return result;
+        }
+    }
+
+    // Used inside a transaction
+    private StemmaGraph(Node stemmaNode) {
+        nodeId = stemmaNode.getId();
+        name = stemmaNode.getProperty("name").toString();
+        directed = stemmaNode.getProperty("directed", false).equals(true);
+        contaminated = stemmaNode.hasProperty("is_contaminated");
+        fromJobid = stemmaNode.hasProperty("from_jobid")
+                ? Long.valueOf(stemmaNode.getProperty("from_jobid").toString()) : null;
+
+        // Read the witnesses and the edges between them that belong to this stemma
+        HashMap<Long, String> sigla = new HashMap<>();
+        for (Node w : DatabaseService.getRelated(stemmaNode, ERelations.HAS_WITNESS)) {
+            Vertex v = new Vertex(w);
+            vertices.put(v.sigil, v);
+            sigla.put(w.getId(), v.sigil);
+        }
+        ArrayList<String[]> stored = new ArrayList<>();
+        for (Node w : DatabaseService.getRelated(stemmaNode, ERelations.HAS_WITNESS))
+            for (Relationship r : w.getRelationships(ERelations.TRANSMITTED, Direction.OUTGOING))
+                if (name.equals(r.getProperty("hypothesis", null)) && sigla.containsKey(r.getEndNodeId()))
+                    stored.add(new String[] {sigla.get(w.getId()), sigla.get(r.getEndNodeId())});
+
+        Relationship root = stemmaNode.getSingleRelationship(ERelations.HAS_ARCHETYPE, Direction.OUTGOING);
+        if (root == null)
+            edges.addAll(stored);
+        else {
+            archetype = sigla.get(root.getEndNodeId());
+            orientFrom(archetype, stored);
+        }
+        for (String[] e : edges) {
+            children.computeIfAbsent(e[0], k -> new ArrayList<>()).add(e[1]);
+            parents.computeIfAbsent(e[1], k -> new ArrayList<>()).add(e[0]);
+        }
+    }
+
+    // Walks the stored edges breadth-first from the archetype, using each edge once
+    private void orientFrom(String root, List<String[]> stored) {
+        HashMap<String, List<Integer>> incident = new HashMap<>();
+        for (int i = 0; i < stored.size(); i++)
+            for (String end : stored.get(i))
+                incident.computeIfAbsent(end, k -> new ArrayList<>()).add(i);
+        boolean[] used = new boolean[stored.size()];
+        HashSet<String> expanded = new HashSet<>();
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            String s = queue.poll();
+            if (!expanded.add(s)) continue;
+            for (int i : incident.getOrDefault(s, Collections.emptyList())) {
+                if (used[i]) continue;
+                String[] e = stored.get(i);
+                boolean outgoing = e[0].equals(s);
+                if (!outgoing && contaminated) continue;
+                used[i] = true;
+                String other = outgoing ? e[1] : e[0];
+                edges.add(new String[] {s, other});
+                queue.add(other);
+            }
+        }
+    }
+
+    private boolean stillThere(GraphDatabaseService db) {
+        try {
+            return name.equals(db.getNodeById(nodeId).getProperty("name", null));
+        } catch (NotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the name of the stemma
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return true if the stemma is directed, so that its witnesses have ancestors
+     */
+    public boolean isDirected() {
+        return directed;
+    }
+
+    /**
+     * @return true if the stemma indicates contamination
+     */
+    public boolean isContaminated() {
+        return contaminated;
+    }
+
+    /**
+     * @return the Stemweb job ID that the stemma came from, if any
+     */
+    public Long getFromJobid() {
+        return fromJobid;
+    }
+
+    /**
+     * @return the sigil of the archetype, or null if the stemma has none
+     */
+    public String getArchetype() {
+        return archetype;
+    }
+
+    /**
+     * @param sigil - a witness sigil
+     * @return true if the witness appears in the stemma
+     */
+    public boolean hasWitness(String sigil) {
+        return vertices.containsKey(sigil);
+    }
+
+    /**
+     * Lists the witnesses from which the given witness descends, nearest first.
+     *
+     * @param sigil - the witness sigil
+     * @return the sigla of its ancestors
+     */
+    public List<String> ancestors(String sigil) {
+        return lineage(sigil, parents);
+    }
+
+    /**
+     * Lists the witnesses that descend from the given witness, nearest first.
+     *
+     * @param sigil - the witness sigil
+     * @return the sigla of its descendants
+     */
+    public List<String> descendants(String sigil) {
+        return lineage(sigil, children);
+    }
+
+    private static List<String> lineage(String sigil, Map<String, List<String>> links) {
+        LinkedHashSet<String> found = new LinkedHashSet<>();
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        queue.add(sigil);
+        while (!queue.isEmpty())
+            for (String next : links.getOrDefault(queue.poll(), Collections.emptyList()))
+                if (!next.equals(sigil) && found.add(next))
+                    queue.add(next);
+        return new ArrayList<>(found);
+    }
+
+    /**
+     * Writes the stemma in DOT format.
+     *
+     * @param singleLine - whether the result needs to omit linebreaks
+     * @return the DOT specification
+     */
+    public String toDot(boolean singleLine) {
+        ArrayList<String> outputLines = new ArrayList<>();
+        String stemmaType = directed ? "digraph" : "graph";
+        String edgeGlyph = directed ? "->" : "--";
+        outputLines.add(String.format("%s \"%s\" {", stemmaType, name));
+        for (Vertex v : vertices.values()) {
+            String witnessAttr = v.hypothetical ? "[class=hypothetical" : "[class=extant";
+            if (v.label != null)
+                witnessAttr += " label=\"" + v.label + '"';
+            witnessAttr += "]";
+            outputLines.add(String.format("\t%s %s;", v.dotId(), witnessAttr));
+        }
+        for (String[] e : edges)
+            outputLines.add(String.format("\t%s %s %s;",
+                    vertices.get(e[0]).dotId(), edgeGlyph, vertices.get(e[1]).dotId()));
+        outputLines.add("}");
+        return String.join(singleLine ? "  " : "\n", outputLines);
+    }
+
+    private static class Vertex {
+        private final String sigil;
+        private final boolean hypothetical;
+        private final boolean quoteSigil;
+        private final String label;
+
+        Vertex(Node witness) {
+            sigil = witness.getProperty("sigil").toString();
+            hypothetical = witness.getProperty("hypothetical", false).equals(true);
+            quoteSigil = witness.getProperty("quotesigil", false).equals(true);
+            label = witness.hasProperty("label") ? witness.getProperty("label").toString() : null;
+        }
+
+        // The correctly-quoted sigil for DOT output
+        String dotId() {
+            return quoteSigil ? String.format("\"%s\"", sigil) : sigil;
+        }
+    }
+
+    private static class Cached {
+        private final long version;
+        private final StemmaGraph stemma;
+
+        Cached(long version, StemmaGraph stemma) {
+            this.version = version;
+            this.stemma = stemma;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * Copies a tradition subgraph within the database, for forking a tradition without a
+ * round trip through GraphML. Every node reachable from the tradition node is copied with
+ * its labels and properties, and every relationship among them is then recreated between
+ * the copies, using a table that maps each original node ID to the ID of its copy. The
+ * work is committed in batches, so that the transaction state stays bounded however large
+ * the tradition is.
+ *
+ * The sections are copied first, so that each copied reading can be pointed at its copied
+ * section before it is committed. The tradition node itself, with its own relationships, is
+ * created last, in the transaction that completes the copy; until then the batches that
+ * have been committed are unreachable from any tradition.
+ *
+ * The copy is linked to its owner in that same transaction, so that a tradition without an
+ * owner is never committed. If the copy fails partway, whatever was already committed is
+ * removed again.
+ */
+
+public class TraditionCloner {
+    // How many nodes or relationships to copy per transaction
+    static final int BATCH_SIZE = 10000;
+
+    private final GraphDatabaseService db;
+    private final HashMap<Long, Long> remap = new HashMap<>();
+
+    private final String newId = UUID.randomUUID().toString();
+    private final String newName;
+    private final long ownerId;
+    private long traditionNodeId;
+
+    private TraditionCloner(GraphDatabaseService db, String newName, long ownerId) {
+        this.db = db;
+        this.newName = newName;
+        this.ownerId = ownerId;
+    }
+
+    /**
+     * Makes a copy of a tradition.
+     *
+     * @param tradId - the ID of the tradition to copy
+     * @param newName - the name for the copy, or null to keep the original name
+     * @param owner - the user node that should own the copy
+     * @param db - the database service
+     * @return the ID of the new tradition
+     * @throws Exception if the copy fails
+     */
+    public static String cloneTradition(String tradId, String newName, Node owner, GraphDatabaseService db)
+            throws Exception {
+        return new TraditionCloner(db, newName, owner.getId()).run(tradId);
+    }
+
+    private String run(String tradId) throws Exception {
+        // Collect the subgraph to copy, sections first
+        // (the crawl can reach a node more than once)
+        LinkedHashSet<Long> sectionNodes = new LinkedHashSet<>();
+        LinkedHashSet<Long> seenNodes = new LinkedHashSet<>();
+        ArrayList<Long> relIds = new ArrayList<>();
+        ArrayList<Long> traditionRelIds = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            Node traditionNode = DatabaseService.getTraditionNode(tradId, db);
+            if (traditionNode == null)
+                throw new NotFoundException("No tradition with ID " + tradId);
+            traditionNodeId = traditionNode.getId();
+            Traverser tv = DatabaseService.returnEntireTradition(traditionNode);
+            for (Node n : tv.nodes()) {
+                if (n.getId() == traditionNodeId) continue;
+                if (n.hasLabel(Nodes.SECTION))
+                    sectionNodes.add(n.getId());
+                else
+                    seenNodes.add(n.getId());
+            }
+            // Relationships found by the outgoing crawl from the tradition node all lie
+            // inside the subgraph
+            LinkedHashSet<Long> seenRels = new LinkedHashSet<>();
+            for (Relationship r : tv.relationships()) {
+                if (r == null || !seenRels.add(r.getId())) continue;
+                if (r.getStartNodeId() == traditionNodeId || r.getEndNodeId() == traditionNodeId)
+                    traditionRelIds.add(r.getId());
+                else
+                    relIds.add(r.getId());
+            }
+            tx.success();
+        }
+        ArrayList<Long> nodeIds = new ArrayList<>(sectionNodes);
+        seenNodes.removeAll(sectionNodes);
+        nodeIds.addAll(seenNodes);
+
+        try {
+            for (int i = 0; i < nodeIds.size(); i += BATCH_SIZE)
+                copyNodes(nodeIds.subList(i, Math.min(i + BATCH_SIZE, nodeIds.size())));
+            for (int i = 0; i < relIds.size(); i += BATCH_SIZE)
+                copyRelationships(relIds.subList(i, Math.min(i + BATCH_SIZE, relIds.size())));
+            copyTradition(traditionRelIds);
+        } catch (Exception e) {
+            deleteCopies();
+            throw e;
+        }
+        return newId;
+    }
+
+    private void copyNodes(List<Long> batch) {
+        try (Transaction tx = db.beginTx()) {
+            for (Long id : batch) {
+                Node original = db.getNodeById(id);
+                Node copy = db.createNode();
+                original.getLabels().forEach(copy::addLabel);
+                original.getAllProperties().forEach(copy::setProperty);
+                // Point the copy at the copied section; since the sections were copied
+                // first, the copy of the section is already there
+                if (copy.hasProperty("section_id")) {
+                    Long newSection = remap.get((Long) copy.getProperty("section_id"));
+                    if (newSection == null)
+                        throw new IllegalStateException(String.format(
+                                "Node %d refers to section %s, which is not part of the tradition",
+                                id, copy.getProperty("section_id")));
+                    copy.setProperty("section_id", newSection);
+                }
+                remap.put(id, copy.getId());
+            }
+            tx.success();
+        }
+    }
+
+    // Create the tradition node with its new identity, and link it to its owner and to the
+    // copied subgraph
+    private void copyTradition(List<Long> relIds) {
+        try (Transaction tx = db.beginTx()) {
+            Node original = db.getNodeById(traditionNodeId);
+            Node copy = db.createNode();
+            original.getLabels().forEach(copy::addLabel);
+            original.getAllProperties().forEach(copy::setProperty);
+            copy.setProperty("id", newId);
+            if (newName != null)
+                copy.setProperty("name", newName);
+            remap.put(traditionNodeId, copy.getId());
+            copyRelationships(relIds);
+            db.getNodeById(ownerId).createRelationshipTo(copy, ERelations.OWNS_TRADITION);
+            tx.success();
+        } catch (RuntimeException e) {
+            // The tradition copy was rolled back, so there is nothing of it to delete
+            remap.remove(traditionNodeId);
+            throw e;
+        }
+    }
+
+    private void copyRelationships(List<Long> batch) {
+        try (Transaction tx = db.beginTx()) {
+            for (Long id : batch) {
+                Relationship original = db.getRelationshipById(id);
+                Node from = db.getNodeById(remap.get(original.getStartNodeId()));
+                Node to = db.getNodeById(remap.get(original.getEndNodeId()));
+                Relationship copy = from.createRelationshipTo(to, original.getType());
+                original.getAllProperties().forEach(copy::setProperty);
+            }
+            tx.success();
+        }
+    }
+
+    // Remove a partial copy, batch by batch
+    private void deleteCopies() {
+        ArrayList<Long> copies = new ArrayList<>(remap.values());
+        for (int i = 0; i < copies.size(); i += BATCH_SIZE) {
+            try (Transaction tx = db.beginTx()) {
+                for (Long id : copies.subList(i, Math.min(i + BATCH_SIZE, copies.size()))) {
+                    Node n = db.getNodeById(id);
+                    n.getRelationships().forEach(Relationship::delete);
+                    n.delete();
+                }
+                tx.success();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps a version number for each tradition, which changes whenever a transaction that
+ * touches the tradition commits. Results that are expensive to compute from a tradition
+ * can be cached along with the version they were computed under, and reused for as long
+ * as the version stays the same.
+ *
+ * The tradition of a changed node is found from its section_id property, or else from a
+ * tradition node one step away. If a commit changes anything whose tradition can't be
+ * told this way, every tradition gets a new version. Section statistics are not part of
+ * the tradition, and storing them changes no version. As with SectionOrderCache, the
+ * version should be read before the computation whose result is cached, so that a commit
+ * made in the meantime makes the result stale rather than being missed.
+ */
+
+public class TraditionVersion {
+    private static final HashMap<String, Long> versions = new HashMap<>();
+    // Every version handed out is unique; 'floor' is the lowest version still current
+    private static long clock = 0;
+    private static long floor = 0;
+
+    /**
+     * @param tradId - the tradition ID
+     * @return the current version of the tradition
+     */
+    public static synchronized long of(String tradId) {
+        return Math.max(floor, versions.getOrDefault(tradId, 0L));
+    }
+
+    /**
+     * Gives the given traditions new versions.
+     *
+     * @param tradIds - the tradition IDs
+     */
+    static synchronized void bump(Set<String> tradIds) {
+        for (String t : tradIds)
+            versions.put(t, ++clock);
+    }
+
+    /**
+     * Gives every tradition a new version.
+     */
+    public static synchronized void bumpAll() {
+        floor = ++clock;
+        versions.clear();
+    }
+
+    /**
+     * Transaction handler that works out, before each commit, which traditions the
+     * commit touches, and gives them new versions once it has gone through. A null
+     * state means that the traditions couldn't all be told.
+     */
+    static final TransactionEventHandler<Set<String>> versionHandler = new TransactionEventHandler.Adapter<Set<String>>() {
+        @Override
+        public Set<String> beforeCommit(TransactionData data) {
+            try {
+                return new Resolver(data).touched();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Set<String> touched) {
+            if (touched == null)
+                bumpAll();
+            else if (!touched.isEmpty())
+                bump(touched);
+        }
+    };
+
+    // Finds the traditions that a transaction touches; gives up with null if it meets a
+    // change that can't be placed
+    private static class Resolver {
+        private final TransactionData data;
+        private final HashSet<Long> deleted = new HashSet<>();
+        private final HashMap<Long, String> sectionTradition = new HashMap<>();
+        private final HashSet<String> touched = new HashSet<>();
+
+        // The IDs of tradition nodes deleted in this transaction, by node ID
+        private final HashMap<Long, String> deletedTraditions = new HashMap<>();
+        // The deleted nodes that held section statistics
+        private final HashSet<Long> deletedStats = new HashSet<>();
+
+        Resolver(TransactionData data) {
+            this.data = data;
+            data.deletedNodes().forEach(n -> deleted.add(n.getId()));
+            for (LabelEntry le : data.removedLabels())
+                if (deleted.contains(le.node().getId()) && le.label().equals(Nodes.TRADITION))
+                    for (PropertyEntry<Node> pe : data.removedNodeProperties())
+                        if (pe.entity().getId() == le.node().getId() && pe.key().equals("id"))
+                            deletedTraditions.put(le.node().getId(), pe.previouslyCommitedValue().toString());
+            for (LabelEntry le : data.removedLabels())
+                if (deleted.contains(le.node().getId()) && le.label().equals(Nodes.SECTION_STATS))
+                    deletedStats.add(le.node().getId());
+        }
+
+        Set<String> touched() {
+            // Deleted nodes can't be looked at any more, but their old properties can. Those
+            // without a section or tradition ID are placed by their deleted relationships.
+            for (PropertyEntry<Node> pe : data.removedNodeProperties()) {
+                if (!deleted.contains(pe.entity().getId())) {
+                    if (!place(pe.entity())) return null;
+                    continue;
+                }
+                Object old = pe.previouslyCommitedValue();
+                if (pe.key().equals("section_id") && old != null && !deletedStats.contains(pe.entity().getId())) {
+                    GraphDatabaseService db = pe.entity().getGraphDatabase();
+                    String tradId = traditionOfSection(Long.valueOf(old.toString()), db);
+                    if (tradId == null) return null;
+                    touched.add(tradId);
+                }
+            }
+            touched.addAll(deletedTraditions.values());
+            for (LabelEntry le : data.removedLabels())
+                if (!deleted.contains(le.node().getId()) && !place(le.node()))
+                    return null;
+            for (Node n : data.createdNodes())
+                if (!place(n)) return null;
+            for (PropertyEntry<Node> pe : data.assignedNodeProperties())
+                if (!place(pe.entity())) return null;
+            for (LabelEntry le : data.assignedLabels())
+                if (!place(le.node())) return null;
+            for (Relationship r : data.createdRelationships())
+                if (!place(r)) return null;
+            for (Relationship r : data.deletedRelationships())
+                if (!place(r)) return null;
+            for (PropertyEntry<Relationship> pe : data.assignedRelationshipProperties())
+                if (!place(pe.entity())) return null;
+            for (PropertyEntry<Relationship> pe : data.removedRelationshipProperties())
+                if (!place(pe.entity())) return null;
+            return touched;
+        }
+
+        // A relationship belongs to the tradition of either of its ends that is still there
+        private boolean place(Relationship r) {
+            if (r.isType(ERelations.STATS_FOR))
+                return true;
+            for (long id : new long[] {r.getStartNodeId(), r.getEndNodeId()})
+                if (!deleted.contains(id) && place(r.getGraphDatabase().getNodeById(id)))
+                    return true;
+            // If both ends are gone, they were placed as deleted nodes
+            return deleted.contains(r.getStartNodeId()) && deleted.contains(r.getEndNodeId());
+        }
+
+        private boolean place(Node n) {
+            if (deleted.contains(n.getId()) || n.hasLabel(Nodes.SECTION_STATS))
+                return true;
+            String tradId;
+            if (n.hasLabel(Nodes.TRADITION))
+                tradId = n.getProperty("id").toString();
+            else if (n.hasProperty("section_id"))
+                tradId = traditionOfSection(Long.valueOf(n.getProperty("section_id").toString()),
+                        n.getGraphDatabase());
+            else
+                tradId = adjacentTradition(n);
+            if (tradId == null) return false;
+            touched.add(tradId);
+            return true;
+        }
+
+        private String traditionOfSection(Long sectionId, GraphDatabaseService db) {
+            if (sectionTradition.containsKey(sectionId))
+                return sectionTradition.get(sectionId);
+            String tradId = null;
+            if (deleted.contains(sectionId)) {
+                // A deleted section is found by its deleted PART relationship
+                for (Relationship r : data.deletedRelationships()) {
+                    if (r.getEndNodeId() != sectionId || !r.isType(ERelations.PART)) continue;
+                    long start = r.getStartNodeId();
+                    if (deletedTraditions.containsKey(start))
+                        tradId = deletedTraditions.get(start);
+                    else if (!deleted.contains(start))
+                        tradId = db.getNodeById(start).getProperty("id").toString();
+                }
+            } else {
+                try {
+                    tradId = adjacentTradition(db.getNodeById(sectionId));
+                } catch (NotFoundException e) {
+                    tradId = null;
+                }
+            }
+            sectionTradition.put(sectionId, tradId);
+            return tradId;
+        }
+
+        // The ID of a tradition node that is directly linked to this node, if any
+        private String adjacentTradition(Node n) {
+            for (Relationship r : n.getRelationships(Direction.INCOMING)) {
+                if (deleted.contains(r.getStartNodeId())) continue;
+                Node other = r.getStartNode();
+                if (other.hasLabel(Nodes.TRADITION))
+                    return other.getProperty("id").toString();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package net.stemmaweb.services;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Compact encoding of the witness lists carried by SEQUENCE relationships. Each
+ * tradition gets a table mapping witness sigla to ordinals, and the String[] of a
+ * witness class ("witnesses" or a layer such as "a.c.") becomes a long[] bitset in
+ * which bit n is set if the witness with ordinal n is present. Membership tests on
+ * the encoded form are single bit operations.
+ *
+ * The String[] form on the relationship remains the stored format, and the bitsets are
+ * only a working form for reading it. Decoding is not an exact inverse of encoding: it
+ * gives the sigla in ordinal order, and each sigil only once.
+ *
+ * A table may be shared between threads. Ordinals are only ever added, under a lock,
+ * and a sigil is listed before its ordinal is published, so lookups need no lock.
+ */
+
+public class WitnessBitset {
+    private final ConcurrentHashMap<String, Integer> ordinals = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<String> sigla = new CopyOnWriteArrayList<>();
+
+    /**
+     * Builds an ordinal table from the given list of sigla, in order.
+     *
+     * @param sigla - the witness sigla to number
+     */
+    public WitnessBitset(Collection<String> sigla) {
+        sigla.forEach(this::ordinalFor);
+    }
+
+    /**
+     * Builds the ordinal table for a tradition from its witness nodes, in sigil order.
+     * NOTE: for use in a transaction!
+     *
+     * @param traditionNode - the tradition whose witnesses should be numbered
+     * @return the ordinal table
+     */
+    public static WitnessBitset forTradition(Node traditionNode) {
+        return new WitnessBitset(WitnessRegistry.sigla(traditionNode));
+    }
+
+    /**
+     * Returns the ordinal for the given sigil, or -1 if the sigil is not in the table.
+     *
+     * @param sigil - the witness sigil
+     * @return the ordinal
+     */
+    public int ordinal(String sigil) {
+        return ordinals.getOrDefault(sigil, -1);
+    }
+
+    /**
+     * Returns the ordinal for the given sigil, adding it to the end of the table if
+     * it is not there yet. Existing ordinals never change.
+     *
+     * @param sigil - the witness sigil
+     * @return the ordinal
+     */
+    public int ordinalFor(String sigil) {
+        Integer o = ordinals.get(sigil);
+        if (o != null)
+            return o;
+        synchronized (sigla) {
+            o = ordinals.get(sigil);
+            if (o == null) {
+                o = sigla.size();
+                sigla.add(sigil);
+                ordinals.put(sigil, o);
+            }
+        }
+        return o;
+    }
+
+    /**
+     * @return the sigla in the table, in ordinal order
+     */
+    public List<String> getSigla() {
+        return Collections.unmodifiableList(sigla);
+    }
+
+    /**
+     * @return the number of witnesses in the table
+     */
+    public int size() {
+        return sigla.size();
+    }
+
+    /**
+     * @return the number of longs needed for a bitset over this table
+     */
+    public int words() {
+        return (sigla.size() + 63) >>> 6;
+    }
+
+    /**
+     * Encodes a list of sigla as a bitset. Sigla that aren't yet in the table are added.
+     *
+     * @param witnesses - the sigla to encode
+     * @return the bitset
+     */
+    public long[] encode(String[] witnesses) {
+        int[] ords = new int[witnesses.length];
+        int max = -1;
+        for (int i = 0; i < witnesses.length; i++) {
+            ords[i] = ordinalFor(witnesses[i]);
+            max = Math.max(max, ords[i]);
+        }
+        long[] bits = new long[(max + 64) >>> 6];
+        for (int o : ords)
+            bits[o >>> 6] |= 1L << o;
+        return bits;
+    }
+
+    /**
+     * Decodes a bitset back into a list of sigla, in ordinal order.
+     *
+     * @param bits - the bitset
+     * @return the sigla whose bits are set
+     */
+    public String[] decode(long[] bits) {
+        String[] result = new String[cardinality(bits)];
+        int i = 0;
+        for (int w = 0; w < bits.length; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                result[i++] = sigla.get((w << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Encodes all witness classes of a SEQUENCE relationship.
+     * NOTE: for use in a transaction!
+     *
+     * @param seq - the SEQUENCE relationship
+     * @return a map of witness class to bitset
+     */
+    public Map<String, long[]> encodeEdge(Relationship seq) {
+        HashMap<String, long[]> result = new HashMap<>();
+        for (String witClass : seq.getPropertyKeys())
+            result.put(witClass, encode((String[]) seq.getProperty(witClass)));
+        return result;
+    }
+
+    /**
+     * Tests whether the given ordinal is set in the bitset.
+     *
+     * @param bits - the bitset
+     * @param ordinal - the witness ordinal
+     * @return true if the witness is present
+     */
+    public static boolean contains(long[] bits, int ordinal) {
+        if (ordinal < 0) return false;
+        int w = ordinal >>> 6;
+        return w < bits.length && (bits[w] & (1L << ordinal)) != 0;
+    }
+
+    /**
+     * @param bits - the bitset
+     * @return the number of witnesses in the bitset
+     */
+    public static int cardinality(long[] bits) {
+        int c = 0;
+        for (long word : bits)
+            c += Long.bitCount(word);
+        return c;
+    }
+
+    /**
+     * Counts the members that two bitsets have in common, without building the
+     * intersection.
+     *
+     * @param a - the first bitset
+     * @param b - the second bitset
+     * @return the number of bits set in both
+     */
+    public static int intersectionCount(long[] a, long[] b) {
+        int c = 0;
+        for (int i = 0; i < Math.min(a.length, b.length); i++)
+            c += Long.bitCount(a[i] & b[i]);
+        return c;
+    }
+
+    /**
+     * @param bits - the bitset
+     * @return true if no witness is present
+     */
+    public static boolean isEmpty(long[] bits) {
+        for (long word : bits)
+            if (word != 0) return false;
+        return true;
+    }
+
+    /**
+     * Returns the union of two bitsets, which may be of different lengths.
+     *
+     * @param a - the first bitset
+     * @param b - the second bitset
+     * @return a new bitset
+     */
+    public static long[] union(long[] a, long[] b) {
+        long[] longer = a.length >= b.length ? a : b;
+        long[] shorter = a.length >= b.length ? b : a;
+        long[] result = Arrays.copyOf(longer, longer.length);
+        for (int i = 0; i < shorter.length; i++)
+            result[i] |= shorter[i];
+        return result;
+    }
+
+    /**
+     * Returns the first bitset with all members of the second removed.
+     *
+     * @param a - the bitset to subtract from
+     * @param b - the bitset to subtract
+     * @return a new bitset
+     */
+    public static long[] difference(long[] a, long[] b) {
+        long[] result = Arrays.copyOf(a, a.length);
+        for (int i = 0; i < Math.min(a.length, b.length); i++)
+            result[i] &= ~b[i];
+        return result;
+    }
+}
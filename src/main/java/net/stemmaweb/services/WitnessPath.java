@@ -8,63 +8,166 @@ import org.neo4j.graphdb.traversal.Evaluation;
 import org.neo4j.graphdb.traversal.Evaluator;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Generalized path evaluator for traversing a witness.
+ * Generalized path evaluator for traversing a witness. The sigil and layer names are
+ * resolved once, when the evaluator is built; the witness lists of each SEQUENCE
+ * relationship are decoded into bitsets once and kept in an EdgeCache, which the caller
+ * supplies so that it can be shared by all the evaluators of a request.
  */
 
 public class WitnessPath {
     private final String sigil;
     private final List<String> alternative;
+    private final EdgeCache cache;
 
-    public WitnessPath (String sigil, List<String> alternative) {
+    public WitnessPath (String sigil, List<String> alternative, EdgeCache cache) {
         this.sigil = sigil;
         this.alternative = alternative;
-    }
-    public WitnessPath (String sigil) {
-        this.sigil = sigil;
-        this.alternative = new ArrayList<>();
+        this.cache = cache;
     }
 
     public Evaluator getEvalForWitness () {
-        return path -> {
+        final Step step = new Step();
+        return path -> path.length() == 0
+                ? Evaluation.EXCLUDE_AND_CONTINUE
+                : step.evaluate(path.lastRelationship());
+    }
 
+    /**
+     * Returns an evaluator that follows the witness, as getEvalForWitness does, but from a
+     * reading partway along its path, and only as far as the given rank. The reading it
+     * starts from is included.
+     *
+     * @param endRank - the highest rank to include
+     * @param reached - set to true if the walk gets past endRank or to the end node, i.e.
+     *                if the witness path was not broken off before then
+     * @return the evaluator
+     */
+    public Evaluator getEvalForWitness (long endRank, boolean[] reached) {
+        final Step step = new Step();
+        return path -> {
             if (path.length() == 0) {
-                return Evaluation.EXCLUDE_AND_CONTINUE;
+                if (path.endNode().hasProperty("is_end")) reached[0] = true;
+                return Evaluation.INCLUDE_AND_CONTINUE;
             }
+            Evaluation e = step.evaluate(path.lastRelationship());
+            if (!e.includes())
+                return e;
+            Node n = path.endNode();
+            if (Long.valueOf(n.getProperty("rank").toString()) > endRank) {
+                reached[0] = true;
+                return Evaluation.EXCLUDE_AND_PRUNE;
+            }
+            if (n.hasProperty("is_end")) reached[0] = true;
+            return e;
+        };
+    }
+
+    /**
+     * Tells whether a reading is on the path of this witness (or layer), by checking
+     * whether the witness would be followed along any of its incoming sequences. This
+     * looks only at the reading's immediate neighbourhood, and so relies on the witness
+     * having a single unbroken path through the section.
+     *
+     * NOTE: for use in a transaction!
+     *
+     * @param reading - the reading to check
+     * @return true if the witness passes through the reading
+     */
+    public boolean passesThrough(Node reading) {
+        Step step = new Step();
+        for (Relationship r : reading.getRelationships(Direction.INCOMING, ERelations.SEQUENCE))
+            if (step.evaluate(r).includes())
+                return true;
+        return false;
+    }
+
+    // Decides, one sequence at a time, whether the witness follows it
+    private class Step {
+        private final int ordinal = cache.table.ordinalFor(sigil);
+        private final String[] layers = alternative.toArray(new String[0]);
+        // Remember, for each node we leave, which of its outgoing sequences carries one of
+        // our layers. The value is null if none do, or AMBIGUOUS if more than one does.
+        private final HashMap<Long, Long> layerChoice = new HashMap<>();
+
+        Evaluation evaluate(Relationship last) {
             // Find all relevant alternative paths out from last node; there should be zero or one.
-            Relationship correct = null;
-            for (String layer : alternative) {
-                Node priorNode = path.lastRelationship().getStartNode();
-                for (Relationship r : priorNode.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE))
-                    if (r.hasProperty(layer) && witnessIn(r.getProperty(layer)))
-                        if (correct != null) // There is more than one relevant path; cut the tree off.
-                            return Evaluation.EXCLUDE_AND_PRUNE;
-                        else
-                            correct = r;
+            if (layers.length > 0) {
+                Node priorNode = last.getStartNode();
+                Long correct;
+                if (layerChoice.containsKey(priorNode.getId()))
+                    correct = layerChoice.get(priorNode.getId());
+                else {
+                    correct = null;
+                    for (String layer : layers)
+                        for (Relationship r : priorNode.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE))
+                            if (cache.hasWitness(r, layer, ordinal))
+                                correct = correct == null ? r.getId() : AMBIGUOUS;
+                    layerChoice.put(priorNode.getId(), correct);
+                }
+                // There is more than one relevant path; cut the tree off.
+                if (correct != null && correct == AMBIGUOUS)
+                    return Evaluation.EXCLUDE_AND_PRUNE;
+                // There is one relevant path; return depending on whether that path is us.
+                if (correct != null)
+                    return correct == last.getId()
+                            ? Evaluation.INCLUDE_AND_CONTINUE : Evaluation.EXCLUDE_AND_PRUNE;
             }
-            // There is one relevant path; return depending on whether that path is us.
-            if (correct != null)
-                return correct.equals(path.lastRelationship())
-                        ? Evaluation.INCLUDE_AND_CONTINUE : Evaluation.EXCLUDE_AND_PRUNE;
 
             // Follow the main path in the absence of an alternative
-            if (path.lastRelationship().hasProperty("witnesses")
-                    && witnessIn(path.lastRelationship().getProperty("witnesses")))
+            if (cache.hasWitness(last, "witnesses", ordinal))
                 return Evaluation.INCLUDE_AND_CONTINUE;
 
             return Evaluation.EXCLUDE_AND_PRUNE;
-        };
+        }
     }
 
-    private Boolean witnessIn (Object property) {
-        String[] arr = (String []) property;
-        for (String str : arr) {
-            if (str.equals(sigil)) {
-                return true;
-            }
+    // Relationship IDs are never negative, so this can't clash with a real one.
+    private static final long AMBIGUOUS = -1L;
+
+    /**
+     * Holds the decoded witness bitsets of the SEQUENCE relationships seen so far,
+     * keyed by relationship ID. Only valid for as long as the sequences don't change,
+     * so it should not outlive the request it was filled in; within the request it may
+     * be used from several threads at once.
+     */
+    public static class EdgeCache {
+        private final WitnessBitset table;
+        private final ConcurrentHashMap<Long, Map<String, long[]>> decoded = new ConcurrentHashMap<>();
+
+        public EdgeCache() {
+            this.table = new WitnessBitset(new ArrayList<>());
+        }
+        public EdgeCache(WitnessBitset table) {
+            this.table = table;
+        }
+
+        /**
+         * @param r - the SEQUENCE relationship
+         * @return a map of witness class to bitset for the relationship
+         */
+        public Map<String, long[]> witnessClasses(Relationship r) {
+            return decoded.computeIfAbsent(r.getId(), k -> table.encodeEdge(r));
+        }
+
+        /**
+         * @param r - the SEQUENCE relationship
+         * @param witClass - the witness class ("witnesses" or a layer name)
+         * @param sigil - the witness sigil
+         * @return true if the witness is in the given class on the relationship
+         */
+        public boolean hasWitness(Relationship r, String witClass, String sigil) {
+            return hasWitness(r, witClass, table.ordinal(sigil));
+        }
+
+        private boolean hasWitness(Relationship r, String witClass, int ordinal) {
+            long[] bits = witnessClasses(r).get(witClass);
+            return bits != null && WitnessBitset.contains(bits, ordinal);
         }
-        return false;
     }
 }
@@ -0,0 +1,192 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * Keeps, for each tradition, a table of its witnesses by sigil and by node ID, so that
+ * looking up a witness doesn't mean walking every HAS_WITNESS link of the tradition and
+ * comparing sigla. The table is kept against the tradition's version; creating, deleting
+ * or renaming a witness changes the version, and the table is read again the next time
+ * it is wanted.
+ *
+ * Since a table might be read inside a transaction that is later rolled back, a witness
+ * found in the table is checked against its node before it is returned, and a sigil that
+ * is not in the table is looked for the slow way. Either kind of mismatch throws the
+ * table away. NOTE: all lookups must be made in a transaction!
+ */
+
+public class WitnessRegistry {
+    private static final int CACHE_SIZE = 256;
+
+    private static final LinkedHashMap<String, Registry> registries = new LinkedHashMap<String, Registry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Registry> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Finds the witness of a tradition with the given sigil.
+     *
+     * @param traditionNode - the tradition node
+     * @param sigil - the witness sigil
+     * @return the witness node, or null if the tradition has no such witness
+     */
+    public static Node lookup(Node traditionNode, String sigil) {
+        Registry r = registryFor(traditionNode);
+        Entry e = r.bySigil.get(sigil);
+        if (e != null) {
+            Node found = nodeFor(traditionNode.getGraphDatabase(), e);
+            if (found != null)
+                return found;
+        }
+        // Either the table is out of date, or the tradition has no such witness
+        Node found = null;
+        for (Node w : DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS))
+            if (sigil.equals(w.getProperty("sigil", null))) {
+                found = w;
+                break;
+            }
+        if (found != null || e != null)
+            forget(r.tradId);
+        return found;
+    }
+
+    /**
+     * Finds the sigil of the witness with the given node ID, if it belongs to the tradition.
+     *
+     * @param traditionNode - the tradition node
+     * @param nodeId - the node ID of the witness
+     * @return the witness sigil, or null if the tradition has no such witness
+     */
+    public static String sigilOf(Node traditionNode, long nodeId) {
+        Registry r = registryFor(traditionNode);
+        Entry e = r.byId.get(nodeId);
+        if (e != null && nodeFor(traditionNode.getGraphDatabase(), e) != null)
+            return e.sigil;
+        // Either the table is out of date, or the node isn't one of our witnesses
+        String found = null;
+        for (Relationship rel : traditionNode.getRelationships(ERelations.HAS_WITNESS, Direction.OUTGOING))
+            if (rel.getEndNodeId() == nodeId) {
+                found = rel.getEndNode().getProperty("sigil").toString();
+                break;
+            }
+        if (found != null || e != null)
+            forget(r.tradId);
+        return found;
+    }
+
+    /**
+     * Lists the witness nodes of a tradition, in sigil order.
+     *
+     * @param traditionNode - the tradition node
+     * @return the witness nodes
+     */
+    public static List<Node> witnesses(Node traditionNode) {
+        GraphDatabaseService db = traditionNode.getGraphDatabase();
+        Registry r = registryFor(traditionNode);
+        ArrayList<Node> result = new ArrayList<>();
+        for (Entry e : r.bySigil.values()) {
+            Node found = nodeFor(db, e);
+            if (found == null) {
+                // The table is out of date; read it again, but don't keep it
+                forget(r.tradId);
+                result.clear();
+                for (Entry f : read(traditionNode, r.tradId).bySigil.values())
+                    result.add(db.getNodeById(f.nodeId));
+                break;
+            }
+            result.add(found);
+        }
+        return result;
+    }
+
+    /**
+     * Lists the witness sigla of a tradition, in sigil order.
+     *
+     * @param traditionNode - the tradition node
+     * @return the sigla
+     */
+    public static List<String> sigla(Node traditionNode) {
+        ArrayList<String> result = new ArrayList<>();
+        witnesses(traditionNode).forEach(x -> result.add(x.getProperty("sigil").toString()));
+        return result;
+    }
+
+    /**
+     * Drops the table for a tradition, so that it will be read again when it is next wanted.
+     *
+     * @param tradId - the tradition ID
+     */
+    public static void forget(String tradId) {
+        synchronized (registries) {
+            registries.remove(tradId);
+        }
+    }
+
+    private static Registry registryFor(Node traditionNode) {
+        String tradId = traditionNode.getProperty("id").toString();
+        long version = TraditionVersion.of(tradId);
+        synchronized (registries) {
+            Registry r = registries.get(tradId);
+            if (r != null && r.version == version)
+                return r;
+        }
+        Registry r = read(traditionNode, tradId);
+        synchronized (registries) {
+            // Don't replace a table that was read under a later version
+            Registry current = registries.get(tradId);
+            if (current == null || current.version <= r.version)
+                registries.put(tradId, r);
+        }
+        return r;
+    }
+
+    // Reads the table from the graph; the version is taken first, so that a commit made
+    // meanwhile leaves the table stale rather than wrongly current
+    private static Registry read(Node traditionNode, String tradId) {
+        Registry r = new Registry(tradId, TraditionVersion.of(tradId));
+        for (Node w : DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS)) {
+            if (!w.hasProperty("sigil")) continue;
+            Entry e = new Entry(w.getId(), w.getProperty("sigil").toString());
+            r.bySigil.put(e.sigil, e);
+            r.byId.put(e.nodeId, e);
+        }
+        return r;
+    }
+
+    // The node for a table entry, if it is still there with the same sigil
+    private static Node nodeFor(GraphDatabaseService db, Entry e) {
+        try {
+            Node n = db.getNodeById(e.nodeId);
+            return e.sigil.equals(n.getProperty("sigil", null)) ? n : null;
+        } catch (NotFoundException ex) {
+            return null;
+        }
+    }
+
+    private static class Registry {
+        private final String tradId;
+        private final long version;
+        private final TreeMap<String, Entry> bySigil = new TreeMap<>();
+        private final HashMap<Long, Entry> byId = new HashMap<>();
+
+        Registry(String tradId, long version) {
+            this.tradId = tradId;
+            this.version = version;
+        }
+    }
+
+    private static class Entry {
+        private final long nodeId;
+        private final String sigil;
+
+        Entry(long nodeId, String sigil) {
+            this.nodeId = nodeId;
+            this.sigil = sigil;
+        }
+    }
+}
@@ -16,6 +16,8 @@ import com.sun.jersey.test.framework.spi.client.ClientFactory;
 import com.sun.jersey.test.framework.spi.container.TestContainerException;
 import com.sun.jersey.test.framework.spi.container.TestContainerFactory;
 import com.sun.jersey.test.framework.spi.container.grizzly2.GrizzlyTestContainerFactory;
+import net.stemmaweb.rest.DeadlockRetry;
+import net.stemmaweb.rest.RequestTransactionFilter;
 
 /**
  * 
@@ -86,6 +88,8 @@ public class JerseyTestServerFactory {
             protected AppDescriptor configure() {
                 DefaultResourceConfig resourceConfig = new DefaultResourceConfig();
                 resourceConfig.getFeatures().put(JSONConfiguration.FEATURE_POJO_MAPPING, true);
+                resourceConfig.getClasses().add(RequestTransactionFilter.class);
+                resourceConfig.getClasses().add(DeadlockRetry.class);
                 for (Object resource : resources) {
                     resourceConfig.getSingletons().add(resource);
                 }
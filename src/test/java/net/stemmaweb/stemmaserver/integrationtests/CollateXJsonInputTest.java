@@ -1,5 +1,7 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.GenericType;
 import com.sun.jersey.multipart.FormDataMultiPart;
@@ -21,6 +23,7 @@ import org.neo4j.test.TestGraphDatabaseFactory;
 
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -214,6 +217,37 @@ public class CollateXJsonInputTest extends TestCase {
         assertEquals("AM 407", ourSections.get(1).getName());
     }
 
+    public void testTableBeforeWitnesses() throws Exception {
+        // Move the witness list after the table, so that the table has to be kept until then
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode original = (ObjectNode) mapper.readTree(new File("src/TestFiles/Matthew-407.json"));
+        ObjectNode reordered = mapper.createObjectNode();
+        reordered.set("table", original.get("table"));
+        original.fields().forEachRemaining(e -> {
+            if (!e.getKey().equals("table")) reordered.set(e.getKey(), e.getValue());
+        });
+        assertEquals("table", reordered.fieldNames().next());
+
+        ClientResponse response = Util.createTraditionFromFileOrString(jerseyTest, "Reordered", "LR", "1",
+                mapper.writeValueAsString(reordered), "cxjson");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        String newTradId = Util.getValueFromJson(response, "tradId");
+
+        // The result is the same as when the witnesses come first
+        List<ReadingModel> allreadings = jerseyTest.resource().path("/tradition/" + newTradId + "/readings")
+                .get(new GenericType<List<ReadingModel>>() {});
+        assertEquals(381, allreadings.size());
+        assertEquals(Util.makeReadingLookup(jerseyTest, tradId).keySet(),
+                Util.makeReadingLookup(jerseyTest, newTradId).keySet());
+        List<String> expectedWits = jerseyTest.resource().path("/tradition/" + tradId + "/witnesses")
+                .get(new GenericType<List<WitnessModel>>() {})
+                .stream().map(WitnessModel::getSigil).sorted().collect(Collectors.toList());
+        List<String> actualWits = jerseyTest.resource().path("/tradition/" + newTradId + "/witnesses")
+                .get(new GenericType<List<WitnessModel>>() {})
+                .stream().map(WitnessModel::getSigil).sorted().collect(Collectors.toList());
+        assertEquals(expectedWits, actualWits);
+    }
+
     /** For diagnostic use when parsing a section fails
     public void testSomething() throws Exception {
         String newSectId = Util.getValueFromJson(Util.addSectionToTradition(jerseyTest, tradId,
@@ -1,6 +1,15 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.test.framework.JerseyTest;
@@ -8,6 +17,9 @@ import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Root;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.LockManager;
+import net.stemmaweb.services.ReadingService;
+import net.stemmaweb.services.WitnessBitset;
 
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 import net.stemmaweb.stemmaserver.Util;
@@ -16,6 +28,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
@@ -87,6 +100,111 @@ public class DatabaseServiceTest {
         assertEquals(3, witnesses.size());
     }
 
+    @Test
+    public void witnessBitsetTest() {
+        try (Transaction tx = db.beginTx()) {
+            Node tradition = DatabaseService.getTraditionNode(traditionId, db);
+            WitnessBitset table = WitnessBitset.forTradition(tradition);
+            assertEquals(Arrays.asList("A", "B", "C"), table.getSigla());
+            assertEquals(1, table.words());
+            for (Relationship r : DatabaseService.returnTraditionSection(
+                    DatabaseService.getSectionNodes(traditionId, db).get(0)).relationships()) {
+                if (!r.isType(ERelations.SEQUENCE)) continue;
+                Map<String, long[]> encoded = table.encodeEdge(r);
+                long[] wits = encoded.get("witnesses");
+                assertEquals(((String[]) r.getProperty("witnesses")).length, WitnessBitset.cardinality(wits));
+                assertEquals(new HashSet<>(Arrays.asList((String[]) r.getProperty("witnesses"))),
+                        new HashSet<>(Arrays.asList(table.decode(wits))));
+                for (String sigil : table.getSigla())
+                    assertEquals(Arrays.asList((String[]) r.getProperty("witnesses")).contains(sigil),
+                            WitnessBitset.contains(wits, table.ordinal(sigil)));
+            }
+            assertEquals(-1, table.ordinal("D"));
+            assertFalse(WitnessBitset.contains(new long[] {7L}, table.ordinal("D")));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void readingsInRankRangeTest() {
+        try (Transaction tx = db.beginTx()) {
+            db.schema().awaitIndexesOnline(10, java.util.concurrent.TimeUnit.SECONDS);
+            Node section = DatabaseService.getSectionNodes(traditionId, db).get(0);
+            for (long[] window : new long[][] {{0, 0}, {3, 7}, {10, 1000}, {8, 2}}) {
+                List<Node> expected = DatabaseService.returnTraditionSection(section).nodes().stream()
+                        .distinct().filter(x -> x.hasProperty("rank")
+                                && (Long) x.getProperty("rank") >= window[0]
+                                && (Long) x.getProperty("rank") <= window[1])
+                        .sorted((a, b) -> a.getProperty("rank").equals(b.getProperty("rank"))
+                                ? Long.compare(a.getId(), b.getId())
+                                : ((Long) a.getProperty("rank")).compareTo((Long) b.getProperty("rank")))
+                        .collect(Collectors.toList());
+                assertEquals(expected, ReadingService.readingsInRankRange(section, window[0], window[1]));
+            }
+            tx.success();
+        }
+    }
+
+    @Test
+    public void lockManagerTest() throws Exception {
+        ArrayList<Thread> started = new ArrayList<>();
+        try (LockManager.Held ignored = LockManager.writeSections("tradA", Arrays.asList(2L, 1L))) {
+            // Another section of the same tradition, and another tradition, are free
+            CountDownLatch free = new CountDownLatch(2);
+            started.add(new Thread(() -> {
+                try (LockManager.Held h = LockManager.writeSections("tradA", Collections.singletonList(3L))) {
+                    free.countDown();
+                }
+            }));
+            started.get(started.size() - 1).start();
+            started.add(new Thread(() -> {
+                try (LockManager.Held h = LockManager.writeTradition("tradB")) {
+                    free.countDown();
+                }
+            }));
+            started.get(started.size() - 1).start();
+            assertTrue(free.await(5, TimeUnit.SECONDS));
+
+            // The locked section, and the tradition as a whole, have to wait
+            CountDownLatch blocked = new CountDownLatch(2);
+            started.add(new Thread(() -> {
+                try (LockManager.Held h = LockManager.readSections("tradA", Collections.singletonList(1L))) {
+                    blocked.countDown();
+                }
+            }));
+            started.get(started.size() - 1).start();
+            started.add(new Thread(() -> {
+                try (LockManager.Held h = LockManager.writeTradition("tradA")) {
+                    blocked.countDown();
+                }
+            }));
+            started.get(started.size() - 1).start();
+            assertFalse(blocked.await(500, TimeUnit.MILLISECONDS));
+            ignored.close();
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        }
+        for (Thread t : started)
+            t.join();
+    }
+
+    @Test
+    public void lockManagerEvictionTest() {
+        int before = LockManager.size();
+        try (LockManager.Held ignored = LockManager.writeSections("tradC", Arrays.asList(4L, 5L))) {
+            assertEquals(before + 3, LockManager.size());
+        }
+        assertEquals(before, LockManager.size());
+
+        // The sections are looked up again once they are locked, and locked afresh if they moved
+        AtomicInteger lookups = new AtomicInteger();
+        try (LockManager.Held ignored = LockManager.writeSectionsOf("tradC", () -> lookups.incrementAndGet() == 1
+                ? Collections.singletonList(4L) : Collections.singletonList(5L))) {
+            assertEquals(3, lookups.get());
+            assertEquals(before + 2, LockManager.size());
+        }
+        assertEquals(before, LockManager.size());
+    }
+
     @Test
     public void userExistsTest() {
         assertTrue(DatabaseService.userExists(userId, db));
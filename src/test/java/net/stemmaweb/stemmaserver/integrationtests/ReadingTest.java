@@ -216,6 +216,113 @@ public class ReadingTest {
         assertEquals(expectedWitnessA, ((TextSequenceModel) resp.getEntity()).getText());
     }
 
+    @Test
+    public void changeReadingPropertiesBatchTest() {
+        String showers = readingLookup.get("showers/5");
+        String sweet = readingLookup.get("sweet/6");
+        String root = readingLookup.get("root/17");
+
+        List<ReadingBatchChangeModel> changes = new ArrayList<>();
+        // A good change with two properties
+        ReadingBatchChangeModel change = new ReadingBatchChangeModel();
+        change.setId(showers);
+        KeyPropertyModel keyModel = new KeyPropertyModel();
+        keyModel.setKey("text");
+        keyModel.setProperty("snow");
+        change.addProperty(keyModel);
+        keyModel = new KeyPropertyModel();
+        keyModel.setKey("normal_form");
+        keyModel.setProperty("snows");
+        change.addProperty(keyModel);
+        changes.add(change);
+        // A change with one good and one wrongly-typed property
+        change = new ReadingBatchChangeModel();
+        change.setId(sweet);
+        keyModel = new KeyPropertyModel();
+        keyModel.setKey("text");
+        keyModel.setProperty("sour");
+        change.addProperty(keyModel);
+        keyModel = new KeyPropertyModel();
+        keyModel.setKey("join_next");
+        keyModel.setProperty("true");
+        change.addProperty(keyModel);
+        changes.add(change);
+        // A change to a property that doesn't exist
+        change = new ReadingBatchChangeModel();
+        change.setId(root);
+        keyModel = new KeyPropertyModel();
+        keyModel.setKey("test");
+        keyModel.setProperty("snow");
+        change.addProperty(keyModel);
+        changes.add(change);
+        // A change to something that isn't a reading in this section
+        change = new ReadingBatchChangeModel();
+        change.setId(sectId);
+        keyModel = new KeyPropertyModel();
+        keyModel.setKey("text");
+        keyModel.setProperty("snow");
+        change.addProperty(keyModel);
+        changes.add(change);
+
+        ClientResponse response = jerseyTest
+                .resource()
+                .path("/tradition/" + tradId + "/section/" + sectId + "/readings")
+                .type(MediaType.APPLICATION_JSON)
+                .put(ClientResponse.class, changes);
+        assertEquals(Status.OK.getStatusCode(), response.getStatus());
+        BatchResultModel result = response.getEntity(BatchResultModel.class);
+        assertEquals(Arrays.asList(Status.OK.getStatusCode(), Status.BAD_REQUEST.getStatusCode(),
+                Status.BAD_REQUEST.getStatusCode(), Status.NOT_FOUND.getStatusCode()),
+                result.getResults().stream().map(BatchItemResultModel::getStatus).collect(Collectors.toList()));
+        assertEquals("Reading has no such property 'test'", result.getResults().get(2).getError());
+
+        // Check that only the good change was made
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.getNodeById(Long.valueOf(showers));
+            assertEquals("snow", node.getProperty("text"));
+            assertEquals("snows", node.getProperty("normal_form"));
+            node = db.getNodeById(Long.valueOf(sweet));
+            assertEquals("sweet", node.getProperty("text"));
+            assertNotEquals("true", node.getProperty("join_next", null));
+            node = db.getNodeById(Long.valueOf(sectId));
+            assertFalse(node.hasProperty("text"));
+            tx.success();
+        }
+        String expectedWitnessA = "when april with his snow sweet with fruit the drought of march has pierced unto me the root";
+        Response resp = new Witness(tradId, "A").getWitnessAsText();
+        assertEquals(expectedWitnessA, ((TextSequenceModel) resp.getEntity()).getText());
+    }
+
+    @Test
+    public void changeReadingPropertiesBatchMalformedTest() {
+        String showers = readingLookup.get("showers/5");
+        String sweet = readingLookup.get("sweet/6");
+
+        // The list is read as it arrives, so the changes before a malformed entry are made
+        String body = String.format("[{\"id\":\"%s\",\"properties\":[{\"key\":\"text\",\"property\":\"snow\"}]},"
+                + "{\"id\":\"%s\",\"properties\":", showers, sweet);
+        ClientResponse response = jerseyTest
+                .resource()
+                .path("/tradition/" + tradId + "/section/" + sectId + "/readings")
+                .type(MediaType.APPLICATION_JSON)
+                .put(ClientResponse.class, body);
+        assertEquals(Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+        assertTrue(response.getEntity(String.class).contains("after 1 changes"));
+        try (Transaction tx = db.beginTx()) {
+            assertEquals("snow", db.getNodeById(Long.valueOf(showers)).getProperty("text"));
+            assertEquals("sweet", db.getNodeById(Long.valueOf(sweet)).getProperty("text"));
+            tx.success();
+        }
+
+        // Something that isn't a list at all is refused
+        response = jerseyTest
+                .resource()
+                .path("/tradition/" + tradId + "/section/" + sectId + "/readings")
+                .type(MediaType.APPLICATION_JSON)
+                .put(ClientResponse.class, "{\"id\":\"" + sweet + "\"}");
+        assertEquals(Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    }
+
     @Test
     public void changeReadingPropertiesPropertyKeyNotFoundTest() {
         String nodeId = readingLookup.get("showers/5");
@@ -805,6 +912,43 @@ public class ReadingTest {
         }
     }
 
+    @Test
+    public void duplicateWithTraditionScopeRelationTest() {
+        String withA = readingLookup.get("with/3");
+        String withB = readingLookup.get("with/7");
+        String showers = readingLookup.get("showers/5");
+
+        // The repetition between the two 'with's crosses 'showers', and so is set aside
+        // and put back when 'showers' is duplicated; give it tradition scope
+        try (Transaction tx = db.beginTx()) {
+            Node withNode = db.getNodeById(Long.valueOf(withA));
+            for (Relationship r : withNode.getRelationships(ERelations.RELATED))
+                if (r.getOtherNode(withNode).getId() == Long.valueOf(withB))
+                    r.setProperty("scope", "tradition");
+            tx.success();
+        }
+
+        DuplicateModel jsonPayload = new DuplicateModel();
+        jsonPayload.setReadings(Collections.singletonList(showers));
+        jsonPayload.setWitnesses(new ArrayList<>(Arrays.asList("A", "B")));
+        ClientResponse response = jerseyTest.resource()
+                .path("/reading/" + showers + "/duplicate")
+                .type(MediaType.APPLICATION_JSON)
+                .post(ClientResponse.class, jsonPayload);
+        assertEquals(Status.OK.getStatusCode(), response.getStatus());
+        assertEquals(0, response.getEntity(GraphModel.class).getRelations().size());
+
+        // The relation should be back, with its scope
+        List<RelationModel> ourRels = jerseyTest.resource().path("/tradition/" + tradId + "/relations")
+                .get(new GenericType<List<RelationModel>>() {});
+        Optional<RelationModel> repetition = ourRels.stream()
+                .filter(x -> x.getType().equals("repetition")).findFirst();
+        assertTrue(repetition.isPresent());
+        assertEquals(new HashSet<>(Arrays.asList(withA, withB)),
+                new HashSet<>(Arrays.asList(repetition.get().getSource(), repetition.get().getTarget())));
+        assertEquals("tradition", repetition.get().getScope());
+    }
+
     @Test
     public void duplicateWithDuplicateForTwoWitnessesTest() {
         // get all relationships
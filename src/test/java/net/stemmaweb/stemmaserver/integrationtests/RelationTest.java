@@ -6,6 +6,8 @@ import java.util.stream.Collectors;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import net.stemmaweb.model.BatchItemResultModel;
+import net.stemmaweb.model.BatchResultModel;
 import net.stemmaweb.model.GraphModel;
 import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.model.RelationModel;
@@ -109,6 +111,100 @@ public class RelationTest {
         }
     }
 
+    @Test
+    public void createRelationshipBatchTest() {
+        String source = readingLookup.getOrDefault("april/2", "17");
+        String target = readingLookup.getOrDefault("showers/5", "25");
+        List<RelationModel> batch = new ArrayList<>();
+        for (String scope : Arrays.asList("local", "local", "tradition")) {
+            RelationModel relationship = new RelationModel();
+            relationship.setSource(source);
+            relationship.setTarget(target);
+            relationship.setType("repetition");
+            relationship.setScope(scope);
+            batch.add(relationship);
+        }
+        RelationModel invalid = new RelationModel();
+        invalid.setSource(source);
+        invalid.setTarget("1337");
+        invalid.setType("repetition");
+        batch.add(invalid);
+
+        ClientResponse actualResponse = jerseyTest
+                .resource()
+                .path("/tradition/" + tradId + "/relation/batch")
+                .type(MediaType.APPLICATION_JSON)
+                .post(ClientResponse.class, batch);
+        assertEquals(Response.Status.OK.getStatusCode(), actualResponse.getStatus());
+        BatchResultModel result = actualResponse.getEntity(BatchResultModel.class);
+        List<Integer> statuses = result.getResults().stream()
+                .map(BatchItemResultModel::getStatus).collect(Collectors.toList());
+        assertEquals(Arrays.asList(Response.Status.CREATED.getStatusCode(), Response.Status.NOT_MODIFIED.getStatusCode(),
+                Response.Status.BAD_REQUEST.getStatusCode(), Response.Status.INTERNAL_SERVER_ERROR.getStatusCode()),
+                statuses);
+        assertEquals(1, result.getChanges().getRelations().size());
+
+        String relationshipId = result.getResults().get(0).getId();
+        assertNotNull(relationshipId);
+        try (Transaction tx = db.beginTx()) {
+            Relationship loadedRelationship = db.getRelationshipById(Long.parseLong(relationshipId));
+            assertEquals(Long.valueOf(source), (Long) loadedRelationship.getStartNode().getId());
+            assertEquals(Long.valueOf(target), (Long) loadedRelationship.getEndNode().getId());
+            assertEquals("repetition", loadedRelationship.getProperty("type"));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void createRelationshipBatchRefusedTest() {
+        long roodId;
+        long the1Id = 0L;
+        long the2Id = 0L;
+        try (Transaction tx = db.beginTx()) {
+            roodId = db.findNode(Nodes.READING, "text", "rood").getId();
+            for (Node the : db.findNodes(Nodes.READING, "text", "the").stream().collect(Collectors.toList())) {
+                if (the.getProperty("rank").equals(17L))
+                    the1Id = the.getId();
+                else
+                    the2Id = the.getId();
+            }
+            tx.success();
+        }
+        assertTrue(the1Id > 0);
+        assertTrue(the2Id > 0);
+
+        // The second relation clears away the collation made by the first, and is then refused
+        List<RelationModel> batch = new ArrayList<>();
+        RelationModel collated = new RelationModel();
+        collated.setSource(String.valueOf(roodId));
+        collated.setTarget(String.valueOf(the1Id));
+        collated.setType("collated");
+        batch.add(collated);
+        RelationModel refused = new RelationModel();
+        refused.setSource(String.valueOf(roodId));
+        refused.setTarget(String.valueOf(the2Id));
+        refused.setType("orthographic");
+        batch.add(refused);
+
+        ClientResponse response = jerseyTest.resource().path("/tradition/" + tradId + "/relation/batch")
+                .type(MediaType.APPLICATION_JSON)
+                .post(ClientResponse.class, batch);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        List<Integer> statuses = response.getEntity(BatchResultModel.class).getResults().stream()
+                .map(BatchItemResultModel::getStatus).collect(Collectors.toList());
+        assertEquals(Arrays.asList(Response.Status.CREATED.getStatusCode(), Response.Status.CONFLICT.getStatusCode()),
+                statuses);
+
+        // The collation is back
+        List<RelationModel> allRels = jerseyTest.resource().path("/tradition/" + tradId + "/relations")
+                .get(new GenericType<List<RelationModel>>() {});
+        assertEquals(4, allRels.size());
+        String source = String.valueOf(roodId);
+        String target = String.valueOf(the1Id);
+        assertTrue(allRels.stream().anyMatch(r -> r.getType().equals("collated")
+                && r.getSource().equals(source) && r.getTarget().equals(target)));
+    }
+
     /**
      * Test if an 404 error occurs when an invalid target node was tested
      */
@@ -6,17 +6,21 @@ import com.sun.jersey.core.util.MultivaluedMapImpl;
 import com.sun.jersey.test.framework.JerseyTest;
 import junit.framework.TestCase;
 import net.stemmaweb.model.*;
+import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.Root;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.SectionStatistics;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 import net.stemmaweb.stemmaserver.Util;
 import org.junit.After;
 import org.junit.Before;
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.MultipleFoundException;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
@@ -288,6 +292,12 @@ public class SectionTest extends TestCase {
                 "πληγὰς ἐπιθεῖναι δέῃ, μὴ παραιτήσῃ ῥάπισον αὐτοῦ τὴν ὄψιν, σύντριψον αὐτοῦ τὸ στόμα, ἁγίασόν σου " +
                 "τὴν χεῖρα διὰ τῆς πληγῆς, κἂν ἐγκαλῶσι τινές, κὰν εἰς δικαστήριον ἕλκωσιν, ἀκολούθησον.";
         assertEquals(bBefore, _section_reorder_sequence(florId, reorderPath));
+        // The section list should reflect the new order
+        List<SectionModel> returnedSections = jerseyTest.resource()
+                .path("/tradition/" + florId + "/sections")
+                .get(new GenericType<List<SectionModel>>() {});
+        assertEquals(Arrays.asList(florIds.get(0), florIds.get(2), florIds.get(1), florIds.get(3)),
+                returnedSections.stream().map(SectionModel::getId).collect(Collectors.toList()));
 
         // Now try reordering a section to be first
         String moveFirstPath = "/section/" + florIds.get(3) + "/orderAfter/none";
@@ -851,6 +861,150 @@ public class SectionTest extends TestCase {
         assertEquals(5, pathClusters.size());
     }
 
+    public void testVariantLocations() {
+        List<SectionModel> tradSections = jerseyTest.resource()
+                .path("/tradition/" + tradId + "/sections")
+                .get(new GenericType<List<SectionModel>>() {});
+        String sectPath = "/tradition/" + tradId + "/section/" + tradSections.get(0).getId();
+        List<VariantLocationModel> locations = jerseyTest.resource()
+                .path(sectPath + "/variants")
+                .get(new GenericType<List<VariantLocationModel>>() {});
+        assertFalse(locations.isEmpty());
+        AlignmentModel alignment = jerseyTest.resource()
+                .path(sectPath + "/json")
+                .get(AlignmentModel.class);
+        HashMap<String, List<ReadingModel>> tokens = new HashMap<>();
+        for (WitnessTokensModel wtm : alignment.getAlignment())
+            tokens.put(wtm.getLayer() == null ? wtm.getWitness()
+                    : String.format("%s (%s)", wtm.getWitness(), wtm.getLayer()), wtm.getTokens());
+
+        boolean[] inLocation = new boolean[(int) alignment.getLength()];
+        long lastEnd = 0;
+        for (VariantLocationModel vlm : locations) {
+            // Locations are in order and don't touch
+            assertTrue(vlm.getStart() > lastEnd + 1 || lastEnd == 0 && vlm.getStart() > 0);
+            assertTrue(vlm.getEnd() >= vlm.getStart());
+            lastEnd = vlm.getEnd();
+            for (long r = vlm.getStart(); r <= vlm.getEnd(); r++)
+                inLocation[(int) r - 1] = true;
+            // Every witness is in exactly one variant, which has its readings
+            assertTrue(vlm.getVariants().size() > 1);
+            HashSet<String> seen = new HashSet<>();
+            for (VariantModel vm : vlm.getVariants()) {
+                for (String sigil : vm.getWitnesses()) {
+                    assertTrue(seen.add(sigil));
+                    List<String> expected = new ArrayList<>();
+                    for (long r = vlm.getStart(); r <= vlm.getEnd(); r++) {
+                        ReadingModel rm = tokens.get(sigil).get((int) r - 1);
+                        if (rm != null && (expected.isEmpty() || !expected.get(expected.size() - 1).equals(rm.getId())))
+                            expected.add(rm.getId());
+                    }
+                    assertEquals(expected, vm.getReadings());
+                }
+            }
+            assertEquals(tokens.keySet(), seen);
+        }
+        // Outside the locations, the witnesses agree
+        for (int i = 0; i < inLocation.length; i++) {
+            if (inLocation[i]) continue;
+            HashSet<String> readings = new HashSet<>();
+            for (List<ReadingModel> column : tokens.values()) {
+                ReadingModel rm = column.get(i);
+                if (rm == null || !Boolean.TRUE.equals(rm.getIs_lacuna()))
+                    readings.add(rm == null ? null : rm.getId());
+            }
+            assertTrue(readings.size() <= 1);
+        }
+
+        // A section that isn't in the tradition is not found
+        ClientResponse response = jerseyTest.resource()
+                .path("/tradition/nonexistent/section/" + tradSections.get(0).getId() + "/variants")
+                .get(ClientResponse.class);
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+        response = jerseyTest.resource()
+                .path("/tradition/" + tradId + "/section/99999999/variants")
+                .get(ClientResponse.class);
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+    }
+
+    public void testSectionStatistics() throws Exception {
+        // The statistics are counted in the background once the import is committed
+        SectionStatistics.settle();
+        List<SectionModel> tradSections = jerseyTest.resource()
+                .path("/tradition/" + tradId + "/sections")
+                .get(new GenericType<List<SectionModel>>() {});
+        StatisticsModel stats = tradSections.get(0).getStatistics();
+        assertNotNull(stats);
+        String sectPath = "/tradition/" + tradId + "/section/" + tradSections.get(0).getId();
+        int relationCount = jerseyTest.resource().path(sectPath + "/relations")
+                .get(new GenericType<List<RelationModel>>() {}).size();
+        assertEquals(relationCount, stats.getRelations().values().stream().mapToLong(x -> x).sum());
+        List<WitnessModel> witnesses = jerseyTest.resource().path("/tradition/" + tradId + "/witnesses")
+                .get(new GenericType<List<WitnessModel>>() {});
+        assertEquals(witnesses.size(), stats.getWitnesses());
+        assertEquals(tradSections.get(0).getEndRank(), stats.getEndRank());
+        assertStatisticsKept(tradId, tradSections.get(0).getId());
+
+        // Remove the orthographic relations behind the API's back; the statistics should follow
+        long orthographic = stats.getRelations().get("orthographic");
+        assertTrue(orthographic > 0);
+        try (Transaction tx = db.beginTx()) {
+            db.getAllRelationships().stream()
+                    .filter(x -> x.isType(ERelations.RELATED) && x.getProperty("type").equals("orthographic"))
+                    .forEach(Relationship::delete);
+            tx.success();
+        }
+        StatisticsModel changed = assertStatisticsKept(tradId, tradSections.get(0).getId());
+        assertNull(changed.getRelations().get("orthographic"));
+        assertEquals(relationCount - orthographic, changed.getRelations().values().stream().mapToLong(x -> x).sum());
+
+        // Split a section, which moves readings into a new one
+        List<String> florIds = importFlorilegium();
+        String florId = florIds.remove(0);
+        String targetSectionId = florIds.get(1);
+        long before = jerseyTest.resource().path("/tradition/" + florId + "/statistics")
+                .get(StatisticsModel.class).getReadings();
+        ClientResponse jerseyResult = jerseyTest.resource()
+                .path("/tradition/" + florId + "/section/" + targetSectionId + "/splitAtRank/10")
+                .type(MediaType.APPLICATION_JSON)
+                .post(ClientResponse.class);
+        assertEquals(ClientResponse.Status.OK.getStatusCode(), jerseyResult.getStatus());
+        String newSectionId = Util.getValueFromJson(jerseyResult, "sectionId");
+        StatisticsModel first = assertStatisticsKept(florId, targetSectionId);
+        StatisticsModel second = assertStatisticsKept(florId, newSectionId);
+        assertTrue(first.getReadings() > 0);
+        assertTrue(second.getReadings() > 0);
+        SectionStatistics.settle();
+        TraditionModel florilegium = jerseyTest.resource().path("/tradition/" + florId).get(TraditionModel.class);
+        assertNotNull(florilegium.getStatistics());
+        assertEquals(before, florilegium.getStatistics().getReadings());
+
+        // Deleting a section takes its statistics along
+        jerseyResult = jerseyTest.resource().path("/tradition/" + florId + "/section/" + newSectionId)
+                .delete(ClientResponse.class);
+        assertEquals(ClientResponse.Status.OK.getStatusCode(), jerseyResult.getStatus());
+        SectionStatistics.settle();
+        try (Transaction tx = db.beginTx()) {
+            long sections = db.findNodes(Nodes.SECTION).stream().count();
+            assertEquals(sections, db.findNodes(Nodes.SECTION_STATS).stream().count());
+            tx.success();
+        }
+    }
+
+    // Checks that the statistics kept for a section are the same as those counted afresh
+    private StatisticsModel assertStatisticsKept(String traditionId, String sectionId) throws Exception {
+        SectionStatistics.settle();
+        String statsPath = "/tradition/" + traditionId + "/section/" + sectionId + "/statistics";
+        StatisticsModel kept = jerseyTest.resource().path(statsPath).get(StatisticsModel.class);
+        StatisticsModel counted = jerseyTest.resource().path(statsPath).post(StatisticsModel.class);
+        assertEquals(counted.getReadings(), kept.getReadings());
+        assertEquals(counted.getEndRank(), kept.getEndRank());
+        assertEquals(counted.getWitnesses(), kept.getWitnesses());
+        assertEquals(counted.getRelations(), kept.getRelations());
+        assertEquals(counted.getAnnotations(), kept.getAnnotations());
+        return kept;
+    }
+
     public void testSectionDotOutput() {
         List<String> florIds = importFlorilegium();
         String florId = florIds.remove(0);
@@ -1091,6 +1245,26 @@ public class SectionTest extends TestCase {
         for (String rdg : lemmatised) {
             assertTrue(inFinalLemma.contains(readingLookup.get(rdg)));
         }
+        // and a window of them, in chain order, whether bounded by rank or by reading
+        jerseyResult = jerseyTest.resource().path("/tradition/" + tradId + "/section/" + newSectId + "/lemmareadings")
+                .queryParam("final", "true")
+                .queryParam("startRank", "15")
+                .queryParam("endRank", "17")
+                .get(ClientResponse.class);
+        assertEquals(ClientResponse.Status.OK.getStatusCode(), jerseyResult.getStatus());
+        lemmaReadings = jerseyResult.getEntity(new GenericType<List<ReadingModel>>() {});
+        assertEquals(Arrays.asList(readingLookup.get("illustrabatur/16"), readingLookup.get("jugiter/17")),
+                lemmaReadings.stream().map(ReadingModel::getId).collect(Collectors.toList()));
+        jerseyResult = jerseyTest.resource().path("/tradition/" + tradId + "/section/" + newSectId + "/lemmareadings")
+                .queryParam("final", "true")
+                .queryParam("startRdg", readingLookup.get("veri/10"))
+                .queryParam("endRdg", readingLookup.get("et/12"))
+                .get(ClientResponse.class);
+        assertEquals(ClientResponse.Status.OK.getStatusCode(), jerseyResult.getStatus());
+        lemmaReadings = jerseyResult.getEntity(new GenericType<List<ReadingModel>>() {});
+        assertEquals(Arrays.asList(readingLookup.get("veri/10"), readingLookup.get("noticiam/11"),
+                readingLookup.get("et/12")),
+                lemmaReadings.stream().map(ReadingModel::getId).collect(Collectors.toList()));
 
         // Add a lemma on the same rank, check that the other one gets unset
         jerseyResult = jerseyTest.resource().path("/reading/" + readingLookup.get("iugiter/17") + "/setlemma")
@@ -1219,6 +1393,66 @@ public class SectionTest extends TestCase {
 
     }
 
+    public void testSectionAnnotationIndex() {
+        HashMap<String,String> stuffCreated = setupComplexAnnotation();
+        String s2Annotations = "/tradition/" + tradId + "/section/" + stuffCreated.get("section2") + "/annotations";
+        List<AnnotationModel> sectAnn = jerseyTest.resource().path(s2Annotations)
+                .get(new GenericType<List<AnnotationModel>>() {});
+        assertEquals(1, sectAnn.size());
+        assertEquals(stuffCreated.get("ref2"), sectAnn.get(0).getId());
+
+        // Take the links off the section 2 reference, and the section should have no annotations
+        AnnotationModel ref2 = jerseyTest.resource().path("/tradition/" + tradId + "/annotation/" + stuffCreated.get("ref2"))
+                .get(AnnotationModel.class);
+        for (AnnotationLinkModel alm : ref2.getLinks()) {
+            ClientResponse response = jerseyTest.resource()
+                    .path("/tradition/" + tradId + "/annotation/" + ref2.getId() + "/link")
+                    .type(MediaType.APPLICATION_JSON)
+                    .delete(ClientResponse.class, alm);
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        }
+        sectAnn = jerseyTest.resource().path(s2Annotations).get(new GenericType<List<AnnotationModel>>() {});
+        assertEquals(0, sectAnn.size());
+
+        // Put one back
+        AnnotationLinkModel alm = ref2.getLinks().get(0);
+        ClientResponse response = jerseyTest.resource()
+                .path("/tradition/" + tradId + "/annotation/" + ref2.getId() + "/link")
+                .type(MediaType.APPLICATION_JSON)
+                .post(ClientResponse.class, alm);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        sectAnn = jerseyTest.resource().path(s2Annotations).get(new GenericType<List<AnnotationModel>>() {});
+        assertEquals(1, sectAnn.size());
+
+        // Without its statistics, section 1 still finds its annotation
+        try (Transaction tx = db.beginTx()) {
+            Node s1 = db.getNodeById(Long.valueOf(stuffCreated.get("section1")));
+            Relationship link = s1.getSingleRelationship(ERelations.STATS_FOR, Direction.INCOMING);
+            Node stats = link.getStartNode();
+            link.delete();
+            stats.delete();
+            tx.success();
+        }
+        sectAnn = jerseyTest.resource()
+                .path("/tradition/" + tradId + "/section/" + stuffCreated.get("section1") + "/annotations")
+                .get(new GenericType<List<AnnotationModel>>() {});
+        assertEquals(1, sectAnn.size());
+        assertEquals(stuffCreated.get("ref1"), sectAnn.get(0).getId());
+
+        // Deleting section 2 takes its reference with it, but not the place, which still
+        // has a reference in section 1
+        response = jerseyTest.resource()
+                .path("/tradition/" + tradId + "/section/" + stuffCreated.get("section2"))
+                .delete(ClientResponse.class);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        response = jerseyTest.resource().path("/tradition/" + tradId + "/annotation/" + ref2.getId())
+                .get(ClientResponse.class);
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+        response = jerseyTest.resource().path("/tradition/" + tradId + "/annotation/" + stuffCreated.get("place"))
+                .get(ClientResponse.class);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+    }
+
     private HashMap<String, String> setupComplexAnnotation() {
         HashMap<String, String> data = new HashMap<>();
         // Add the second section
@@ -258,6 +258,46 @@ public class StemmaTest {
         assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), actualStemmaResponse.getStatus());
     }
 
+    @Test
+    public void stemmaAncestryTest() {
+        String stemmaPath = "/tradition/" + tradId + "/stemma/stemma";
+        List<String> ancestors = jerseyTest.resource().path(stemmaPath + "/ancestors/C")
+                .get(new GenericType<List<String>>() {});
+        assertEquals(Arrays.asList("A", "0"), ancestors);
+        List<String> descendants = jerseyTest.resource().path(stemmaPath + "/descendants/0")
+                .get(new GenericType<List<String>>() {});
+        assertEquals(3, descendants.size());
+        assertTrue(descendants.containsAll(Arrays.asList("A", "B", "C")));
+        assertEquals("C", descendants.get(2));
+        descendants = jerseyTest.resource().path(stemmaPath + "/descendants/B")
+                .get(new GenericType<List<String>>() {});
+        assertTrue(descendants.isEmpty());
+
+        ClientResponse response = jerseyTest.resource().path(stemmaPath + "/ancestors/D")
+                .get(ClientResponse.class);
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+        response = jerseyTest.resource().path("/tradition/" + tradId + "/stemma/nonesuch/ancestors/A")
+                .get(ClientResponse.class);
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+
+        // An undirected stemma has no ancestry until it is given an archetype
+        String semstemPath = "/tradition/" + tradId + "/stemma/Semstem 1402333041_0";
+        response = jerseyTest.resource().path(semstemPath + "/ancestors/A")
+                .get(ClientResponse.class);
+        assertEquals(Response.Status.PRECONDITION_FAILED.getStatusCode(), response.getStatus());
+        response = jerseyTest.resource().path(semstemPath + "/reorient/C")
+                .post(ClientResponse.class);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        ancestors = jerseyTest.resource().path(semstemPath + "/ancestors/0")
+                .get(new GenericType<List<String>>() {});
+        assertEquals(Arrays.asList("A", "B", "C"), ancestors);
+        StemmaModel reoriented = jerseyTest.resource().path(semstemPath).get(StemmaModel.class);
+        assertFalse(reoriented.getIs_undirected());
+        Util.assertStemmasEquivalent("digraph \"Semstem 1402333041_0\" {\n  0 [ class=hypothetical ];  "
+                + "A [ class=extant ];  B [ class=extant ];  "
+                + "C [ class=extant ]; C -> B;  B -> A;  A -> 0; \n}", reoriented.getDot());
+    }
+
     @Test
     public void reorientGraphStemmaTest() {
         String stemmaTitle = "Semstem 1402333041_0";
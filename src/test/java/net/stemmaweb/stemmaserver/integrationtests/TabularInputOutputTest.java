@@ -14,6 +14,11 @@ import net.stemmaweb.stemmaserver.Util;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Result;
@@ -22,6 +27,10 @@ import org.neo4j.test.TestGraphDatabaseFactory;
 
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -109,6 +118,53 @@ public class TabularInputOutputTest extends TestCase {
         assertTrue(foundReading);
     }
 
+    public void testParseStreamedTable() {
+        // A long table, which is read from the upload a row at a time
+        StringBuilder csv = new StringBuilder("A,B,C\n");
+        List<String> aText = new ArrayList<>();
+        List<String> cText = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            String c = i % 2 == 0 ? "v" + i : "";
+            csv.append(String.format("w%d,w%d,%s\n", i, i, c));
+            aText.add("w" + i);
+            if (!c.equals("")) cText.add(c);
+        }
+        ClientResponse response = Util.createTraditionFromFileOrString(jerseyTest, "Long table", "LR", "1",
+                csv.toString(), "csv");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        String tradId = Util.getValueFromJson(response, "tradId");
+        TextSequenceModel tm = (TextSequenceModel) new Witness(tradId, "A").getWitnessAsText().getEntity();
+        assertEquals(String.join(" ", aText), tm.getText());
+        tm = (TextSequenceModel) new Witness(tradId, "B").getWitnessAsText().getEntity();
+        assertEquals(String.join(" ", aText), tm.getText());
+        tm = (TextSequenceModel) new Witness(tradId, "C").getWitnessAsText().getEntity();
+        assertEquals(String.join(" ", cText), tm.getText());
+
+        // The same for tab-separated data; an empty trailing column is allowed
+        response = Util.createTraditionFromFileOrString(jerseyTest, "Short table", "LR", "1",
+                "A\tB\t\nin\tin\t\nprincipio\tprincipium\t\n", "tsv");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        tradId = Util.getValueFromJson(response, "tradId");
+        tm = (TextSequenceModel) new Witness(tradId, "A").getWitnessAsText().getEntity();
+        assertEquals("in principio", tm.getText());
+        tm = (TextSequenceModel) new Witness(tradId, "B").getWitnessAsText().getEntity();
+        assertEquals("in principium", tm.getText());
+    }
+
+    public void testParseTableTooManyColumns() {
+        // A value beyond the last sigil is refused, as it is for a spreadsheet
+        ClientResponse response = Util.createTraditionFromFileOrString(jerseyTest, "Bad CSV", "LR", "1",
+                "A,B\nin,in\nprincipio,principium,erat\n", "csv");
+        assertEquals(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), response.getStatus());
+        assertTrue(response.getEntity(String.class).contains("has too many columns!"));
+
+        // So is a value in a column without a sigil
+        response = Util.createTraditionFromFileOrString(jerseyTest, "Bad TSV", "LR", "1",
+                "A\t\tB\nin\tstray\tin\n", "tsv");
+        assertEquals(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), response.getStatus());
+        assertTrue(response.getEntity(String.class).contains("has too many columns!"));
+    }
+
     public void testSetRelationship() {
         ClientResponse response = Util.createTraditionFromFileOrString(jerseyTest, "Florilegium", "LR", "1",
                 "src/TestFiles/florilegium.csv", "csv");
@@ -205,6 +261,69 @@ public class TabularInputOutputTest extends TestCase {
         assertTrue(foundReading);
     }
 
+    public void testParseExcelRaggedRows() throws Exception {
+        // An empty row is skipped, a short row leaves the missing witnesses out of that
+        // rank, and a number is read as its text
+        String[][] rows = {
+                {"A", "B", "C"},
+                {"in", "in", "in"},
+                {},
+                {"principio", "principium"},
+                {"erat", "erat", "erat"},
+                {"3"}};
+        for (String type : Arrays.asList("xls", "xlsx")) {
+            ClientResponse response = Util.createTraditionFromFileOrString(jerseyTest, "Ragged " + type, "LR", "1",
+                    writeSpreadsheet(type, rows), type);
+            assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+            String tradId = Util.getValueFromJson(response, "tradId");
+            TextSequenceModel tm = (TextSequenceModel) new Witness(tradId, "A").getWitnessAsText().getEntity();
+            assertEquals("in principio erat 3", tm.getText());
+            tm = (TextSequenceModel) new Witness(tradId, "B").getWitnessAsText().getEntity();
+            assertEquals("in principium erat", tm.getText());
+            tm = (TextSequenceModel) new Witness(tradId, "C").getWitnessAsText().getEntity();
+            assertEquals("in erat", tm.getText());
+        }
+
+        // A row that runs past the sigla is refused
+        String[][] tooWide = {
+                {"A", "B"},
+                {"in", "in"},
+                {"principio", "principium", "erat"}};
+        for (String type : Arrays.asList("xls", "xlsx")) {
+            ClientResponse response = Util.createTraditionFromFileOrString(jerseyTest, "Wide " + type, "LR", "1",
+                    writeSpreadsheet(type, tooWide), type);
+            assertEquals(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), response.getStatus());
+            assertTrue(response.getEntity(String.class).contains("has too many columns!"));
+        }
+
+        // A sheet with nothing in it has no data
+        ClientResponse response = Util.createTraditionFromFileOrString(jerseyTest, "Empty", "LR", "1",
+                writeSpreadsheet("xlsx", new String[][] {}), "xlsx");
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    }
+
+    // Writes the rows to a temporary spreadsheet of the given type, and returns its path.
+    // Cells that look like numbers are written as numbers.
+    private static String writeSpreadsheet(String type, String[][] rows) throws Exception {
+        Workbook wb = type.equals("xls") ? new HSSFWorkbook() : new XSSFWorkbook();
+        Sheet sheet = wb.createSheet("collation");
+        for (int i = 0; i < rows.length; i++) {
+            Row row = sheet.createRow(i);
+            for (int j = 0; j < rows[i].length; j++)
+                if (rows[i][j].matches("\\d+"))
+                    row.createCell(j).setCellValue(Double.parseDouble(rows[i][j]));
+                else
+                    row.createCell(j).setCellValue(rows[i][j]);
+        }
+        File file = File.createTempFile("tabular", "." + type);
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            wb.write(out);
+        }
+        wb.close();
+        return file.getPath();
+    }
+
     // testOutputJSON
     public void testJSONExport() throws Exception {
         // Set up some data
@@ -494,6 +613,71 @@ public class TabularInputOutputTest extends TestCase {
         assertEquals("Ab", wits[1]);
     }
 
+    public void testXlsxExport() throws Exception {
+        ClientResponse response = Util.createTraditionFromFileOrString(jerseyTest, "Legend", "LR", "1",
+                "src/TestFiles/lf2.xml", "stemmaweb");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        String traditionId = Util.getValueFromJson(response, "tradId");
+        Util.addSectionToTradition(jerseyTest, traditionId, "src/TestFiles/legendfrag.xml",
+                "stemmaweb", "section 2");
+
+        // Get the CSV to compare against
+        response = jerseyTest.resource().path("/tradition/" + traditionId + "/csv")
+                .type(MediaType.APPLICATION_JSON)
+                .get(ClientResponse.class);
+        List<String[]> csvRows = new CSVReader(new StringReader(response.getEntity(String.class))).readAll();
+
+        // Now get the workbook, and check that there is a sheet for each section
+        response = jerseyTest.resource().path("/tradition/" + traditionId + "/xlsx")
+                .queryParam("highlight_lemma", "true")
+                .get(ClientResponse.class);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals(TabularExporter.XLSX_TYPE, response.getType().toString());
+        XSSFWorkbook workbook;
+        try (InputStream in = response.getEntityInputStream()) {
+            workbook = new XSSFWorkbook(in);
+        }
+        assertEquals(2, workbook.getNumberOfSheets());
+        assertEquals("section 2", workbook.getSheetName(1));
+
+        // The first sheet should hold the same rows as the CSV for the first section
+        Sheet first = workbook.getSheetAt(0);
+        Row header = first.getRow(0);
+        assertEquals(34, header.getLastCellNum());
+        assertEquals("B", header.getCell(1).getStringCellValue());
+        HashMap<String, Integer> csvColumn = new HashMap<>();
+        String[] csvHeader = csvRows.get(0);
+        for (int i = 0; i < csvHeader.length; i++) csvColumn.put(csvHeader[i], i);
+        for (int r = 1; r <= first.getLastRowNum(); r++) {
+            Row row = first.getRow(r);
+            for (int w = 0; w < header.getLastCellNum(); w++) {
+                String expected = csvRows.get(r)[csvColumn.get(header.getCell(w).getStringCellValue())];
+                if (row.getCell(w) == null)
+                    assertTrue(expected == null || expected.equals(""));
+                else
+                    assertEquals(expected, row.getCell(w).getStringCellValue());
+            }
+        }
+
+        // Export a single section
+        List<SectionModel> sections = jerseyTest.resource().path("/tradition/" + traditionId + "/sections")
+                .get(new GenericType<List<SectionModel>>() {});
+        response = jerseyTest.resource().path("/tradition/" + traditionId + "/section/"
+                + sections.get(1).getId() + "/xlsx")
+                .get(ClientResponse.class);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        try (InputStream in = response.getEntityInputStream()) {
+            workbook = new XSSFWorkbook(in);
+        }
+        assertEquals(1, workbook.getNumberOfSheets());
+        assertEquals("section 2", workbook.getSheetName(0));
+
+        // A nonexistent tradition should be not found
+        response = jerseyTest.resource().path("/tradition/nosuchtradition/xlsx")
+                .get(ClientResponse.class);
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+    }
+
     public void testExportWithLayers() throws Exception {
         // Take the uncorrected MoE section
         ClientResponse response = Util.createTraditionFromFileOrString(jerseyTest, "Chronicle", "LR", "1",
@@ -8,8 +8,10 @@ import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
@@ -29,6 +31,7 @@ import org.neo4j.graphdb.*;
 
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.GenericType;
+import com.sun.jersey.core.util.MultivaluedMapImpl;
 import com.sun.jersey.test.framework.JerseyTest;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
@@ -157,6 +160,64 @@ public class TraditionTest {
         assertEquals(3, relationships.size());
     }
 
+    @Test
+    public void getPagedReadingsAndRelationsTest() {
+        Util.addSectionToTradition(jerseyTest, tradId, "src/TestFiles/testTradition.xml", "stemmaweb", "section 2");
+        List<ReadingModel> allReadings = jerseyTest.resource()
+                .path("/tradition/" + tradId + "/readings")
+                .get(new GenericType<List<ReadingModel>>() {});
+        List<RelationModel> allRelations = jerseyTest.resource()
+                .path("/tradition/" + tradId + "/relations")
+                .get(new GenericType<List<RelationModel>>() {});
+        assertEquals(6, allRelations.size());
+
+        // Page through the readings, five at a time
+        List<String> pagedReadings = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            ClientResponse resp = cursor == null
+                    ? jerseyTest.resource().path("/tradition/" + tradId + "/readings")
+                        .queryParam("limit", "5").get(ClientResponse.class)
+                    : jerseyTest.resource().path("/tradition/" + tradId + "/readings")
+                        .queryParam("limit", "5").queryParam("cursor", cursor).get(ClientResponse.class);
+            assertEquals(Status.OK.getStatusCode(), resp.getStatus());
+            List<ReadingModel> page = resp.getEntity(new GenericType<List<ReadingModel>>() {});
+            assertTrue(page.size() <= 5);
+            page.forEach(x -> pagedReadings.add(x.getId()));
+            cursor = resp.getHeaders().getFirst("X-Next-Cursor");
+            pages++;
+        } while (cursor != null);
+        assertEquals((allReadings.size() + 4) / 5, pages);
+        assertEquals(allReadings.size(), pagedReadings.size());
+        assertEquals(allReadings.stream().map(ReadingModel::getId).collect(Collectors.toSet()),
+                new HashSet<>(pagedReadings));
+
+        // Page through the relations, one at a time
+        Set<String> pagedRelations = new HashSet<>();
+        cursor = null;
+        do {
+            ClientResponse resp = cursor == null
+                    ? jerseyTest.resource().path("/tradition/" + tradId + "/relations")
+                        .queryParam("limit", "1").get(ClientResponse.class)
+                    : jerseyTest.resource().path("/tradition/" + tradId + "/relations")
+                        .queryParam("limit", "1").queryParam("cursor", cursor).get(ClientResponse.class);
+            assertEquals(Status.OK.getStatusCode(), resp.getStatus());
+            List<RelationModel> page = resp.getEntity(new GenericType<List<RelationModel>>() {});
+            assertEquals(1, page.size());
+            assertTrue(pagedRelations.add(page.get(0).getId()));
+            cursor = resp.getHeaders().getFirst("X-Next-Cursor");
+        } while (cursor != null);
+        assertEquals(allRelations.stream().map(RelationModel::getId).collect(Collectors.toSet()), pagedRelations);
+
+        // A cursor that isn't one of ours is refused
+        ClientResponse resp = jerseyTest.resource()
+                .path("/tradition/" + tradId + "/readings")
+                .queryParam("cursor", "nonsense")
+                .get(ClientResponse.class);
+        assertEquals(Status.BAD_REQUEST.getStatusCode(), resp.getStatus());
+    }
+
     @Test
     public void getAllWitnessesTest() {
         Set<String> expectedWitnesses = new HashSet<>(Arrays.asList("A", "B", "C"));
@@ -626,6 +687,141 @@ public class TraditionTest {
         assertEquals(originalNodeCount, numNodes.get());
     }
 
+    @Test
+    public void cloneTraditionTest() {
+        MultivaluedMap<String, String> params = new MultivaluedMapImpl();
+        params.add("name", "Tradition fork");
+        ClientResponse response = jerseyTest.resource().path("/tradition/" + tradId + "/clone")
+                .type(MediaType.APPLICATION_FORM_URLENCODED)
+                .post(ClientResponse.class, params);
+        assertEquals(Status.CREATED.getStatusCode(), response.getStatus());
+        String cloneId = Util.getValueFromJson(response, "tradId");
+        assertNotEquals(tradId, cloneId);
+
+        // The copy has its own name and the same owner
+        TraditionModel cloned = jerseyTest.resource().path("/tradition/" + cloneId)
+                .get(TraditionModel.class);
+        assertEquals("Tradition fork", cloned.getName());
+        assertEquals("1", cloned.getOwner());
+
+        // It has the same contents as the original
+        List<ReadingModel> origReadings = jerseyTest.resource().path("/tradition/" + tradId + "/readings")
+                .get(new GenericType<List<ReadingModel>>() {});
+        List<ReadingModel> cloneReadings = jerseyTest.resource().path("/tradition/" + cloneId + "/readings")
+                .get(new GenericType<List<ReadingModel>>() {});
+        assertEquals(origReadings.size(), cloneReadings.size());
+        Set<String> origIds = origReadings.stream().map(ReadingModel::getId).collect(Collectors.toSet());
+        for (ReadingModel rm : cloneReadings)
+            assertFalse(origIds.contains(rm.getId()));
+        List<RelationModel> cloneRelations = jerseyTest.resource().path("/tradition/" + cloneId + "/relations")
+                .get(new GenericType<List<RelationModel>>() {});
+        assertEquals(3, cloneRelations.size());
+        List<WitnessModel> cloneWitnesses = jerseyTest.resource().path("/tradition/" + cloneId + "/witnesses")
+                .get(new GenericType<List<WitnessModel>>() {});
+        assertEquals(3, cloneWitnesses.size());
+        for (String sigil : Arrays.asList("A", "B", "C")) {
+            String origText = Util.getValueFromJson(jerseyTest.resource()
+                    .path("/tradition/" + tradId + "/witness/" + sigil + "/text")
+                    .get(ClientResponse.class), "text");
+            String cloneText = Util.getValueFromJson(jerseyTest.resource()
+                    .path("/tradition/" + cloneId + "/witness/" + sigil + "/text")
+                    .get(ClientResponse.class), "text");
+            assertEquals(origText, cloneText);
+        }
+
+        // The copied readings belong to the copied section
+        List<SectionModel> cloneSections = jerseyTest.resource().path("/tradition/" + cloneId + "/sections")
+                .get(new GenericType<List<SectionModel>>() {});
+        assertEquals(1, cloneSections.size());
+        for (ReadingModel rm : cloneReadings)
+            assertEquals(cloneSections.get(0).getId(), rm.getSection());
+
+        // Deleting the copy leaves the original alone
+        response = jerseyTest.resource().path("/tradition/" + cloneId).delete(ClientResponse.class);
+        assertEquals(Status.OK.getStatusCode(), response.getStatus());
+        List<ReadingModel> remaining = jerseyTest.resource().path("/tradition/" + tradId + "/readings")
+                .get(new GenericType<List<ReadingModel>>() {});
+        assertEquals(origReadings.size(), remaining.size());
+
+        // Cloning a nonexistent tradition fails
+        response = jerseyTest.resource().path("/tradition/nosuchtradition/clone")
+                .type(MediaType.APPLICATION_FORM_URLENCODED)
+                .post(ClientResponse.class, new MultivaluedMapImpl());
+        assertEquals(Status.NOT_FOUND.getStatusCode(), response.getStatus());
+    }
+
+    @Test
+    public void witnessDistancesTest() {
+        WitnessDistancesModel distances = jerseyTest.resource()
+                .path("/tradition/" + tradId + "/witnessdistances")
+                .queryParam("conflate", "grammatical")
+                .get(WitnessDistancesModel.class);
+        assertEquals(Arrays.asList("A", "B", "C"), distances.getWitnesses());
+        checkDistances(distances, "grammatical");
+        // Nobody disagrees with themselves
+        for (int a = 0; a < 3; a++) {
+            assertEquals(0, distances.getDisagreements()[a][a]);
+            assertEquals(distances.getLocations(), distances.getAgreements()[a][a]);
+        }
+
+        // Relate two readings, and check that the result changes to match
+        RelationModel relation = new RelationModel();
+        relation.setSource(readingLookup.get("unto/16"));
+        relation.setTarget(readingLookup.get("to/16"));
+        relation.setType("grammatical");
+        relation.setScope("local");
+        ClientResponse response = jerseyTest.resource()
+                .path("/tradition/" + tradId + "/relation")
+                .type(MediaType.APPLICATION_JSON)
+                .post(ClientResponse.class, relation);
+        assertEquals(Status.CREATED.getStatusCode(), response.getStatus());
+        WitnessDistancesModel conflated = jerseyTest.resource()
+                .path("/tradition/" + tradId + "/witnessdistances")
+                .queryParam("conflate", "grammatical")
+                .get(WitnessDistancesModel.class);
+        checkDistances(conflated, "grammatical");
+        assertNotEquals(Arrays.deepToString(distances.getAgreements()),
+                Arrays.deepToString(conflated.getAgreements()));
+
+        // A nonexistent tradition
+        response = jerseyTest.resource().path("/tradition/nosuchtradition/witnessdistances")
+                .get(ClientResponse.class);
+        assertEquals(Status.NOT_FOUND.getStatusCode(), response.getStatus());
+    }
+
+    // Work out the agreements from the JSON alignment, and compare
+    private void checkDistances(WitnessDistancesModel distances, String conflate) {
+        AlignmentModel alignment = jerseyTest.resource().path("/tradition/" + tradId + "/json")
+                .queryParam("conflate", conflate)
+                .get(AlignmentModel.class);
+        List<String> sigla = distances.getWitnesses();
+        int n = sigla.size();
+        int[][] agree = new int[n][n];
+        int[][] disagree = new int[n][n];
+        int locations = 0;
+        for (int i = 0; i < alignment.getLength(); i++) {
+            String[] states = new String[n];
+            HashSet<String> distinct = new HashSet<>();
+            for (WitnessTokensModel wtm : alignment.getAlignment()) {
+                ReadingModel rm = wtm.getTokens().get(i);
+                String state = rm == null ? "omitted" : Boolean.TRUE.equals(rm.getIs_lacuna()) ? null : rm.getId();
+                states[sigla.indexOf(wtm.getWitness())] = state;
+                if (state != null) distinct.add(state);
+            }
+            if (distinct.size() < 2) continue;
+            locations++;
+            for (int a = 0; a < n; a++)
+                for (int b = 0; b < n; b++) {
+                    if (states[a] == null || states[b] == null) continue;
+                    if (states[a].equals(states[b])) agree[a][b]++;
+                    else disagree[a][b]++;
+                }
+        }
+        assertEquals(locations, distances.getLocations());
+        assertArrayEquals(agree, distances.getAgreements());
+        assertArrayEquals(disagree, distances.getDisagreements());
+    }
+
     /**
      * Test do delete a Tradition with an invalid id deletTraditionById
      */
@@ -0,0 +1,160 @@
+package net.stemmaweb.stemmaserver.integrationtests;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.core.Response;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.test.framework.JerseyTest;
+import net.stemmaweb.rest.DeadlockRetry;
+import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.TransientTransactionFailureException;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the transaction handling that wraps every request.
+ */
+public class TransactionTest {
+
+    private static final Label PROBE = Label.label("PROBE");
+
+    private GraphDatabaseService db;
+    private JerseyTest jerseyTest;
+
+    /**
+     * A resource whose read method throws out of its request transaction, whose write
+     * method commits a node, and whose flaky method writes a node but fails transiently
+     * a given number of times before it commits.
+     */
+    @Path("/probe")
+    public static class Probe {
+        static final Set<String> failedOn = ConcurrentHashMap.newKeySet();
+        static final Set<String> wroteOn = ConcurrentHashMap.newKeySet();
+        static final AtomicInteger attempts = new AtomicInteger();
+
+        @GET
+        @Path("/fail")
+        public Response fail() {
+            failedOn.add(Thread.currentThread().getName());
+            throw new IllegalStateException("Read request failed");
+        }
+
+        @POST
+        @Path("/node/{name}")
+        public Response write(@PathParam("name") String name) {
+            GraphDatabaseService db = new GraphDatabaseServiceProvider().getDatabase();
+            try (Transaction tx = db.beginTx()) {
+                db.createNode(PROBE).setProperty("name", name);
+                tx.success();
+            }
+            wroteOn.add(Thread.currentThread().getName());
+            return Response.ok().build();
+        }
+
+        @POST
+        @Path("/flaky/{failures}/{name}")
+        @DeadlockRetry.Retryable
+        public Response flaky(@PathParam("failures") int failures, @PathParam("name") String name) {
+            GraphDatabaseService db = new GraphDatabaseServiceProvider().getDatabase();
+            try (Transaction tx = db.beginTx()) {
+                db.createNode(PROBE).setProperty("name", name);
+                // Fail the way a deadlock would, from inside a nested transaction
+                try (Transaction inner = db.beginTx()) {
+                    if (attempts.incrementAndGet() <= failures)
+                        throw new TransientTransactionFailureException("Simulated deadlock");
+                    inner.success();
+                }
+                tx.success();
+            }
+            return Response.ok().build();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        db = new GraphDatabaseServiceProvider(new TestGraphDatabaseFactory().newImpermanentDatabase()).getDatabase();
+        DatabaseService.createRootNode(db);
+        Probe.failedOn.clear();
+        Probe.wroteOn.clear();
+        Probe.attempts.set(0);
+
+        jerseyTest = JerseyTestServerFactory.newJerseyTestServer()
+                .addResource(new Probe())
+                .create();
+        jerseyTest.setUp();
+    }
+
+    @Test
+    public void failedReadDoesNotSwallowWrites() {
+        int rounds = 20;
+        for (int i = 0; i < rounds; i++) {
+            ClientResponse response = jerseyTest.resource().path("/probe/fail").get(ClientResponse.class);
+            assertEquals(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), response.getStatus());
+            response = jerseyTest.resource().path("/probe/node/n" + i).post(ClientResponse.class);
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        }
+        // At least one write must have followed a failed read on the same thread
+        Set<String> reused = new HashSet<>(Probe.failedOn);
+        reused.retainAll(Probe.wroteOn);
+        assertFalse(reused.isEmpty());
+
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < rounds; i++)
+                assertNotNull(db.findNode(PROBE, "name", "n" + i));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void transientFailureIsRetried() {
+        long retries = DeadlockRetry.getRetries();
+        long recovered = DeadlockRetry.getRecovered();
+        long exhausted = DeadlockRetry.getExhausted();
+
+        ClientResponse response = jerseyTest.resource().path("/probe/flaky/2/recovered").post(ClientResponse.class);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals(3, Probe.attempts.get());
+        assertEquals(retries + 2, DeadlockRetry.getRetries());
+        assertEquals(recovered + 1, DeadlockRetry.getRecovered());
+        assertEquals(exhausted, DeadlockRetry.getExhausted());
+
+        Probe.attempts.set(0);
+        response = jerseyTest.resource().path("/probe/flaky/100/exhausted").post(ClientResponse.class);
+        assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), response.getStatus());
+        assertEquals(DeadlockRetry.MAX_ATTEMPTS, Probe.attempts.get());
+        assertEquals(retries + 2 + DeadlockRetry.MAX_ATTEMPTS - 1, DeadlockRetry.getRetries());
+        assertEquals(recovered + 1, DeadlockRetry.getRecovered());
+        assertEquals(exhausted + 1, DeadlockRetry.getExhausted());
+
+        // Only the attempt that succeeded left its node behind
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(1, db.findNodes(PROBE, "name", "recovered").stream().count());
+            assertNull(db.findNode(PROBE, "name", "exhausted"));
+            tx.success();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.shutdown();
+        jerseyTest.tearDown();
+    }
+}
@@ -1,5 +1,6 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -12,6 +13,7 @@ import net.stemmaweb.model.TextSequenceModel;
 import net.stemmaweb.model.WitnessModel;
 import net.stemmaweb.rest.*;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.WitnessRegistry;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 
 import net.stemmaweb.stemmaserver.Util;
@@ -196,6 +198,47 @@ public class WitnessTest {
         assertEquals(expectedText, response);
     }
 
+    @Test
+    public void witnessReadingsBetweenRanksTest() {
+        String[] texts = { "april", "with", "his", "showers" };
+        List<ReadingModel> listOfReadings = jerseyTest
+                .resource()
+                .path("/tradition/" + tradId + "/witness/A/readings")
+                .queryParam("start", "2")
+                .queryParam("end", "5")
+                .get(new GenericType<List<ReadingModel>>() {
+                });
+        assertEquals(texts.length, listOfReadings.size());
+        for (int i = 0; i < listOfReadings.size(); i++) {
+            assertEquals(texts[i], listOfReadings.get(i).getText());
+            assertTrue(listOfReadings.get(i).getRank() >= 2 && listOfReadings.get(i).getRank() <= 5);
+        }
+
+        // A window that runs past the end stops at the last reading
+        List<ReadingModel> allReadings = jerseyTest
+                .resource()
+                .path("/tradition/" + tradId + "/witness/A/readings")
+                .get(new GenericType<List<ReadingModel>>() {
+                });
+        listOfReadings = jerseyTest
+                .resource()
+                .path("/tradition/" + tradId + "/witness/A/readings")
+                .queryParam("start", "5")
+                .queryParam("end", "30")
+                .get(new GenericType<List<ReadingModel>>() {
+                });
+        assertEquals(allReadings.stream().filter(x -> x.getRank() >= 5).count(), listOfReadings.size());
+
+        // A window can't be combined with paging
+        ClientResponse response = jerseyTest
+                .resource()
+                .path("/tradition/" + tradId + "/witness/A/readings")
+                .queryParam("start", "2")
+                .queryParam("limit", "2")
+                .get(ClientResponse.class);
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    }
+
     @Test
     public void getWitnessTest() {
         // Get a witness
@@ -312,6 +355,51 @@ public class WitnessTest {
         assertEquals(Response.Status.OK.getStatusCode(), result.getStatus());
     }
 
+    @Test
+    public void witnessLookupStaysCurrent() {
+        WitnessModel witnessA = jerseyTest.resource().path("/tradition/" + tradId + "/witness/A")
+                .get(WitnessModel.class);
+
+        // Rename the witness out-of-band
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(Long.valueOf(witnessA.getId())).setProperty("sigil", "Q");
+            tx.success();
+        }
+        ClientResponse response = jerseyTest.resource().path("/tradition/" + tradId + "/witness/A")
+                .get(ClientResponse.class);
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+        WitnessModel witnessQ = jerseyTest.resource().path("/tradition/" + tradId + "/witness/Q")
+                .get(WitnessModel.class);
+        assertEquals(witnessA.getId(), witnessQ.getId());
+        WitnessModel byId = jerseyTest.resource().path("/tradition/" + tradId + "/witness/" + witnessA.getId())
+                .get(WitnessModel.class);
+        assertEquals("Q", byId.getSigil());
+        List<String> sigla = jerseyTest.resource().path("/tradition/" + tradId + "/witnesses")
+                .get(new GenericType<List<WitnessModel>>(){})
+                .stream().map(WitnessModel::getSigil).collect(Collectors.toList());
+        assertEquals(3, sigla.size());
+        assertTrue(sigla.contains("Q"));
+        assertFalse(sigla.contains("A"));
+
+        // Look up a witness in a transaction that is rolled back, and make sure it
+        // doesn't linger
+        try (Transaction tx = db.beginTx()) {
+            Node traditionNode = db.findNode(Nodes.TRADITION, "id", tradId);
+            Node phantom = db.createNode(Nodes.WITNESS);
+            phantom.setProperty("hypothetical", false);
+            phantom.setProperty("sigil", "Z");
+            traditionNode.createRelationshipTo(phantom, ERelations.HAS_WITNESS);
+            assertEquals(phantom, WitnessRegistry.lookup(traditionNode, "Z"));
+            assertEquals(4, WitnessRegistry.witnesses(traditionNode).size());
+            tx.failure();
+        }
+        response = jerseyTest.resource().path("/tradition/" + tradId + "/witness/Z")
+                .get(ClientResponse.class);
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+        assertEquals(3, jerseyTest.resource().path("/tradition/" + tradId + "/witnesses")
+                .get(new GenericType<List<WitnessModel>>(){}).size());
+    }
+
     @Ignore
     @Test
     public void deleteWitnessFromStemma() {
@@ -447,6 +535,34 @@ public class WitnessTest {
 
     }
 
+    @Test
+    public void multiSectionWitnessTest() {
+        for (int i = 2; i < 6; i++) {
+            ClientResponse jerseyResult = Util.addSectionToTradition(jerseyTest, tradId,
+                    "src/TestFiles/testTradition.xml", "stemmaweb", "section " + i);
+            assertEquals(Response.Status.CREATED.getStatusCode(), jerseyResult.getStatus());
+        }
+        List<SectionModel> sections = jerseyTest.resource().path("/tradition/" + tradId + "/sections")
+                .get(new GenericType<List<SectionModel>>() {});
+        assertEquals(5, sections.size());
+
+        // The tradition-wide text and readings are those of the sections, in order
+        List<String> sectionTexts = new ArrayList<>();
+        List<String> sectionReadings = new ArrayList<>();
+        for (SectionModel sm : sections) {
+            String sectPath = "/tradition/" + tradId + "/section/" + sm.getId() + "/witness/A";
+            sectionTexts.add(jerseyTest.resource().path(sectPath + "/text").get(TextSequenceModel.class).getText());
+            jerseyTest.resource().path(sectPath + "/readings").get(new GenericType<List<ReadingModel>>() {})
+                    .forEach(x -> sectionReadings.add(x.getId()));
+        }
+        TextSequenceModel text = jerseyTest.resource().path("/tradition/" + tradId + "/witness/A/text")
+                .get(TextSequenceModel.class);
+        assertEquals(String.join(" ", sectionTexts), text.getText());
+        List<ReadingModel> readings = jerseyTest.resource().path("/tradition/" + tradId + "/witness/A/readings")
+                .get(new GenericType<List<ReadingModel>>() {});
+        assertEquals(sectionReadings, readings.stream().map(ReadingModel::getId).collect(Collectors.toList()));
+    }
+
     private String constructResult (String text) {
         return String.format("{\"text\":\"%s\"}", text);
     }